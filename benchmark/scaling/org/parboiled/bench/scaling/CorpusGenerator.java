@@ -0,0 +1,267 @@
+/*
+ * Copyright 2000-2008 JetBrains s.r.o.
+ * Modified in 2009 by Mathias Doenitz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.parboiled.bench.scaling;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+/**
+ * Generates a synthetic corpus of Java 6 class files for the {@link ScalingBenchmark}, directly as bytecode so that
+ * even corpora of hundreds of thousands of classes are generated within seconds. The corpus consists of
+ * <ul>
+ * <li>top-level classes whose methods carry @NotNull annotations on their parameters and return values with the given
+ * density, each extending a class of the library,</li>
+ * <li>chains of non-static inner classes nested to the given depth below every top-level class,</li>
+ * <li>enums with annotated constructor parameters (in place of the given fraction of the top-level classes),</li>
+ * <li>a library jar for the classpath, made up of inheritance chains of eight classes each.</li>
+ * </ul>
+ * Every method merges two differently typed library references at a branch target, so computing its frames requires
+ * looking up their common superclass in the library jar. The generation is deterministic for the same parameters.
+ */
+public class CorpusGenerator {
+
+    private static final String NOT_NULL = "Lorg/jetbrains/annotations/NotNull;";
+    private static final String OBJECT = "java/lang/Object";
+    private static final String STRING = "java/lang/String";
+    private static final String ENUM = "java/lang/Enum";
+    private static final int CHAIN_LENGTH = 8;
+    private static final int METHODS = 8;
+
+    private final int classes;
+    private final double density;
+    private final int nesting;
+    private final double enums;
+    private final int library;
+    private final Random random = new Random(42);
+
+    /**
+     * @param classes the number of top-level classes (inner classes come on top)
+     * @param density the probability of a reference parameter or return value to carry a @NotNull annotation
+     * @param nesting the depth of the inner class chain below every top-level class
+     * @param enums   the fraction of top-level classes generated as enums
+     * @param library the number of classes in the library jar, at least one
+     */
+    public CorpusGenerator(int classes, double density, int nesting, double enums, int library) {
+        this.classes = classes;
+        this.density = density;
+        this.nesting = nesting;
+        this.enums = enums;
+        this.library = Math.max(library, 1);
+    }
+
+    /**
+     * @return the total number of generated classes in the corpus, excluding the library
+     */
+    public int getClassCount() {
+        return classes * (1 + nesting);
+    }
+
+    /**
+     * Generates the corpus.
+     *
+     * @param classDir   the directory to write the class files of the corpus to
+     * @param libraryJar the jar to write the library classes to
+     * @throws IOException if a file could not be written
+     */
+    public void generate(File classDir, File libraryJar) throws IOException {
+        generateLibrary(libraryJar);
+        for (int i = 0; i < classes; i++) {
+            String name = "corpus/p" + (i % 100) + "/C" + i;
+            if (random.nextDouble() < enums) {
+                write(classDir, name, generateEnum(name));
+            } else {
+                write(classDir, name, generateClass(name, null, libraryClass(i)));
+            }
+            String outer = name;
+            for (int depth = 1; depth <= nesting; depth++) {
+                String inner = outer + "$I" + depth;
+                write(classDir, inner, generateClass(inner, outer, OBJECT));
+                outer = inner;
+            }
+        }
+    }
+
+    private void generateLibrary(File libraryJar) throws IOException {
+        JarOutputStream jar = new JarOutputStream(new FileOutputStream(libraryJar));
+        try {
+            for (int i = 0; i < library; i++) {
+                String superName = i % CHAIN_LENGTH == 0 ? OBJECT : libraryClass(i - 1);
+                ClassWriter cw = new ClassWriter(0);
+                cw.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC, libraryClass(i), null, superName, null);
+                generateConstructor(cw, superName);
+                cw.visitEnd();
+                jar.putNextEntry(new JarEntry(libraryClass(i) + ".class"));
+                jar.write(cw.toByteArray());
+            }
+        }
+        finally {
+            jar.close();
+        }
+    }
+
+    private String libraryClass(int i) {
+        return "library/L" + (i % library);
+    }
+
+    private byte[] generateClass(String name, String outer, String superName) {
+        ClassWriter cw = new SyntheticClassWriter();
+        cw.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC, name, null, superName, null);
+        if (outer != null) {
+            cw.visitInnerClass(name, outer, name.substring(outer.length() + 1), Opcodes.ACC_PUBLIC);
+            cw.visitField(Opcodes.ACC_FINAL | Opcodes.ACC_SYNTHETIC, "this$0", 'L' + outer + ';', null, null);
+            // the constructor of a non-static inner class takes the outer instance as synthetic first parameter
+            MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "(L" + outer + ";L" + STRING + ";)V",
+                    null, null);
+            annotateParameter(mv, 1);
+            mv.visitCode();
+            mv.visitVarInsn(Opcodes.ALOAD, 0);
+            mv.visitVarInsn(Opcodes.ALOAD, 1);
+            mv.visitFieldInsn(Opcodes.PUTFIELD, name, "this$0", 'L' + outer + ';');
+            mv.visitVarInsn(Opcodes.ALOAD, 0);
+            mv.visitMethodInsn(Opcodes.INVOKESPECIAL, superName, "<init>", "()V");
+            mv.visitInsn(Opcodes.RETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        } else {
+            generateConstructor(cw, superName);
+        }
+        for (int i = 0; i < METHODS; i++) {
+            generateMethod(cw, i);
+        }
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private byte[] generateEnum(String name) {
+        ClassWriter cw = new SyntheticClassWriter();
+        cw.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER | Opcodes.ACC_ENUM, name,
+                "Ljava/lang/Enum<L" + name + ";>;", ENUM, null);
+        // enum constructors take the constant name and ordinal as synthetic first parameters
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PRIVATE, "<init>", "(L" + STRING + ";IL" + STRING + ";)V", null,
+                null);
+        annotateParameter(mv, 2);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitVarInsn(Opcodes.ALOAD, 1);
+        mv.visitVarInsn(Opcodes.ILOAD, 2);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, ENUM, "<init>", "(L" + STRING + ";I)V");
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        for (int i = 0; i < METHODS / 2; i++) {
+            generateMethod(cw, i);
+        }
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private static void generateConstructor(ClassWriter cw, String superName) {
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, superName, "<init>", "()V");
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(1, 1);
+        mv.visitEnd();
+    }
+
+    /**
+     * Generates {@code Object m(boolean flag, La a, Lb b) { return flag ? a : b; }} with two random library classes.
+     */
+    private void generateMethod(ClassWriter cw, int index) {
+        String a = libraryClass(random.nextInt(library));
+        String b = libraryClass(random.nextInt(library));
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "m" + index, "(ZL" + a + ";L" + b + ";)L" + OBJECT + ';',
+                null, null);
+        if (random.nextDouble() < density) {
+            mv.visitAnnotation(NOT_NULL, false).visitEnd();
+        }
+        for (int param = 1; param <= 2; param++) {
+            if (random.nextDouble() < density) {
+                annotateParameter(mv, param);
+            }
+        }
+        mv.visitCode();
+        Label second = new Label();
+        Label merge = new Label();
+        mv.visitVarInsn(Opcodes.ILOAD, 1);
+        mv.visitJumpInsn(Opcodes.IFEQ, second);
+        mv.visitVarInsn(Opcodes.ALOAD, 2);
+        mv.visitJumpInsn(Opcodes.GOTO, merge);
+        mv.visitLabel(second);
+        mv.visitVarInsn(Opcodes.ALOAD, 3);
+        mv.visitLabel(merge);
+        mv.visitInsn(Opcodes.ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    private static void annotateParameter(MethodVisitor mv, int param) {
+        mv.visitParameterAnnotation(param, NOT_NULL, false).visitEnd();
+    }
+
+    private static void write(File classDir, String name, byte[] bytes) throws IOException {
+        File file = new File(classDir, name + ".class");
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Computes frames without a classpath, since the generator knows the library hierarchy: the chains start at
+     * Object and a common superclass is only ever looked up for library classes.
+     */
+    private class SyntheticClassWriter extends ClassWriter {
+        private SyntheticClassWriter() {
+            super(COMPUTE_FRAMES);
+        }
+
+        @Override
+        protected String getCommonSuperClass(String type1, String type2) {
+            int i1 = libraryIndex(type1);
+            int i2 = libraryIndex(type2);
+            if (i1 < 0 || i2 < 0 || i1 / CHAIN_LENGTH != i2 / CHAIN_LENGTH) {
+                return OBJECT;
+            }
+            return libraryClass(Math.min(i1, i2));
+        }
+
+        private int libraryIndex(String type) {
+            return type.startsWith("library/L") ? Integer.parseInt(type.substring("library/L".length())) : -1;
+        }
+    }
+
+}
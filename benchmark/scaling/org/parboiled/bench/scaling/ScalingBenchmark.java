@@ -0,0 +1,313 @@
+/*
+ * Copyright 2000-2008 JetBrains s.r.o.
+ * Modified in 2009 by Mathias Doenitz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.parboiled.bench.scaling;
+
+import org.apache.tools.ant.IntrospectionHelper;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.Path;
+import org.parboiled.ant.InstrumentNotNull;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Measures how the build time instrumentation scales with the size of the code base, running the instrumentNotNull
+ * task in an embedded ant project over synthetic corpora generated by the {@link CorpusGenerator}.
+ * For every combination of corpus size, thread count and mode it reports the classes instrumented per second, the peak
+ * heap usage and the allocation rate. The arguments are key=value pairs, lists are comma separated:
+ * <ul>
+ * <li>classes: the numbers of top-level classes to generate corpora with (default: 1000,10000)</li>
+ * <li>density: the probability of a parameter or return value to be annotated with @NotNull (default: 0.5)</li>
+ * <li>nesting: the depth of the inner class chains below every top-level class (default: 2)</li>
+ * <li>enums: the fraction of top-level classes generated as enums (default: 0.1)</li>
+ * <li>library: the number of classes on the classpath for the class hierarchy lookups (default: 2000)</li>
+ * <li>threads: the numbers of instrumentation threads (default: 1 and the number of available processors)</li>
+ * <li>modes: the boolean task attributes to enable, one per run, or "default" (default: default,preserveFrames)</li>
+ * <li>runs: the number of measured runs per combination after one warm-up run, the best is reported (default: 3)</li>
+ * <li>dir: the working directory, corpora are generated once and reused (default: build/bench/scaling)</li>
+ * </ul>
+ * The results are printed as a table and written to results.csv in the working directory.
+ */
+public class ScalingBenchmark {
+
+    private static final String DEFAULT_MODE = "default";
+    private static final long MB = 1024 * 1024;
+
+    private final Map<String, String> args = new LinkedHashMap<String, String>();
+    private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        new ScalingBenchmark(args).run();
+    }
+
+    private ScalingBenchmark(String[] args) {
+        this.args.put("classes", "1000,10000");
+        this.args.put("density", "0.5");
+        this.args.put("nesting", "2");
+        this.args.put("enums", "0.1");
+        this.args.put("library", "2000");
+        this.args.put("threads", "1," + Runtime.getRuntime().availableProcessors());
+        this.args.put("modes", DEFAULT_MODE + ",preserveFrames");
+        this.args.put("runs", "3");
+        this.args.put("dir", "build/bench/scaling");
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0 || !this.args.containsKey(arg.substring(0, eq))) {
+                throw new IllegalArgumentException("Unknown argument " + arg + ", expected one of " +
+                        this.args.keySet());
+            }
+            this.args.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+    }
+
+    private void run() throws Exception {
+        File dir = new File(args.get("dir"));
+        int runs = Integer.parseInt(args.get("runs"));
+        PrintWriter csv = new PrintWriter(new FileWriter(new File(mkdirs(dir), "results.csv")));
+        try {
+            csv.println("classes,threads,mode,seconds,classesPerSecond,peakHeapMB,allocatedMB,allocationMBPerSecond");
+            System.out.println(String.format("%10s %8s %-16s %10s %12s %10s %12s", "classes", "threads", "mode",
+                    "seconds", "classes/s", "peak MB", "alloc MB/s"));
+            for (String classes : list("classes")) {
+                CorpusGenerator generator = new CorpusGenerator(Integer.parseInt(classes),
+                        Double.parseDouble(args.get("density")), Integer.parseInt(args.get("nesting")),
+                        Double.parseDouble(args.get("enums")), Integer.parseInt(args.get("library")));
+                File corpus = getCorpus(dir, classes, generator);
+                for (String threads : list("threads")) {
+                    for (String mode : list("modes")) {
+                        Result best = null;
+                        for (int i = 0; i <= runs; i++) {
+                            Result result = measure(corpus, new File(dir, "work"), Integer.parseInt(threads), mode);
+                            if (i > 0 && (best == null || result.nanos < best.nanos)) {
+                                best = result;
+                            }
+                        }
+                        report(best, generator.getClassCount(), threads, mode, csv);
+                    }
+                }
+            }
+        }
+        finally {
+            csv.close();
+        }
+    }
+
+    private File getCorpus(File dir, String classes, CorpusGenerator generator) throws IOException {
+        File corpus = new File(dir, "corpus-" + classes + '-' + args.get("density") + '-' + args.get("nesting") + '-' +
+                args.get("enums") + '-' + args.get("library"));
+        File done = new File(corpus, "complete");
+        if (!done.exists()) {
+            delete(corpus);
+            System.out.println("Generating " + generator.getClassCount() + " classes in " + corpus);
+            generator.generate(new File(corpus, "classes"), new File(mkdirs(corpus), "library.jar"));
+            if (!done.createNewFile()) {
+                throw new IOException("Could not create " + done);
+            }
+        }
+        return corpus;
+    }
+
+    private Result measure(File corpus, File work, int threads, String mode) throws IOException {
+        delete(work);
+        copy(new File(corpus, "classes"), work);
+        File emptySrc = mkdirs(new File(corpus, "src"));
+
+        Project project = new Project();
+        project.init();
+        InstrumentNotNull task = new InstrumentNotNull();
+        task.setProject(project);
+        task.setTaskName("instrumentNotNull");
+        task.setDestdir(work);
+        task.setSrcdir(new Path(project, emptySrc.getPath()));
+        task.setClasspath(new Path(project, new File(corpus, "library.jar").getPath()));
+        task.setTarget("1.6");
+        task.setIncludeantruntime(false);
+        task.setThreads(threads);
+        if (!DEFAULT_MODE.equals(mode)) {
+            IntrospectionHelper.getHelper(project, InstrumentNotNull.class).setAttribute(project, task, mode, "true");
+        }
+
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+        AllocationSampler sampler = new AllocationSampler();
+        sampler.start();
+        long start = System.nanoTime();
+        task.execute();
+        Result result = new Result();
+        result.nanos = System.nanoTime() - start;
+        result.allocatedBytes = sampler.finish();
+        // closes the jars shared by the tasks of the build
+        project.fireBuildFinished(null);
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                result.peakHeapBytes += pool.getPeakUsage().getUsed();
+            }
+        }
+        return result;
+    }
+
+    private void report(Result result, int classes, String threads, String mode, PrintWriter csv) {
+        double seconds = result.nanos / 1e9;
+        System.out.println(String.format(Locale.ROOT, "%10d %8s %-16s %10.2f %12.0f %10d %12.0f", classes, threads,
+                mode, seconds, classes / seconds, result.peakHeapBytes / MB, result.allocatedBytes / MB / seconds));
+        csv.println(String.format(Locale.ROOT, "%d,%s,%s,%.3f,%.0f,%d,%d,%.0f", classes, threads, mode, seconds,
+                classes / seconds, result.peakHeapBytes / MB, result.allocatedBytes / MB,
+                result.allocatedBytes / MB / seconds));
+        csv.flush();
+    }
+
+    private List<String> list(String key) {
+        List<String> list = new ArrayList<String>();
+        for (String value : args.get(key).split(",")) {
+            if (value.trim().length() > 0) {
+                list.add(value.trim());
+            }
+        }
+        return list;
+    }
+
+    private static File mkdirs(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        return dir;
+    }
+
+    private static void delete(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not delete " + file);
+        }
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        File[] children = from.listFiles();
+        if (children != null) {
+            mkdirs(to);
+            for (File child : children) {
+                copy(child, new File(to, child.getName()));
+            }
+            return;
+        }
+        InputStream in = new FileInputStream(from);
+        try {
+            OutputStream out = new FileOutputStream(to);
+            try {
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, n);
+                }
+            }
+            finally {
+                out.close();
+            }
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    private static class Result {
+        private long nanos;
+        private long peakHeapBytes;
+        private long allocatedBytes;
+    }
+
+    /**
+     * Sums up the bytes allocated by all threads during a run. The instrumentation pool threads terminate with the
+     * task, so their allocations are sampled every few milliseconds; the bytes a thread allocates after its last
+     * sample are missed, making the figure a slight underestimate.
+     */
+    private class AllocationSampler extends Thread {
+        private final Map<Long, Long> start = new LinkedHashMap<Long, Long>();
+        private final Map<Long, Long> latest = new LinkedHashMap<Long, Long>();
+        private volatile boolean done;
+
+        private AllocationSampler() {
+            setDaemon(true);
+            sample(start);
+        }
+
+        @Override
+        public void run() {
+            while (!done) {
+                sample(latest);
+                try {
+                    Thread.sleep(5);
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private long finish() {
+            done = true;
+            try {
+                join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            sample(latest);
+            long allocated = 0;
+            for (Map.Entry<Long, Long> entry : latest.entrySet()) {
+                Long before = start.get(entry.getKey());
+                allocated += entry.getValue() - (before != null ? before : 0);
+            }
+            return allocated;
+        }
+
+        private void sample(Map<Long, Long> samples) {
+            if (!(threadBean instanceof com.sun.management.ThreadMXBean)) {
+                return;
+            }
+            long[] ids = threadBean.getAllThreadIds();
+            long[] bytes = ((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes(ids);
+            for (int i = 0; i < ids.length; i++) {
+                if (bytes[i] >= 0) {
+                    samples.put(ids[i], bytes[i]);
+                }
+            }
+        }
+    }
+
+}
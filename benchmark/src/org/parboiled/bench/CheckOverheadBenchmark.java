@@ -0,0 +1,111 @@
+/*
+ * Copyright 2000-2008 JetBrains s.r.o.
+ * Modified in 2009 by Mathias Doenitz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.parboiled.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.parboiled.bench.api.Accessors;
+import org.parboiled.bench.api.InnerFactory;
+import org.parboiled.bench.api.ManyParams;
+import org.parboiled.bench.api.Shape;
+import org.parboiled.bench.api.Varargs;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the runtime overhead of the parameter and return value checks inserted by javacn, by running every case
+ * against the plain as well as the instrumented variant of the same subject classes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class CheckOverheadBenchmark {
+
+    @Param({"plain", "instrumented"})
+    public String variant;
+
+    private Accessors person;
+    private Varargs joiner;
+    private InnerFactory outer;
+    private ManyParams wide;
+    private Shape[] shapes;
+
+    private String value = "value";
+    private String[] rest = {"b", "c"};
+
+    @Setup
+    public void setup() {
+        Subjects subjects = new Subjects(variant);
+        person = subjects.create("Person", Accessors.class);
+        joiner = subjects.create("Joiner", Varargs.class);
+        outer = subjects.create("Outer", InnerFactory.class);
+        wide = subjects.create("Wide", ManyParams.class);
+        shapes = new Shape[] {
+                subjects.create("Circle", Shape.class),
+                subjects.create("Square", Shape.class),
+                subjects.create("Triangle", Shape.class),
+                subjects.create("Hexagon", Shape.class)
+        };
+    }
+
+    @Benchmark
+    public String getter() {
+        return person.getName();
+    }
+
+    @Benchmark
+    public void setter() {
+        person.setName(value);
+    }
+
+    @Benchmark
+    public int varargs() {
+        return joiner.count(value, rest);
+    }
+
+    @Benchmark
+    public Object innerClassConstructor() {
+        return outer.newInner(value);
+    }
+
+    @Benchmark
+    public int manyParams() {
+        return wide.length(value, value, value, value, value, value, value, value);
+    }
+
+    @Benchmark
+    public void megamorphic(Blackhole blackhole) {
+        for (Shape shape : shapes) {
+            blackhole.consume(shape.describe(value));
+        }
+    }
+
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2000-2008 JetBrains s.r.o.
+ * Modified in 2009 by Mathias Doenitz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.parboiled.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enum constructors only run during class initialization, so unlike the other cases this one is measured in
+ * single shot mode, initializing the enum in a fresh class loader for every invocation.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 20, batchSize = 50)
+@Measurement(iterations = 20, batchSize = 50)
+@Fork(2)
+@State(Scope.Thread)
+public class EnumConstructorBenchmark {
+
+    @Param({"plain", "instrumented"})
+    public String variant;
+
+    private ClassLoader loader;
+
+    @Setup(Level.Invocation)
+    public void setup() {
+        loader = Subjects.createLoader(variant);
+    }
+
+    @Benchmark
+    public Object enumConstructor() throws ClassNotFoundException {
+        return Class.forName(Subjects.PACKAGE + "Color", true, loader);
+    }
+
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2000-2008 JetBrains s.r.o.
+ * Modified in 2009 by Mathias Doenitz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.parboiled.bench;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+/**
+ * Loads the benchmark subjects in either their plain or their instrumented variant.
+ * Both variants are compiled from the same sources into sibling directories below the directory given by the
+ * "javacn.bench.subjects" system property, and each is loaded through its own class loader whose parent provides
+ * the interfaces the benchmarks call the subjects through.
+ */
+public class Subjects {
+
+    public static final String PACKAGE = "org.parboiled.bench.subjects.";
+
+    private final ClassLoader loader;
+
+    public Subjects(String variant) {
+        loader = createLoader(variant);
+    }
+
+    public <T> T create(String simpleName, Class<T> type) {
+        try {
+            return type.cast(loadClass(simpleName).getConstructor().newInstance());
+        }
+        catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public Class<?> loadClass(String simpleName) {
+        try {
+            return Class.forName(PACKAGE + simpleName, true, loader);
+        }
+        catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Creates a fresh class loader for the given variant, so that its classes are loaded and initialized anew.
+     *
+     * @param variant "plain" or "instrumented"
+     * @return the class loader
+     */
+    public static ClassLoader createLoader(String variant) {
+        String dir = System.getProperty("javacn.bench.subjects");
+        if (dir == null) {
+            throw new IllegalStateException("System property javacn.bench.subjects is not set");
+        }
+        try {
+            URL url = new File(dir, variant).toURI().toURL();
+            return new URLClassLoader(new URL[] {url}, Subjects.class.getClassLoader());
+        }
+        catch (MalformedURLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2000-2008 JetBrains s.r.o.
+ * Modified in 2009 by Mathias Doenitz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.parboiled.bench.subjects;
+
+/**
+ * The constructor of an enum carries the two synthetic name and ordinal parameters.
+ */
+public enum Color {
+    RED("r"), GREEN("g"), BLUE("b"), CYAN("c"), MAGENTA("m"), YELLOW("y"), BLACK("k"), WHITE("w");
+
+    private final String code;
+
+    Color(@NotNull String code) {
+        this.code = code;
+    }
+
+    public String getCode() {
+        return code;
+    }
+}
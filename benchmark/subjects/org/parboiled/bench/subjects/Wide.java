@@ -0,0 +1,29 @@
+/*
+ * Copyright 2000-2008 JetBrains s.r.o.
+ * Modified in 2009 by Mathias Doenitz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.parboiled.bench.subjects;
+
+import org.parboiled.bench.api.ManyParams;
+
+public class Wide implements ManyParams {
+
+    public int length(@NotNull String a, @NotNull String b, @NotNull String c, @NotNull String d,
+                      @NotNull String e, @NotNull String f, @NotNull String g, @NotNull String h) {
+        return a.length() + b.length() + c.length() + d.length() + e.length() + f.length() + g.length() + h.length();
+    }
+
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2000-2008 JetBrains s.r.o.
+ * Modified in 2009 by Mathias Doenitz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.parboiled.agent;
+
+import org.parboiled.ant.ClassHierarchyResolver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+
+/**
+ * Resolves the type hierarchy of classes visible to a class loader by reading their class files as resources of that
+ * loader, i.e. without triggering the loading of any class. Only holds a weak reference to the loader.
+ */
+class ClassLoaderHierarchyResolver extends ClassHierarchyResolver {
+
+    private final WeakReference<ClassLoader> loader;
+
+    ClassLoaderHierarchyResolver(ClassLoader loader) {
+        super(new String[0]);
+        this.loader = new WeakReference<ClassLoader>(loader);
+    }
+
+    @Override
+    protected InputStream openClassFile(String name) throws IOException {
+        ClassLoader classLoader = loader.get();
+        InputStream inputStream = classLoader != null ? classLoader.getResourceAsStream(name) : null;
+        return inputStream != null ? inputStream : super.openClassFile(name);
+    }
+
+}
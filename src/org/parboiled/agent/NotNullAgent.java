@@ -0,0 +1,234 @@
+/*
+ * Copyright 2000-2008 JetBrains s.r.o.
+ * Modified in 2009 by Mathias Doenitz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.parboiled.agent;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.parboiled.ant.AntClassWriter;
+import org.parboiled.ant.ClassFileCache;
+import org.parboiled.ant.ClassHierarchyResolver;
+import org.parboiled.compiler.notNullVerification.CheckScope;
+import org.parboiled.compiler.notNullVerification.InstrumentationOptions;
+import org.parboiled.compiler.notNullVerification.NotNullVerifyingInstrumenter;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * A java agent adding the @NotNull assertions to classes at load time, so that libraries not built with javacn can be
+ * checked as well and only the classes actually loaded pay the instrumentation cost.
+ * Its options are given as a comma separated list of key=value pairs after the agent jar:
+ * <pre>-javaagent:javacn.jar=include=com.company,cache=/tmp/javacn-cache</pre>
+ * <ul>
+ * <li>include: a package prefix of the classes to instrument (may be repeated, default: all non-JDK classes)</li>
+ * <li>cache: a directory for caching the instrumented classes across JVM starts</li>
+ * <li>outlineThrows: see {@link InstrumentationOptions#setOutlineThrows(boolean)}</li>
+ * <li>elideParameterChecks: see {@link InstrumentationOptions#setElideParameterChecks(boolean)}</li>
+ * <li>elideReturnChecks: see {@link InstrumentationOptions#setElideReturnChecks(boolean)}</li>
+ * <li>assertionGatedChecks: see {@link InstrumentationOptions#setAssertionGatedChecks(boolean)}</li>
+ * <li>countChecks: see {@link InstrumentationOptions#setCountChecks(boolean)}</li>
+ * <li>preserveFrames: see {@link InstrumentationOptions#setPreserveFrames(boolean)}</li>
+ * <li>fuseParameterChecks: see {@link InstrumentationOptions#setFuseParameterChecks(boolean)}</li>
+ * <li>scope: see {@link InstrumentationOptions#setScope(CheckScope)}</li>
+ * <li>checkInclude: see {@link InstrumentationOptions#addCheckInclude(String)} (may be repeated)</li>
+ * <li>checkExclude: see {@link InstrumentationOptions#addCheckExclude(String)} (may be repeated)</li>
+ * <li>verbose: print the name of every instrumented class</li>
+ * </ul>
+ * Just like the ant tasks the agent only instruments Java 5 and 6 class files. Classes redefined or retransformed
+ * after loading are left as they are.
+ */
+public class NotNullAgent implements ClassFileTransformer {
+
+    private static final int JAVA_6 = 50;
+    private static final String[] EXCLUDES = {
+            "java/", "javax/", "jdk/", "sun/", "com/sun/", "org/objectweb/asm/", "org/parboiled/agent/",
+            "org/parboiled/ant/", "org/parboiled/compiler/notNullVerification/"
+    };
+
+    private final InstrumentationOptions options = new InstrumentationOptions();
+    private final List<String> includes = new ArrayList<String>();
+    private final Map<ClassLoader, ClassHierarchyResolver> resolvers =
+            new WeakHashMap<ClassLoader, ClassHierarchyResolver>();
+    private ClassFileCache cache;
+    private boolean verbose;
+
+    public static void premain(String agentArgs, Instrumentation instrumentation) {
+        instrumentation.addTransformer(new NotNullAgent(agentArgs));
+    }
+
+    /**
+     * Entry point for attaching the agent to a running JVM, only affects the classes loaded afterwards.
+     */
+    public static void agentmain(String agentArgs, Instrumentation instrumentation) {
+        premain(agentArgs, instrumentation);
+    }
+
+    /**
+     * @param agentArgs the agent options, may be null
+     */
+    public NotNullAgent(String agentArgs) {
+        File cacheDir = null;
+        if (agentArgs != null && agentArgs.length() > 0) {
+            for (String arg : agentArgs.split(",")) {
+                int eq = arg.indexOf('=');
+                String key = eq >= 0 ? arg.substring(0, eq).trim() : arg.trim();
+                String value = eq >= 0 ? arg.substring(eq + 1).trim() : "true";
+                if ("include".equals(key)) {
+                    includes.add(value.replace('.', '/'));
+                } else if ("cache".equals(key)) {
+                    cacheDir = new File(value);
+                } else if ("outlineThrows".equals(key)) {
+                    options.setOutlineThrows(Boolean.parseBoolean(value));
+                } else if ("elideParameterChecks".equals(key)) {
+                    options.setElideParameterChecks(Boolean.parseBoolean(value));
+                } else if ("elideReturnChecks".equals(key)) {
+                    options.setElideReturnChecks(Boolean.parseBoolean(value));
+                } else if ("assertionGatedChecks".equals(key)) {
+                    options.setAssertionGatedChecks(Boolean.parseBoolean(value));
+                } else if ("countChecks".equals(key)) {
+                    options.setCountChecks(Boolean.parseBoolean(value));
+                } else if ("preserveFrames".equals(key)) {
+                    options.setPreserveFrames(Boolean.parseBoolean(value));
+                } else if ("fuseParameterChecks".equals(key)) {
+                    options.setFuseParameterChecks(Boolean.parseBoolean(value));
+                } else if ("scope".equals(key)) {
+                    options.setScope(CheckScope.forName(value));
+                } else if ("checkInclude".equals(key)) {
+                    options.addCheckInclude(value);
+                } else if ("checkExclude".equals(key)) {
+                    options.addCheckExclude(value);
+                } else if ("verbose".equals(key)) {
+                    verbose = Boolean.parseBoolean(value);
+                } else {
+                    throw new IllegalArgumentException("Unknown javacn agent option: " + arg);
+                }
+            }
+        }
+        if (cacheDir != null) {
+            cache = new ClassFileCache(cacheDir, ClassFileCache.getToolVersion() + ' ' + options);
+        }
+    }
+
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                            ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+        // the instrumentation may add fields and methods, which redefinitions (e.g. by HotSwap) must not do
+        if (loader == null || className == null || classBeingRedefined != null || !isIncluded(className) ||
+                getMajorVersion(classfileBuffer) > JAVA_6) {
+            return null;
+        }
+        try {
+            ClassReader reader = new ClassReader(classfileBuffer);
+            if (!NotNullVerifyingInstrumenter.mayRequireInstrumentation(reader)) {
+                return null;
+            }
+            ClassHierarchyResolver resolver = getResolver(loader);
+            String key = null;
+            if (cache != null) {
+                key = cache.key(classfileBuffer);
+                byte[] cached = getCached(key, resolver);
+                if (cached != null) {
+                    return cached.length > 0 ? cached : null;
+                }
+            }
+            int flags = options.isPreserveFrames() ? 0 :
+                    getMajorVersion(classfileBuffer) == JAVA_6 ? ClassWriter.COMPUTE_FRAMES : ClassWriter.COMPUTE_MAXS;
+            AntClassWriter writer = new AntClassWriter(reader, flags, resolver);
+            byte[] result = instrument(writer, reader, className);
+            if (cache != null) {
+                putCached(key, result, writer.getSuperClassQueries());
+            }
+            return result;
+        }
+        catch (Throwable e) {
+            // never break class loading, the class is just left as it is
+            System.err.println("[javacn] Could not add @NotNull assertions to " + className.replace('/', '.') + ": " +
+                    e);
+            return null;
+        }
+    }
+
+    private byte[] instrument(ClassWriter writer, ClassReader reader, String className) {
+        NotNullVerifyingInstrumenter instrumenter = new NotNullVerifyingInstrumenter(null, writer, options);
+        instrumenter.analyze(reader);
+        reader.accept(instrumenter, 0);
+        if (!instrumenter.isModification()) {
+            return null;
+        }
+        if (verbose) {
+            System.err.println("[javacn] Added @NotNull assertions to " + className.replace('/', '.'));
+        }
+        return writer.toByteArray();
+    }
+
+    private boolean isIncluded(String className) {
+        for (String exclude : EXCLUDES) {
+            if (className.startsWith(exclude)) {
+                return false;
+            }
+        }
+        if (includes.isEmpty()) {
+            return true;
+        }
+        for (String include : includes) {
+            if (className.startsWith(include)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized ClassHierarchyResolver getResolver(ClassLoader loader) {
+        ClassHierarchyResolver resolver = resolvers.get(loader);
+        if (resolver == null) {
+            resolver = new ClassLoaderHierarchyResolver(loader);
+            resolvers.put(loader, resolver);
+        }
+        return resolver;
+    }
+
+    private byte[] getCached(String key, ClassHierarchyResolver resolver) {
+        try {
+            return cache.get(key, resolver);
+        }
+        catch (IOException e) {
+            System.err.println("[javacn] Could not read cache entry " + key + ": " + e);
+            return null;
+        }
+    }
+
+    private void putCached(String key, byte[] classBytes, Collection<String[]> superClassQueries) {
+        try {
+            cache.put(key, classBytes, superClassQueries);
+        }
+        catch (IOException e) {
+            System.err.println("[javacn] Could not write cache entry " + key + ": " + e);
+        }
+    }
+
+    private static int getMajorVersion(byte[] classBytes) {
+        return classBytes.length < 8 ? Integer.MAX_VALUE : (classBytes[6] & 0xFF) << 8 | classBytes[7] & 0xFF;
+    }
+
+}
@@ -20,45 +20,41 @@ package org.parboiled.ant;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 /**
  * @author yole
  */
 public class AntClassWriter extends ClassWriter {
-    private final ClassLoader myClassLoader;
+    private final ClassHierarchyResolver myResolver;
+    // keyed by both types, so that every query is recorded only once
+    private final Map<String, String[]> mySuperClassQueries = new LinkedHashMap<String, String[]>();
 
-    public AntClassWriter(int flags, ClassLoader classLoader) {
+    public AntClassWriter(int flags, ClassHierarchyResolver resolver) {
         super(flags);
-        myClassLoader = classLoader;
+        myResolver = resolver;
     }
 
-    public AntClassWriter(ClassReader classReader, int flags, ClassLoader classLoader) {
+    public AntClassWriter(ClassReader classReader, int flags, ClassHierarchyResolver resolver) {
         super(classReader, flags);
-        myClassLoader = classLoader;
+        myResolver = resolver;
     }
 
     @Override
     protected String getCommonSuperClass(String type1, String type2) {
-        Class<?> c;
-        Class<?> d;
-        try {
-            c = myClassLoader.loadClass(type1.replace('/', '.'));
-            d = myClassLoader.loadClass(type2.replace('/', '.'));
-        } catch (ClassNotFoundException e) {
-            throw new RuntimeException(e.getMessage());
-        }
-        if (c.isAssignableFrom(d)) {
-            return type1;
-        }
-        if (d.isAssignableFrom(c)) {
-            return type2;
-        }
-        if (c.isInterface() || d.isInterface()) {
-            return "java/lang/Object";
-        } else {
-            do {
-                c = c.getSuperclass();
-            } while (!c.isAssignableFrom(d));
-            return c.getName().replace('.', '/');
-        }
+        String superClass = myResolver.getCommonSuperClass(type1, type2);
+        mySuperClassQueries.put(type1 + ' ' + type2, new String[] {type1, type2, superClass});
+        return superClass;
+    }
+
+    /**
+     * @return the queries of the class hierarchy answered for the frame computation so far, each as the internal
+     *         names of both types and of their common superclass
+     */
+    public Collection<String[]> getSuperClassQueries() {
+        return new ArrayList<String[]>(mySuperClassQueries.values());
     }
 }
\ No newline at end of file
@@ -0,0 +1,592 @@
+/*
+ * Copyright 2000-2008 JetBrains s.r.o.
+ * Modified in 2009 by Mathias Doenitz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.parboiled.ant;
+
+import org.apache.tools.ant.Project;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Instruments the classes in a jar or zip archive in a single streaming pass over its entries.
+ * All entries not affected by instrumentation are copied byte for byte, i.e. without being decompressed and
+ * recompressed, only the instrumented classes are compressed anew. The classes are instrumented on the given executor
+ * while the entries before them are being written, with a bounded number of entries in flight.
+ * The signature of a signed jar would not match its instrumented classes anymore, so the signature files and the
+ * digests of the manifest are removed. ZIP64 archives are not supported.
+ */
+class ArchiveInstrumenter {
+
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_HEADER = 0x06054b50;
+    private static final int DATA_DESCRIPTOR = 0x08074b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_HEADER_SIZE = 22;
+    private static final int FLAG_DATA_DESCRIPTOR = 0x08;
+    private static final int FLAG_UTF8 = 0x800;
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+    private static final String META_INF = "META-INF/";
+    private static final String MANIFEST = META_INF + "MANIFEST.MF";
+
+    private final Javacn task;
+    private final ClassInstrumenter instrumenter;
+    private final ExecutorService executor;
+    private final int window;
+
+    /**
+     * @param task         the task to report errors to
+     * @param instrumenter the instrumenter to use
+     * @param executor     the executor to run the instrumentation of the single classes on
+     * @param window       the maximum number of entries read ahead of the one being written
+     */
+    ArchiveInstrumenter(Javacn task, ClassInstrumenter instrumenter, ExecutorService executor, int window) {
+        this.task = task;
+        this.instrumenter = instrumenter;
+        this.executor = executor;
+        this.window = window;
+    }
+
+    /**
+     * Instruments the classes in the given archive. An archive none of whose classes is affected by instrumentation
+     * (e.g. since they were instrumented by a previous build) is not rewritten, and a destination archive newer than
+     * the source archive is considered up to date, which keeps the modification times and thereby the up-to-date
+     * checks of later build steps intact.
+     *
+     * @param src  the archive to instrument
+     * @param dest the archive to write, may be identical to the source archive
+     * @return the amount of classes actually affected by instrumentation
+     * @throws IOException if the archive could not be read or written
+     */
+    int instrument(File src, File dest) throws IOException {
+        boolean inPlace = ClasspathCache.normalize(src).equals(ClasspathCache.normalize(dest));
+        if (!inPlace && dest.lastModified() > src.lastModified()) {
+            task.log("Skipping up-to-date " + dest, Project.MSG_VERBOSE);
+            return 0;
+        }
+        File parent = dest.getAbsoluteFile().getParentFile();
+        File tmp = File.createTempFile(dest.getName(), ".tmp", parent);
+        boolean moved = false;
+        try {
+            RandomAccessFile in = new RandomAccessFile(src, "r");
+            int instrumented;
+            boolean signed;
+            try {
+                Directory directory = new Directory(in);
+                signed = directory.removeSignature();
+                CountingOutputStream out = new CountingOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024));
+                try {
+                    instrumented = copy(src, in, directory, out);
+                }
+                finally {
+                    out.close();
+                }
+            }
+            finally {
+                in.close();
+            }
+            if (instrumented == 0) {
+                if (inPlace || hasSameContents(src, dest)) {
+                    task.log("Keeping unchanged " + dest, Project.MSG_VERBOSE);
+                    return 0;
+                }
+                // the plain copy keeps the signature, if any
+                Files.copy(src.toPath(), tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } else if (signed) {
+                task.log("Removed the signature of " + src + " since it does not match the instrumented classes",
+                        Project.MSG_WARN);
+            }
+            // an archive open for frame computation cannot be replaced on all platforms
+            instrumenter.release(dest);
+            Files.move(tmp.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            moved = true;
+            return instrumented;
+        }
+        finally {
+            if (!moved && !tmp.delete()) {
+                tmp.deleteOnExit();
+            }
+        }
+    }
+
+    private static boolean hasSameContents(File file1, File file2) throws IOException {
+        if (!file2.isFile() || file1.length() != file2.length()) {
+            return false;
+        }
+        InputStream in1 = new FileInputStream(file1);
+        try {
+            InputStream in2 = new FileInputStream(file2);
+            try {
+                byte[] buffer1 = new byte[64 * 1024];
+                byte[] buffer2 = new byte[buffer1.length];
+                for (int n; (n = in1.read(buffer1)) > 0; ) {
+                    readFully(in2, buffer2, n);
+                    for (int i = 0; i < n; i++) {
+                        if (buffer1[i] != buffer2[i]) {
+                            return false;
+                        }
+                    }
+                }
+                return true;
+            }
+            finally {
+                in2.close();
+            }
+        }
+        finally {
+            in1.close();
+        }
+    }
+
+    private static void readFully(InputStream inputStream, byte[] buffer, int length) throws IOException {
+        for (int count = 0; count < length; ) {
+            int n = inputStream.read(buffer, count, length - count);
+            if (n == -1) {
+                throw new IOException("Unexpected end of file");
+            }
+            count += n;
+        }
+    }
+
+    private int copy(File src, RandomAccessFile in, Directory directory, CountingOutputStream out)
+            throws IOException {
+        int instrumented = 0;
+        Deque<Entry> pending = new ArrayDeque<Entry>();
+        for (Entry entry : directory.entries) {
+            if (entry == directory.unsignedManifest) {
+                entry.read(in);
+                entry.replacement = removeDigests(entry.uncompress());
+            } else if (entry.name.endsWith(".class")) {
+                final String path = src.getPath() + "!/" + entry.name;
+                final InstrumentationReport.ClassRecord record = instrumenter.createRecord(path);
+                long start = System.nanoTime();
+                entry.read(in);
+                final byte[] classBytes = entry.uncompress();
+                if (record != null) {
+                    record.readNanos = System.nanoTime() - start;
+                }
+                entry.instrumented = executor.submit(new Callable<byte[]>() {
+                    public byte[] call() throws Exception {
+                        return instrumenter.instrument(classBytes, classBytes.length, path, record);
+                    }
+                });
+            }
+            pending.add(entry);
+            while (pending.size() > window) {
+                instrumented += write(src, pending.poll(), in, out);
+            }
+        }
+        while (!pending.isEmpty()) {
+            instrumented += write(src, pending.poll(), in, out);
+        }
+
+        long newCdOffset = out.count;
+        for (Entry entry : directory.entries) {
+            entry.writeCentralHeader(out);
+        }
+        byte[] tail = directory.tail;
+        int end = directory.end;
+        writeShort(tail, end + 8, directory.entries.size());
+        writeShort(tail, end + 10, directory.entries.size());
+        writeInt(tail, end + 12, out.count - newCdOffset);
+        writeInt(tail, end + 16, newCdOffset);
+        out.write(tail, end, tail.length - end);
+        return instrumented;
+    }
+
+    private int write(File src, Entry entry, RandomAccessFile in, CountingOutputStream out) throws IOException {
+        byte[] classBytes = null;
+        if (entry.instrumented != null) {
+            try {
+                classBytes = entry.instrumented.get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            }
+            catch (ExecutionException e) {
+                task.fireError("@NotNull instrumentation failed for " + src.getPath() + "!/" + entry.name + ": " +
+                        e.getCause().toString());
+            }
+            entry.instrumented = null;
+        }
+        entry.newOffset = out.count;
+        if (entry.replacement != null) {
+            entry.writeContents(entry.replacement, out);
+            return 0;
+        }
+        if (classBytes == null) {
+            entry.copyRaw(in, out);
+            return 0;
+        }
+        entry.writeContents(classBytes, out);
+        return 1;
+    }
+
+    /**
+     * @return true if the given entry is one of the files making up the signature of a jar, which are located directly
+     *         in the META-INF directory
+     */
+    private static boolean isSignatureFile(String name) {
+        String upperCaseName = name.toUpperCase(Locale.ENGLISH);
+        if (!upperCaseName.startsWith(META_INF) || upperCaseName.indexOf('/', META_INF.length()) >= 0) {
+            return false;
+        }
+        String fileName = upperCaseName.substring(META_INF.length());
+        return fileName.endsWith(".SF") || fileName.endsWith(".RSA") || fileName.endsWith(".DSA") ||
+                fileName.endsWith(".EC") || fileName.startsWith("SIG-");
+    }
+
+    /**
+     * Removes the digests of the single entries from the given manifest, dropping the sections left empty.
+     *
+     * @param manifestBytes the contents of the manifest
+     * @return the contents of the manifest without digests
+     */
+    private static byte[] removeDigests(byte[] manifestBytes) throws IOException {
+        Manifest manifest = new Manifest(new ByteArrayInputStream(manifestBytes));
+        for (Iterator<Attributes> sections = manifest.getEntries().values().iterator(); sections.hasNext(); ) {
+            Attributes attributes = sections.next();
+            for (Iterator<Object> names = attributes.keySet().iterator(); names.hasNext(); ) {
+                if (names.next().toString().toUpperCase(Locale.ENGLISH).endsWith("-DIGEST")) {
+                    names.remove();
+                }
+            }
+            if (attributes.isEmpty()) {
+                sections.remove();
+            }
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        manifest.write(bytes);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * The entries of an archive as listed by its central directory, together with the end of central directory
+     * record.
+     */
+    private static class Directory {
+        private final byte[] tail;
+        private final int end;
+        private final List<Entry> entries;
+        private Entry unsignedManifest;
+
+        private Directory(RandomAccessFile in) throws IOException {
+            // the end of central directory record, which is followed by a comment of at most 64K
+            int tailLength = (int) Math.min(in.length(), END_HEADER_SIZE + 0xFFFF);
+            tail = new byte[tailLength];
+            in.seek(in.length() - tailLength);
+            in.readFully(tail);
+            int end = tailLength - END_HEADER_SIZE;
+            while (end >= 0 && readInt(tail, end) != END_HEADER) {
+                end--;
+            }
+            if (end < 0) {
+                throw new IOException("Not a zip archive");
+            }
+            this.end = end;
+            int entryCount = readShort(tail, end + 10);
+            long cdSize = readUnsignedInt(tail, end + 12);
+            long cdOffset = readUnsignedInt(tail, end + 16);
+            if (entryCount == 0xFFFF || cdSize == 0xFFFFFFFFL || cdOffset == 0xFFFFFFFFL) {
+                throw new IOException("ZIP64 archives are not supported");
+            }
+
+            byte[] cd = new byte[(int) cdSize];
+            in.seek(cdOffset);
+            in.readFully(cd);
+            entries = new ArrayList<Entry>(entryCount);
+            for (int offset = 0; offset < cd.length; ) {
+                if (readInt(cd, offset) != CENTRAL_HEADER) {
+                    throw new IOException("Corrupt central directory");
+                }
+                Entry entry = new Entry(cd, offset);
+                entries.add(entry);
+                offset += entry.cdLength;
+            }
+        }
+
+        /**
+         * Drops the signature files from the entries and marks the manifest for the removal of its digests.
+         *
+         * @return true if the archive is signed
+         */
+        private boolean removeSignature() {
+            boolean signed = false;
+            for (Iterator<Entry> iterator = entries.iterator(); iterator.hasNext(); ) {
+                if (isSignatureFile(iterator.next().name)) {
+                    iterator.remove();
+                    signed = true;
+                }
+            }
+            if (signed) {
+                for (Entry entry : entries) {
+                    if (entry.name.equalsIgnoreCase(MANIFEST)) {
+                        unsignedManifest = entry;
+                    }
+                }
+            }
+            return signed;
+        }
+    }
+
+    /**
+     * An archive entry as described by its central directory header.
+     */
+    private static class Entry {
+        private final byte[] cd;
+        private final int cdOffset;
+        private final int cdLength;
+        private final String name;
+        private final int flags;
+        private final int method;
+        private final long compressedSize;
+        private final long size;
+        private final long localOffset;
+        private byte[] data;
+        private byte[] replacement;
+        private Future<byte[]> instrumented;
+        private long newOffset;
+
+        private Entry(byte[] cd, int offset) throws IOException {
+            this.cd = cd;
+            this.cdOffset = offset;
+            flags = readShort(cd, offset + 8);
+            method = readShort(cd, offset + 10);
+            compressedSize = readUnsignedInt(cd, offset + 20);
+            size = readUnsignedInt(cd, offset + 24);
+            int nameLength = readShort(cd, offset + 28);
+            int extraLength = readShort(cd, offset + 30);
+            int commentLength = readShort(cd, offset + 32);
+            localOffset = readUnsignedInt(cd, offset + 42);
+            if (compressedSize == 0xFFFFFFFFL || size == 0xFFFFFFFFL || localOffset == 0xFFFFFFFFL) {
+                throw new IOException("ZIP64 archives are not supported");
+            }
+            name = new String(cd, offset + CENTRAL_HEADER_SIZE, nameLength,
+                    (flags & FLAG_UTF8) != 0 ? "UTF-8" : "Cp437");
+            cdLength = CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+
+        /**
+         * Reads the compressed data of this entry.
+         */
+        private void read(RandomAccessFile in) throws IOException {
+            data = new byte[(int) compressedSize];
+            in.seek(getDataOffset(in));
+            in.readFully(data);
+        }
+
+        private byte[] uncompress() throws IOException {
+            if (method == STORED) {
+                return data;
+            }
+            if (method != DEFLATED) {
+                throw new IOException("Unsupported compression method " + method + " of entry " + name);
+            }
+            byte[] bytes = new byte[(int) size];
+            Inflater inflater = new Inflater(true);
+            try {
+                // the extra dummy byte is required by the "nowrap" mode of the inflater
+                byte[] input = new byte[data.length + 1];
+                System.arraycopy(data, 0, input, 0, data.length);
+                inflater.setInput(input);
+                int count = 0;
+                while (count < bytes.length && !inflater.finished()) {
+                    int n = inflater.inflate(bytes, count, bytes.length - count);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    count += n;
+                }
+                if (count != bytes.length) {
+                    throw new IOException("Corrupt entry " + name);
+                }
+                return bytes;
+            }
+            catch (DataFormatException e) {
+                throw new IOException("Corrupt entry " + name + ": " + e.getMessage());
+            }
+            finally {
+                inflater.end();
+            }
+        }
+
+        private long getDataOffset(RandomAccessFile in) throws IOException {
+            byte[] header = new byte[LOCAL_HEADER_SIZE];
+            in.seek(localOffset);
+            in.readFully(header);
+            if (readInt(header, 0) != LOCAL_HEADER) {
+                throw new IOException("Corrupt local header of entry " + name);
+            }
+            return localOffset + LOCAL_HEADER_SIZE + readShort(header, 26) + readShort(header, 28);
+        }
+
+        /**
+         * Copies the local header, the compressed data and the data descriptor (if any) of this entry unchanged.
+         */
+        private void copyRaw(RandomAccessFile in, OutputStream out) throws IOException {
+            long end = getDataOffset(in) + compressedSize;
+            if ((flags & FLAG_DATA_DESCRIPTOR) != 0) {
+                byte[] signature = new byte[4];
+                in.seek(end);
+                in.readFully(signature);
+                end += readInt(signature, 0) == DATA_DESCRIPTOR ? 16 : 12;
+            }
+            in.seek(localOffset);
+            byte[] buffer = new byte[(int) Math.min(end - localOffset, 64 * 1024)];
+            for (long remaining = end - localOffset; remaining > 0; ) {
+                int n = (int) Math.min(remaining, buffer.length);
+                in.readFully(buffer, 0, n);
+                out.write(buffer, 0, n);
+                remaining -= n;
+            }
+            data = null;
+        }
+
+        /**
+         * Writes a new local header and the (compressed) given contents, e.g. of the instrumented class, patching the
+         * central directory header accordingly.
+         */
+        private void writeContents(byte[] contents, OutputStream out) throws IOException {
+            CRC32 crc = new CRC32();
+            crc.update(contents);
+            byte[] compressed = contents;
+            if (method != STORED) {
+                Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+                try {
+                    deflater.setInput(contents);
+                    deflater.finish();
+                    byte[] buffer = new byte[contents.length + 64];
+                    int count = 0;
+                    while (!deflater.finished()) {
+                        if (count == buffer.length) {
+                            byte[] larger = new byte[buffer.length * 2];
+                            System.arraycopy(buffer, 0, larger, 0, count);
+                            buffer = larger;
+                        }
+                        count += deflater.deflate(buffer, count, buffer.length - count);
+                    }
+                    compressed = new byte[count];
+                    System.arraycopy(buffer, 0, compressed, 0, count);
+                }
+                finally {
+                    deflater.end();
+                }
+            }
+            int newFlags = flags & FLAG_UTF8;
+            int newMethod = method == STORED ? STORED : DEFLATED;
+            writeShort(cd, cdOffset + 8, newFlags);
+            writeShort(cd, cdOffset + 10, newMethod);
+            writeInt(cd, cdOffset + 16, crc.getValue());
+            writeInt(cd, cdOffset + 20, compressed.length);
+            writeInt(cd, cdOffset + 24, contents.length);
+
+            int nameLength = readShort(cd, cdOffset + 28);
+            byte[] header = new byte[LOCAL_HEADER_SIZE];
+            writeInt(header, 0, LOCAL_HEADER);
+            writeShort(header, 4, Math.max(readShort(cd, cdOffset + 6), 20));
+            writeShort(header, 6, newFlags);
+            writeShort(header, 8, newMethod);
+            // modification time and date, crc, compressed and uncompressed size
+            System.arraycopy(cd, cdOffset + 12, header, 10, 16);
+            writeShort(header, 26, nameLength);
+            writeShort(header, 28, 0);
+            out.write(header);
+            out.write(cd, cdOffset + CENTRAL_HEADER_SIZE, nameLength);
+            out.write(compressed);
+            data = null;
+        }
+
+        private void writeCentralHeader(OutputStream out) throws IOException {
+            writeInt(cd, cdOffset + 42, newOffset);
+            out.write(cd, cdOffset, cdLength);
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    private static int readShort(byte[] b, int offset) {
+        return (b[offset] & 0xFF) | (b[offset + 1] & 0xFF) << 8;
+    }
+
+    private static int readInt(byte[] b, int offset) {
+        return readShort(b, offset) | readShort(b, offset + 2) << 16;
+    }
+
+    private static long readUnsignedInt(byte[] b, int offset) {
+        return readInt(b, offset) & 0xFFFFFFFFL;
+    }
+
+    private static void writeShort(byte[] b, int offset, int value) {
+        b[offset] = (byte) value;
+        b[offset + 1] = (byte) (value >>> 8);
+    }
+
+    private static void writeInt(byte[] b, int offset, long value) {
+        writeShort(b, offset, (int) value);
+        writeShort(b, offset + 2, (int) (value >>> 16));
+    }
+
+}
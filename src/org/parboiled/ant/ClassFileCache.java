@@ -0,0 +1,388 @@
+/*
+ * Copyright 2000-2008 JetBrains s.r.o.
+ * Modified in 2009 by Mathias Doenitz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.parboiled.ant;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * An on-disk cache of instrumentation results, keyed by a hash of the original class file contents and a salt
+ * describing everything else the result depends on (tool version, options). The frames of a result may also depend on
+ * the classpath, through the common superclasses of the types merged by the frame computation, so every entry records
+ * these class hierarchy queries and their answers and is only used if the classpath of the lookup answers them the
+ * same way. Unlike e.g. a hash of the classpath this keeps entries valid for classpaths differing only in classes
+ * they do not depend on, and on other machines. Entries are written to a temporary file first and then atomically
+ * moved into place, so the cache can be shared by concurrently running processes, also on network file systems. The
+ * modification time of an entry serves as its last access time for the approximate LRU eviction of
+ * {@link #evict(long)}. Instances are thread-safe.
+ */
+public class ClassFileCache {
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String CLASS_SUFFIX = ".class";
+
+    // entries are only touched once per interval to keep the metadata writes on hits rare
+    private static final long TOUCH_INTERVAL_MILLIS = 60L * 60 * 1000;
+    // temporary files older than this are considered left over by crashed writers
+    private static final long STALE_TEMP_MILLIS = 24L * 60 * 60 * 1000;
+
+    private static volatile String toolVersion;
+
+    private final File dir;
+    private final byte[] salt;
+
+    /**
+     * @param dir  the cache directory, created on demand
+     * @param salt a description of everything besides the class file contents the cached results depend on
+     */
+    public ClassFileCache(File dir, String salt) {
+        this.dir = dir;
+        this.salt = salt.getBytes(Charset.forName("UTF-8"));
+    }
+
+    /**
+     * Computes the cache key for the given class file contents.
+     *
+     * @param classBytes the original class file contents
+     * @return the cache key
+     */
+    public String key(byte[] classBytes) {
+        return key(classBytes, classBytes.length);
+    }
+
+    /**
+     * Computes the cache key for the class file contents held in the beginning of the given buffer.
+     *
+     * @param buffer the buffer holding the original class file contents
+     * @param length the length of the class file
+     * @return the cache key
+     */
+    public String key(byte[] buffer, int length) {
+        MessageDigest digest = newDigest();
+        digest.update(salt);
+        digest.update((byte) 0);
+        digest.update(buffer, 0, length);
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Looks up the instrumentation result for the given key.
+     *
+     * @param key      the cache key
+     * @param resolver the class hierarchy of the classpath the result is to be used with
+     * @return the instrumented class file contents, an empty array if the class is cached as not affected by
+     *         instrumentation or null if there is no entry for the key or its frames were computed from a different
+     *         class hierarchy
+     * @throws IOException if the entry could not be read
+     */
+    public byte[] get(String key, ClassHierarchyResolver resolver) throws IOException {
+        File entry = entry(key);
+        byte[] contents;
+        try {
+            contents = Files.readAllBytes(entry.toPath());
+        }
+        catch (NoSuchFileException e) {
+            return null;
+        }
+        ByteArrayInputStream bytes = new ByteArrayInputStream(contents);
+        DataInputStream inputStream = new DataInputStream(bytes);
+        for (int queries = inputStream.readInt(); queries > 0; queries--) {
+            String type1 = inputStream.readUTF();
+            String type2 = inputStream.readUTF();
+            if (!inputStream.readUTF().equals(getCommonSuperClass(resolver, type1, type2))) {
+                return null;
+            }
+        }
+        long now = System.currentTimeMillis();
+        if (entry.lastModified() < now - TOUCH_INTERVAL_MILLIS) {
+            // failing to touch only makes the entry an earlier eviction candidate
+            entry.setLastModified(now);
+        }
+        return Arrays.copyOfRange(contents, contents.length - bytes.available(), contents.length);
+    }
+
+    /**
+     * Stores the instrumentation result for the given key.
+     *
+     * @param key               the cache key
+     * @param classBytes        the instrumented class file contents or null if the class was not affected by
+     *                          instrumentation
+     * @param superClassQueries the class hierarchy queries answered for computing the frames of the result, see
+     *                          {@link AntClassWriter#getSuperClassQueries()}
+     * @throws IOException if the entry could not be written
+     */
+    public void put(String key, byte[] classBytes, Collection<String[]> superClassQueries) throws IOException {
+        File entry = entry(key);
+        File parent = entry.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException("Could not create cache directory " + parent);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream outputStream = new DataOutputStream(bytes);
+        outputStream.writeInt(superClassQueries.size());
+        for (String[] query : superClassQueries) {
+            for (String type : query) {
+                outputStream.writeUTF(type);
+            }
+        }
+        if (classBytes != null) {
+            outputStream.write(classBytes);
+        }
+        outputStream.flush();
+        File temp = File.createTempFile(entry.getName(), TEMP_SUFFIX, parent);
+        try {
+            Files.write(temp.toPath(), bytes.toByteArray());
+            move(temp.toPath(), entry.toPath());
+        }
+        finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    /**
+     * Deletes the least recently used entries until the total size of the cache does not exceed the given maximum.
+     * Also deletes temporary files left over by crashed writers. Entries concurrently deleted by another process are
+     * ignored, readers of a deleted entry simply see a cache miss.
+     *
+     * @param maxSize the maximum total size of all entries in bytes
+     * @return the number of deleted entries
+     * @throws IOException if the cache directory could not be listed
+     */
+    public int evict(long maxSize) throws IOException {
+        List<Entry> entries = new ArrayList<Entry>();
+        long size = 0;
+        long staleTime = System.currentTimeMillis() - STALE_TEMP_MILLIS;
+        File[] subDirs = dir.listFiles();
+        if (subDirs == null) {
+            return 0;
+        }
+        for (File subDir : subDirs) {
+            File[] files = subDir.listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                long lastModified = file.lastModified();
+                if (file.getName().endsWith(TEMP_SUFFIX)) {
+                    if (lastModified != 0 && lastModified < staleTime) {
+                        Files.deleteIfExists(file.toPath());
+                    }
+                } else {
+                    Entry entry = new Entry(file, file.length(), lastModified);
+                    entries.add(entry);
+                    size += entry.size;
+                }
+            }
+        }
+        if (size <= maxSize) {
+            return 0;
+        }
+        Collections.sort(entries, new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                return a.lastModified < b.lastModified ? -1 : a.lastModified == b.lastModified ? 0 : 1;
+            }
+        });
+        int deleted = 0;
+        for (int i = 0; i < entries.size() && size > maxSize; i++) {
+            Entry entry = entries.get(i);
+            if (Files.deleteIfExists(entry.file.toPath())) {
+                deleted++;
+            }
+            size -= entry.size;
+        }
+        return deleted;
+    }
+
+    /**
+     * Determines the version of the running tool for the salt. Since snapshot builds all carry the same version a hash
+     * of the class files of the tool is included as well. Unlike e.g. the modification time of the jar it is the same
+     * on every machine running the same build of the tool, so that a cache can be shared between them.
+     *
+     * @return the tool version
+     */
+    public static String getToolVersion() {
+        String version = toolVersion;
+        if (version == null) {
+            toolVersion = version = ClassFileCache.class.getPackage().getImplementationVersion() + '@' + hashTool();
+        }
+        return version;
+    }
+
+    /**
+     * @return a hash of the names and contents of the class files in the jar (or class directory) the tool was loaded
+     *         from, independent of their order and modification times, or "unknown" if they could not be read
+     */
+    private static String hashTool() {
+        CodeSource codeSource = ClassFileCache.class.getProtectionDomain().getCodeSource();
+        if (codeSource == null) {
+            return "unknown";
+        }
+        try {
+            File location = new File(codeSource.getLocation().toURI());
+            MessageDigest digest = newDigest();
+            if (location.isDirectory()) {
+                hashClassFiles(location, "", digest);
+            } else {
+                JarFile jar = new JarFile(location);
+                try {
+                    List<String> names = new ArrayList<String>();
+                    for (Enumeration<JarEntry> entries = jar.entries(); entries.hasMoreElements();) {
+                        String name = entries.nextElement().getName();
+                        if (name.endsWith(CLASS_SUFFIX)) {
+                            names.add(name);
+                        }
+                    }
+                    Collections.sort(names);
+                    for (String name : names) {
+                        InputStream inputStream = jar.getInputStream(jar.getEntry(name));
+                        try {
+                            hashClassFile(name, inputStream, digest);
+                        }
+                        finally {
+                            inputStream.close();
+                        }
+                    }
+                }
+                finally {
+                    jar.close();
+                }
+            }
+            return toHex(digest.digest());
+        }
+        catch (URISyntaxException e) {
+            return "unknown";
+        }
+        catch (IllegalArgumentException e) {
+            // not a file location
+            return "unknown";
+        }
+        catch (IOException e) {
+            return "unknown";
+        }
+    }
+
+    private static void hashClassFiles(File dir, String path, MessageDigest digest) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IOException("Could not list " + dir);
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            String name = path + file.getName();
+            if (file.isDirectory()) {
+                hashClassFiles(file, name + '/', digest);
+            } else if (name.endsWith(CLASS_SUFFIX)) {
+                InputStream inputStream = new FileInputStream(file);
+                try {
+                    hashClassFile(name, inputStream, digest);
+                }
+                finally {
+                    inputStream.close();
+                }
+            }
+        }
+    }
+
+    private static void hashClassFile(String name, InputStream inputStream, MessageDigest digest) throws IOException {
+        digest.update(name.getBytes(Charset.forName("UTF-8")));
+        digest.update((byte) 0);
+        byte[] buffer = new byte[8192];
+        for (int n; (n = inputStream.read(buffer)) > 0;) {
+            digest.update(buffer, 0, n);
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] hash) {
+        char[] chars = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            chars[2 * i] = HEX_DIGITS[(hash[i] >> 4) & 0xF];
+            chars[2 * i + 1] = HEX_DIGITS[hash[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
+    // a type no longer on the classpath makes the answer differ just as well
+    private static String getCommonSuperClass(ClassHierarchyResolver resolver, String type1, String type2) {
+        try {
+            return resolver.getCommonSuperClass(type1, type2);
+        }
+        catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private File entry(String key) {
+        return new File(new File(dir, key.substring(0, 2)), key.substring(2));
+    }
+
+    private static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static class Entry {
+        private final File file;
+        private final long size;
+        private final long lastModified;
+
+        private Entry(File file, long size, long lastModified) {
+            this.file = file;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2000-2008 JetBrains s.r.o.
+ * Modified in 2009 by Mathias Doenitz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.parboiled.ant;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Resolves the type hierarchy of classes on a classpath by reading only the headers of their class files, i.e. without
+ * ever loading or defining any classes. Class files in jars are located through an index of the entries of every jar
+ * built on first use, which can be shared with other resolvers through a {@link ClasspathCache}. The hierarchy
+ * information is memoized. Instances are thread-safe.
+ */
+public class ClassHierarchyResolver implements Closeable {
+
+    private static final String OBJECT = "java/lang/Object";
+    private static final String CLASS_SUFFIX = ".class";
+
+    private final Map<String, byte[]> classes;
+    private final File[] elements;
+    private final ClasspathCache classpathCache;
+    private final boolean ownsClasspathCache;
+    private final ClasspathCache.Jar[] jars;
+    private final boolean[] noJar;
+    private final ConcurrentMap<String, TypeInfo> typeInfos = new ConcurrentHashMap<String, TypeInfo>();
+    private final ConcurrentMap<String, Set<String>> supertypes = new ConcurrentHashMap<String, Set<String>>();
+
+    /**
+     * Creates a resolver for the given classpath.
+     *
+     * @param pathElements the directories and jar files making up the classpath, in lookup order
+     */
+    public ClassHierarchyResolver(String[] pathElements) {
+        this(pathElements, Collections.<String, byte[]>emptyMap());
+    }
+
+    /**
+     * Creates a resolver for the given classpath, consulting the given classes first.
+     *
+     * @param pathElements the directories and jar files making up the classpath, in lookup order
+     * @param classes      the contents of class files not (yet) written to the classpath, keyed by internal name
+     */
+    public ClassHierarchyResolver(String[] pathElements, Map<String, byte[]> classes) {
+        this(pathElements, classes, new ClasspathCache(), true);
+    }
+
+    /**
+     * Creates a resolver for the given classpath taking its jars from the given cache, consulting the given classes
+     * first. Closing the resolver leaves the cache open.
+     *
+     * @param pathElements   the directories and jar files making up the classpath, in lookup order
+     * @param classes        the contents of class files not (yet) written to the classpath, keyed by internal name
+     * @param classpathCache the cache of the opened and indexed jars
+     */
+    ClassHierarchyResolver(String[] pathElements, Map<String, byte[]> classes, ClasspathCache classpathCache) {
+        this(pathElements, classes, classpathCache, false);
+    }
+
+    private ClassHierarchyResolver(String[] pathElements, Map<String, byte[]> classes, ClasspathCache classpathCache,
+                                   boolean ownsClasspathCache) {
+        this.classes = classes;
+        this.classpathCache = classpathCache;
+        this.ownsClasspathCache = ownsClasspathCache;
+        elements = new File[pathElements.length];
+        for (int i = 0; i < pathElements.length; i++) {
+            elements[i] = ClasspathCache.normalize(new File(pathElements[i]));
+        }
+        jars = new ClasspathCache.Jar[pathElements.length];
+        noJar = new boolean[pathElements.length];
+    }
+
+    /**
+     * Determines the most specific common superclass of the two given types, following the semantics of
+     * {@link org.objectweb.asm.ClassWriter#getCommonSuperClass(String, String)}.
+     *
+     * @param type1 the internal name of the first type
+     * @param type2 the internal name of the second type
+     * @return the internal name of the common superclass
+     */
+    public String getCommonSuperClass(String type1, String type2) {
+        if (isAssignableFrom(type1, type2)) {
+            return type1;
+        }
+        if (isAssignableFrom(type2, type1)) {
+            return type2;
+        }
+        if (getTypeInfo(type1).isInterface || getTypeInfo(type2).isInterface) {
+            return OBJECT;
+        }
+        String type = type1;
+        do {
+            type = getTypeInfo(type).superName;
+        } while (!isAssignableFrom(type, type2));
+        return type;
+    }
+
+    /**
+     * Discards the memoized hierarchy information of the given type, e.g. since its class file has been rewritten.
+     *
+     * @param type the internal name of the type
+     */
+    public void invalidate(String type) {
+        typeInfos.remove(type);
+        // the supertype sets of all subtypes include the supertypes of the type, they are cheaply rebuilt
+        supertypes.clear();
+    }
+
+    /**
+     * Closes the given jar file, e.g. since it is about to be replaced, and removes it from the {@link ClasspathCache}
+     * it is taken from. If the jar is on the classpath of this resolver it is opened again when next needed.
+     * It must not be in use by any other resolver.
+     *
+     * @param file the jar file
+     * @throws IOException if the jar file could not be closed
+     */
+    synchronized void release(File file) throws IOException {
+        File location = ClasspathCache.normalize(file);
+        for (int i = 0; i < elements.length; i++) {
+            if (elements[i].equals(location)) {
+                jars[i] = null;
+                noJar[i] = false;
+            }
+        }
+        classpathCache.evict(location);
+    }
+
+    /**
+     * Closes all jar files opened by this resolver, unless they are shared through a {@link ClasspathCache}.
+     *
+     * @throws IOException if a jar file could not be closed
+     */
+    public synchronized void close() throws IOException {
+        if (ownsClasspathCache) {
+            classpathCache.close();
+        }
+        Arrays.fill(jars, null);
+    }
+
+    private boolean isAssignableFrom(String type1, String type2) {
+        return type1.equals(type2) || getSupertypes(type2).contains(type1);
+    }
+
+    private Set<String> getSupertypes(String type) {
+        Set<String> result = supertypes.get(type);
+        if (result == null) {
+            result = new HashSet<String>();
+            TypeInfo info = getTypeInfo(type);
+            if (info.superName != null) {
+                result.add(info.superName);
+                result.addAll(getSupertypes(info.superName));
+            }
+            for (String itf : info.interfaces) {
+                result.add(itf);
+                result.addAll(getSupertypes(itf));
+            }
+            result = Collections.unmodifiableSet(result);
+            supertypes.putIfAbsent(type, result);
+        }
+        return result;
+    }
+
+    private TypeInfo getTypeInfo(String type) {
+        TypeInfo info = typeInfos.get(type);
+        if (info == null) {
+            try {
+                InputStream inputStream = openClassFile(type + CLASS_SUFFIX);
+                if (inputStream == null) {
+                    throw new RuntimeException(type.replace('/', '.'));
+                }
+                try {
+                    info = new TypeInfo(new ClassReader(inputStream));
+                }
+                finally {
+                    inputStream.close();
+                }
+            }
+            catch (IOException e) {
+                throw new RuntimeException("Could not read class file of " + type.replace('/', '.') + ": " +
+                        e.getMessage());
+            }
+            typeInfos.putIfAbsent(type, info);
+        }
+        return info;
+    }
+
+    /**
+     * Opens the class file with the given name from the in-memory classes or the first classpath element containing it,
+     * falling back to the resources of the running JVM (which e.g. provide the JDK classes on runtimes without an
+     * rt.jar).
+     *
+     * @param name the name of the class file, i.e. the internal class name followed by ".class"
+     * @return a stream of the class file contents or null if the class file could not be found
+     * @throws IOException if the class file could not be opened
+     */
+    protected InputStream openClassFile(String name) throws IOException {
+        byte[] bytes = classes.get(name.substring(0, name.length() - CLASS_SUFFIX.length()));
+        if (bytes != null) {
+            return new ByteArrayInputStream(bytes);
+        }
+        for (int i = 0; i < elements.length; i++) {
+            ClasspathCache.Jar jar = getJar(i);
+            if (jar != null) {
+                if (jar.classFiles.contains(name)) {
+                    return jar.file.getInputStream(jar.file.getEntry(name));
+                }
+            } else if (elements[i].isDirectory()) {
+                File file = new File(elements[i], name);
+                if (file.isFile()) {
+                    return new FileInputStream(file);
+                }
+            }
+        }
+        return ClassLoader.getSystemResourceAsStream(name);
+    }
+
+    /**
+     * @return the jar at the given position of the classpath or null if the element is no readable archive
+     */
+    private ClasspathCache.Jar getJar(int i) {
+        // jars only have final fields, so even an unsynchronized read sees them fully initialized
+        ClasspathCache.Jar jar = jars[i];
+        return jar != null || noJar[i] ? jar : openJar(i);
+    }
+
+    private synchronized ClasspathCache.Jar openJar(int i) {
+        if (jars[i] == null && !noJar[i]) {
+            if (elements[i].isFile()) {
+                try {
+                    jars[i] = classpathCache.getJar(elements[i]);
+                }
+                catch (IOException e) {
+                    // not a readable archive, just like the JVM we ignore such classpath elements
+                    noJar[i] = true;
+                }
+            } else {
+                noJar[i] = true;
+            }
+        }
+        return jars[i];
+    }
+
+    private static class TypeInfo {
+        private final String superName;
+        private final String[] interfaces;
+        private final boolean isInterface;
+
+        private TypeInfo(ClassReader reader) {
+            superName = reader.getSuperName();
+            interfaces = reader.getInterfaces();
+            isInterface = (reader.getAccess() & Opcodes.ACC_INTERFACE) != 0;
+        }
+    }
+
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2000-2008 JetBrains s.r.o.
+ * Modified in 2009 by Mathias Doenitz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.parboiled.ant;
+
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.parboiled.compiler.notNullVerification.InstrumentationOptions;
+import org.parboiled.compiler.notNullVerification.NotNullVerifyingInstrumenter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Applies the {@link NotNullVerifyingInstrumenter} and the visitors of all additional {@link ClassVisitorFactory}s to
+ * single classes held in memory, independently of where their class files come from or go to. Instances are
+ * thread-safe.
+ */
+class ClassInstrumenter {
+
+    private final Task task;
+    private final InstrumentationOptions options;
+    private final int flags;
+    private final ClassHierarchyResolver resolver;
+    private final InstrumentationReport report;
+    private final ClassFileCache cache;
+    private final List<ClassVisitorFactory> factories;
+    private final AtomicInteger skippedByPrescan = new AtomicInteger();
+    private final AtomicInteger elidedChecks = new AtomicInteger();
+    private final AtomicInteger cacheHits = new AtomicInteger();
+    private final AtomicInteger checks = new AtomicInteger();
+    private final AtomicInteger checksOutOfScope = new AtomicInteger();
+    private final AtomicInteger checksExcluded = new AtomicInteger();
+
+    /**
+     * @param task      the task to log to
+     * @param options   the options for the generated code
+     * @param flags     the flags for the class writer
+     * @param resolver  the class hierarchy resolver to use for frame computation
+     * @param report    the report to add the statistics of every instrumented class to, may be null
+     * @param cache     the cache of instrumentation results to consult before instrumenting a class, may be null
+     * @param factories the factories of the visitors to chain between the instrumentation and the class writer
+     */
+    ClassInstrumenter(Task task, InstrumentationOptions options, int flags, ClassHierarchyResolver resolver,
+                      InstrumentationReport report, ClassFileCache cache, List<ClassVisitorFactory> factories) {
+        this.task = task;
+        this.options = options;
+        this.flags = flags;
+        this.resolver = resolver;
+        this.report = report;
+        this.cache = cache;
+        this.factories = factories;
+    }
+
+    /**
+     * Creates the record collecting the statistics of the given class file, if a report is being generated.
+     * The record is added to the report by {@link #instrument(byte[], int, String, InstrumentationReport.ClassRecord)}
+     * if the class is affected by instrumentation and not served from the cache, its read and write times are to be
+     * filled in by the caller.
+     *
+     * @param path the location of the class file
+     * @return a new record or null if no report is generated
+     */
+    InstrumentationReport.ClassRecord createRecord(String path) {
+        return report != null ? new InstrumentationReport.ClassRecord(path) : null;
+    }
+
+    /**
+     * Instruments the given class.
+     *
+     * @param classBytes the class file contents
+     * @param path       the location of the class file, for logging
+     * @return the instrumented class file contents or null if the class was not affected by instrumentation
+     */
+    byte[] instrument(byte[] classBytes, String path) {
+        return instrument(classBytes, classBytes.length, path, null);
+    }
+
+    /**
+     * Instruments the class held in the beginning of the given buffer.
+     *
+     * @param buffer the buffer holding the class file contents, only read during the call so it can be reused
+     * @param length the length of the class file
+     * @param path   the location of the class file, for logging
+     * @param record the record for the statistics of the class, may be null
+     * @return the instrumented class file contents or null if the class was not affected by instrumentation
+     */
+    byte[] instrument(byte[] buffer, int length, String path, InstrumentationReport.ClassRecord record) {
+        long start = System.nanoTime();
+        ClassReader reader = new ClassReader(buffer, 0, length);
+        // additional visitors may transform any class
+        if (factories.isEmpty() && !NotNullVerifyingInstrumenter.mayRequireInstrumentation(reader)) {
+            skippedByPrescan.incrementAndGet();
+            return null;
+        }
+        String key = null;
+        if (cache != null) {
+            key = cache.key(buffer, length);
+            byte[] cached = getCached(key, resolver, path);
+            if (cached != null) {
+                cacheHits.incrementAndGet();
+                return cached.length > 0 ? cached : null;
+            }
+        }
+        task.log("Adding @NotNull assertions to " + path, Project.MSG_VERBOSE);
+        // seeded with the reader the writer copies the constant pool and all methods no visitor touches verbatim
+        AntClassWriter writer = new AntClassWriter(reader, flags, resolver);
+        ClassVisitor[] visitors = new ClassVisitor[factories.size()];
+        ClassVisitor next = writer;
+        for (int i = visitors.length - 1; i >= 0; i--) {
+            next = visitors[i] = factories.get(i).createVisitor(next);
+        }
+        NotNullVerifyingInstrumenter instrumenter = new NotNullVerifyingInstrumenter(task, next, options);
+        instrumenter.analyze(reader);
+        reader.accept(instrumenter, 0);
+        elidedChecks.addAndGet(instrumenter.getElidedChecks());
+        for (int methodChecks : instrumenter.getChecks().values()) {
+            checks.addAndGet(methodChecks);
+        }
+        checksOutOfScope.addAndGet(instrumenter.getChecksOutOfScope());
+        checksExcluded.addAndGet(instrumenter.getChecksExcluded());
+        boolean modification = instrumenter.isModification();
+        for (int i = 0; i < visitors.length; i++) {
+            modification |= factories.get(i).isModification(visitors[i]);
+        }
+        byte[] instrumented = modification ? writer.toByteArray() : null;
+        if (cache != null) {
+            putCached(key, instrumented, writer.getSuperClassQueries(), path);
+        }
+        if (instrumented == null) {
+            return null;
+        }
+        if (record != null) {
+            record.transformNanos = System.nanoTime() - start;
+            record.recordTransformation(reader, length, instrumented, instrumenter.getChecks());
+            report.add(record);
+        }
+        return instrumented;
+    }
+
+    /**
+     * Discards all information about the given class memoized for frame computation, since its class file changed.
+     *
+     * @param className the internal name of the class
+     */
+    void invalidate(String className) {
+        resolver.invalidate(className);
+    }
+
+    /**
+     * Closes the given jar file if it is open for frame computation, since it is about to be replaced.
+     *
+     * @param archive the jar file
+     * @throws IOException if the jar file could not be closed
+     */
+    void release(File archive) throws IOException {
+        resolver.release(archive);
+    }
+
+    // cache failures must never fail the build, the class is simply instrumented (again)
+    private byte[] getCached(String key, ClassHierarchyResolver resolver, String path) {
+        try {
+            return cache.get(key, resolver);
+        }
+        catch (IOException e) {
+            task.log("Could not read cache entry for " + path + ": " + e.getMessage(), Project.MSG_WARN);
+            return null;
+        }
+    }
+
+    private void putCached(String key, byte[] classBytes, Collection<String[]> superClassQueries, String path) {
+        try {
+            cache.put(key, classBytes, superClassQueries);
+        }
+        catch (IOException e) {
+            task.log("Could not write cache entry for " + path + ": " + e.getMessage(), Project.MSG_WARN);
+        }
+    }
+
+    /**
+     * @return the number of classes skipped since they do not carry any @NotNull annotations or are instrumented
+     * already
+     */
+    int getSkippedByPrescan() {
+        return skippedByPrescan.get();
+    }
+
+    /**
+     * @return the number of checks omitted since they were proven to be redundant
+     */
+    int getElidedChecks() {
+        return elidedChecks.get();
+    }
+
+    /**
+     * @return the number of checks inserted, not counting the classes taken from the cache
+     */
+    int getChecks() {
+        return checks.get();
+    }
+
+    /**
+     * @return the number of checks omitted since their methods lie outside of the visibility scope
+     */
+    int getChecksOutOfScope() {
+        return checksOutOfScope.get();
+    }
+
+    /**
+     * @return the number of checks omitted since their methods are not selected by the include and exclude patterns
+     */
+    int getChecksExcluded() {
+        return checksExcluded.get();
+    }
+
+    /**
+     * @return the number of classes whose instrumentation result was taken from the cache
+     */
+    int getCacheHits() {
+        return cacheHits.get();
+    }
+
+}
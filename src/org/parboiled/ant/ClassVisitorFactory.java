@@ -0,0 +1,50 @@
+/*
+ * Copyright 2000-2008 JetBrains s.r.o.
+ * Modified in 2009 by Mathias Doenitz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.parboiled.ant;
+
+import org.objectweb.asm.ClassVisitor;
+
+/**
+ * Creates the visitors of an additional bytecode transformation applied by {@link Javacn} in the same pass as the
+ * @NotNull instrumentation, so all transformations share a single parse, frame computation and write of every class.
+ * The visitors see the output of the @NotNull instrumentation and delegate to the class writer (or to the visitor of
+ * the next factory). Factories are given as nested visitor elements or found through {@link java.util.ServiceLoader}
+ * and must be thread-safe, since classes are transformed by several threads concurrently.
+ * <p/>
+ * In preserveFrames mode the class writer neither computes frames nor maximum stack sizes, so the visitors must then
+ * keep both valid themselves.
+ */
+public interface ClassVisitorFactory {
+
+    /**
+     * Creates the visitor transforming a single class.
+     *
+     * @param next the visitor to delegate to
+     * @return the new visitor
+     */
+    ClassVisitor createVisitor(ClassVisitor next);
+
+    /**
+     * Determines whether the given visitor modified the class it has visited. Classes modified by neither the @NotNull
+     * instrumentation nor any visitor are not rewritten.
+     *
+     * @param visitor a visitor created by this factory, after the class has been visited completely
+     * @return true if the class has been modified
+     */
+    boolean isModification(ClassVisitor visitor);
+
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2000-2008 JetBrains s.r.o.
+ * Modified in 2009 by Mathias Doenitz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.parboiled.ant;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * The jar files on the classpaths of several {@link ClassHierarchyResolver}s, so that every jar is opened only once
+ * however many task invocations have it on their classpath. Jars are identified by their normalized absolute path and
+ * reopened if they were modified since. The indexes of the class files the jars contain are kept for the lifetime of
+ * the JVM, independently of the open jars, so that they are built only once even by tasks not sharing a cache, e.g.
+ * those of the modules of a multi-module build. Within ant builds the cache is shared through a
+ * {@link ClasspathCacheListener}, but it does not depend on ant itself, since the resolvers of the java agent use it
+ * as well. Instances are thread-safe.
+ */
+class ClasspathCache implements Closeable {
+
+    private static final String CLASS_SUFFIX = ".class";
+
+    // keyed by the normalized location, an index is valid as long as the size and modification time of the jar match
+    private static final ConcurrentMap<File, Index> indexes = new ConcurrentHashMap<File, Index>();
+
+    private final Map<File, Jar> jars = new HashMap<File, Jar>();
+    // jars modified while open may still be read by concurrently running tasks, so they are closed at the end
+    private final List<Jar> staleJars = new ArrayList<Jar>();
+
+    /**
+     * @param file a classpath element
+     * @return the given file with an absolute and normalized path, identifying the jar in this cache
+     */
+    static File normalize(File file) {
+        return file.getAbsoluteFile().toPath().normalize().toFile();
+    }
+
+    /**
+     * Returns the opened and indexed jar at the given location, opening it if it is not cached or was modified since
+     * it had been opened.
+     *
+     * @param file the normalized location of the jar
+     * @return the jar
+     * @throws IOException if the file is no readable archive
+     */
+    synchronized Jar getJar(File file) throws IOException {
+        Jar jar = jars.get(file);
+        if (jar != null && jar.isCurrent()) {
+            return jar;
+        }
+        if (jar != null) {
+            jars.remove(file);
+            staleJars.add(jar);
+        }
+        jar = new Jar(file);
+        jars.put(file, jar);
+        return jar;
+    }
+
+    /**
+     * Closes the jar at the given location, e.g. since it is about to be replaced by the build, and removes it from
+     * the cache. It must not be in use by any resolver anymore.
+     *
+     * @param file the location of the jar
+     * @throws IOException if the jar could not be closed
+     */
+    synchronized void evict(File file) throws IOException {
+        Jar jar = jars.remove(normalize(file));
+        if (jar != null) {
+            jar.file.close();
+        }
+    }
+
+    /**
+     * @return the number of jars currently open, including the ones modified since they had been opened
+     */
+    synchronized int getOpenJars() {
+        return jars.size() + staleJars.size();
+    }
+
+    /**
+     * Closes all jars. Jars requested afterwards are opened again.
+     *
+     * @throws IOException if a jar could not be closed
+     */
+    public synchronized void close() throws IOException {
+        List<Jar> all = new ArrayList<Jar>(jars.values());
+        all.addAll(staleJars);
+        jars.clear();
+        staleJars.clear();
+        IOException exception = null;
+        for (Jar jar : all) {
+            try {
+                jar.file.close();
+            }
+            catch (IOException e) {
+                exception = e;
+            }
+        }
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    /**
+     * An open jar file and the names of the class files it contains.
+     */
+    static class Jar {
+        final JarFile file;
+        final Set<String> classFiles;
+        private final File location;
+        private final long lastModified;
+        private final long length;
+
+        private Jar(File location) throws IOException {
+            this.location = location;
+            // taken before opening, so a modification while indexing is detected on the next lookup
+            lastModified = location.lastModified();
+            length = location.length();
+            file = new JarFile(location);
+            Index index = indexes.get(location);
+            if (index == null || index.lastModified != lastModified || index.length != length) {
+                index = new Index(file, lastModified, length);
+                indexes.put(location, index);
+            }
+            classFiles = index.classFiles;
+        }
+
+        private boolean isCurrent() {
+            return location.lastModified() == lastModified && location.length() == length;
+        }
+    }
+
+    /**
+     * The names of the class files in a certain version of a jar, identified by its size and modification time.
+     */
+    private static class Index {
+        private final Set<String> classFiles;
+        private final long lastModified;
+        private final long length;
+
+        private Index(JarFile file, long lastModified, long length) {
+            this.lastModified = lastModified;
+            this.length = length;
+            Set<String> names = new HashSet<String>();
+            for (Enumeration<JarEntry> entries = file.entries(); entries.hasMoreElements();) {
+                String name = entries.nextElement().getName();
+                if (name.endsWith(CLASS_SUFFIX)) {
+                    names.add(name);
+                }
+            }
+            classFiles = Collections.unmodifiableSet(names);
+        }
+    }
+
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2000-2008 JetBrains s.r.o.
+ * Modified in 2009 by Mathias Doenitz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.parboiled.ant;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.SubBuildListener;
+
+import java.io.IOException;
+
+/**
+ * Shares a {@link ClasspathCache} between the tasks of a project and of all projects of the ant and subant calls made
+ * from it, and closes it when that project finishes. Kept apart from the cache, which must not depend on ant.
+ */
+class ClasspathCacheListener implements SubBuildListener {
+
+    private final ClasspathCache cache = new ClasspathCache();
+    private final Project project;
+
+    private ClasspathCacheListener(Project project) {
+        this.project = project;
+    }
+
+    /**
+     * Returns the cache shared by all tasks of the given project. Since ant hands the build listeners of a project down
+     * to the projects of its ant and subant calls, these share the cache as well, so a multi-module build whose main
+     * project runs a javacn task before calling the modules shares one cache across all of them. Otherwise every
+     * called project creates a cache of its own, shared only with the projects it calls in turn, which still reuses
+     * the jar indexes built by the caches of the other projects (see {@link ClasspathCache}). Ant reports the end
+     * of a called project by a sub build event instead of a build event, so the cache is closed when the project it
+     * was created for finishes, be it the main project of the build or the project of an ant or subant call.
+     *
+     * @param project the project of the calling task
+     * @return the cache, registered to be closed when the project finishes
+     */
+    static ClasspathCache forProject(Project project) {
+        synchronized (ClasspathCacheListener.class) {
+            for (Object listener : project.getBuildListeners()) {
+                if (listener instanceof ClasspathCacheListener) {
+                    return ((ClasspathCacheListener) listener).cache;
+                }
+            }
+            ClasspathCacheListener listener = new ClasspathCacheListener(project);
+            project.addBuildListener(listener);
+            return listener.cache;
+        }
+    }
+
+    public void buildFinished(BuildEvent event) {
+        if (event.getProject() == project) {
+            close();
+        }
+    }
+
+    public void subBuildFinished(BuildEvent event) {
+        // the projects called by the project the cache belongs to report their end as well
+        if (event.getProject() == project) {
+            close();
+        }
+    }
+
+    private void close() {
+        try {
+            cache.close();
+        }
+        catch (IOException e) {
+            project.log("Failed to close classpath: " + e.getMessage(), Project.MSG_WARN);
+        }
+    }
+
+    public void subBuildStarted(BuildEvent event) {
+    }
+
+    public void buildStarted(BuildEvent event) {
+    }
+
+    public void targetStarted(BuildEvent event) {
+    }
+
+    public void targetFinished(BuildEvent event) {
+    }
+
+    public void taskStarted(BuildEvent event) {
+    }
+
+    public void taskFinished(BuildEvent event) {
+    }
+
+    public void messageLogged(BuildEvent event) {
+    }
+
+}
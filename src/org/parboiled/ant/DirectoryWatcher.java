@@ -0,0 +1,279 @@
+/*
+ * Copyright 2000-2008 JetBrains s.r.o.
+ * Modified in 2009 by Mathias Doenitz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.parboiled.ant;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Watches a directory tree and instruments every class file created or modified in it, keeping the classpath index,
+ * the class hierarchy information and the (JIT compiled) instrumenter resident between the changes.
+ * Events are collected until the tree has been quiet for a few milliseconds, so class files are usually not read while
+ * still being written. The class files present at the start are remembered by their size and modification time, which
+ * the directory walk provides without reading them, and the class files instrumented by the watcher by their size and
+ * checksum, so neither the class files written by the watcher itself nor merely touched ones are instrumented again.
+ * (Touched class files of the start are passed to the instrumenter, whose prescan quickly skips them.)
+ */
+class DirectoryWatcher {
+
+    private static final String CLASS_SUFFIX = ".class";
+    private static final long QUIET_MILLIS = 20;
+    private static final long MAX_DELAY_MILLIS = 250;
+
+    private final Javacn task;
+    private final ClassInstrumenter instrumenter;
+    private final ExecutorService executor;
+    private final Map<WatchKey, Path> keys = new HashMap<WatchKey, Path>();
+    private final Set<Path> dirs = new HashSet<Path>();
+    private final Map<Path, Stamp> instrumented = new ConcurrentHashMap<Path, Stamp>();
+    private Path root;
+    private WatchService watchService;
+
+    /**
+     * @param task         the task to instrument the class files and to log to
+     * @param instrumenter the instrumenter to use
+     * @param executor     the executor to instrument the class files of a batch of changes in parallel on
+     */
+    DirectoryWatcher(Javacn task, ClassInstrumenter instrumenter, ExecutorService executor) {
+        this.task = task;
+        this.instrumenter = instrumenter;
+        this.executor = executor;
+    }
+
+    /**
+     * Watches the given directory tree until the calling thread is interrupted.
+     *
+     * @param dir the root of the directory tree, whose class files are assumed to be instrumented already
+     * @throws IOException          if the directory tree could not be watched
+     * @throws InterruptedException if the calling thread was interrupted
+     */
+    void watch(Path dir) throws IOException, InterruptedException {
+        root = dir;
+        watchService = FileSystems.getDefault().newWatchService();
+        try {
+            register(root, null);
+            task.log("Watching " + root + " for class files to instrument", Project.MSG_INFO);
+            Set<Path> pending = new LinkedHashSet<Path>();
+            long pendingSince = 0;
+            while (true) {
+                WatchKey key;
+                if (pending.isEmpty()) {
+                    key = watchService.take();
+                    pendingSince = System.currentTimeMillis();
+                } else if (System.currentTimeMillis() - pendingSince < MAX_DELAY_MILLIS) {
+                    key = watchService.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS);
+                } else {
+                    key = null;
+                }
+                if (key == null) {
+                    instrument(pending);
+                    pending.clear();
+                    continue;
+                }
+                Path parent = keys.get(key);
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // events were lost, consider all class files changed
+                        register(root, pending);
+                    } else if (parent != null) {
+                        Path path = parent.resolve((Path) event.context());
+                        if (Files.isDirectory(path)) {
+                            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                                register(path, pending);
+                            }
+                        } else if (path.getFileName().toString().endsWith(CLASS_SUFFIX)) {
+                            pending.add(path);
+                        }
+                    }
+                }
+                if (!key.reset()) {
+                    dirs.remove(keys.remove(key));
+                }
+            }
+        }
+        finally {
+            watchService.close();
+        }
+    }
+
+    /**
+     * Registers the given directory tree with the watch service.
+     *
+     * @param dir     the root of the directory tree
+     * @param pending the set to add all class files found in the tree to or null if they are instrumented already
+     */
+    private void register(Path dir, final Set<Path> pending) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (dirs.add(dir)) {
+                    keys.put(dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY), dir);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (file.getFileName().toString().endsWith(CLASS_SUFFIX)) {
+                    if (pending != null) {
+                        pending.add(file);
+                    } else {
+                        instrumented.put(file, Stamp.of(attrs));
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void instrument(Set<Path> paths) throws InterruptedException {
+        long start = System.nanoTime();
+        List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+        for (final Path path : paths) {
+            tasks.add(new Callable<Boolean>() {
+                public Boolean call() {
+                    return instrument(path);
+                }
+            });
+        }
+        int count = 0;
+        for (Future<Boolean> future : executor.invokeAll(tasks)) {
+            try {
+                if (future.get()) {
+                    count++;
+                }
+            }
+            catch (ExecutionException e) {
+                task.log("@NotNull instrumentation failed: " + e.getCause(), Project.MSG_ERR);
+            }
+        }
+        if (count > 0) {
+            task.log("Added @NotNull assertions to " + count + " files in " +
+                    (System.nanoTime() - start) / 1000000 + " ms", Project.MSG_INFO);
+        }
+    }
+
+    private boolean instrument(Path path) {
+        try {
+            Stamp stamp = instrumented.get(path);
+            if (stamp != null && stamp.matches(path)) {
+                return false;
+            }
+            String name = root.relativize(path).toString().replace(path.getFileSystem().getSeparator(), "/");
+            instrumenter.invalidate(name.substring(0, name.length() - CLASS_SUFFIX.length()));
+            if (!task.instrumentClassFile(path.toFile(), instrumenter)) {
+                return false;
+            }
+            instrumented.put(path, Stamp.of(path));
+            return true;
+        }
+        catch (NoSuchFileException e) {
+            // deleted again in the meantime
+            instrumented.remove(path);
+            return false;
+        }
+        catch (IOException e) {
+            task.log("Failed to instrument @NotNull assertion for " + path + ": " + e.getMessage(), Project.MSG_WARN);
+            return false;
+        }
+        catch (BuildException e) {
+            // most likely a class file still being written, it is instrumented with its next modification
+            task.log(e.getMessage(), Project.MSG_ERR);
+            return false;
+        }
+    }
+
+    /**
+     * The size and either the checksum or the modification time of a file, identifying the version of the file known
+     * to be instrumented. Modification times are only used if the checksum is unknown, since they also change when a
+     * file is merely touched.
+     */
+    private static class Stamp {
+        private static final long UNKNOWN = -1;
+
+        private final long size;
+        private final long lastModified;
+        private final long checksum;
+
+        private Stamp(long size, long lastModified, long checksum) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.checksum = checksum;
+        }
+
+        private static Stamp of(BasicFileAttributes attrs) {
+            return new Stamp(attrs.size(), attrs.lastModifiedTime().toMillis(), UNKNOWN);
+        }
+
+        private static Stamp of(Path path) throws IOException {
+            byte[] bytes = Files.readAllBytes(path);
+            return new Stamp(bytes.length, UNKNOWN, checksum(bytes));
+        }
+
+        /**
+         * @param path the location of the file
+         * @return true if the file still has the version described by this stamp, reading it only if its size
+         *         matches and the checksum is known
+         * @throws IOException if the file could not be read
+         */
+        private boolean matches(Path path) throws IOException {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            if (attrs.size() != size) {
+                return false;
+            }
+            if (checksum == UNKNOWN) {
+                return attrs.lastModifiedTime().toMillis() == lastModified;
+            }
+            return checksum(Files.readAllBytes(path)) == checksum;
+        }
+
+        private static long checksum(byte[] bytes) {
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length);
+            return crc.getValue();
+        }
+    }
+
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2000-2008 JetBrains s.r.o.
+ * Modified in 2009 by Mathias Doenitz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.parboiled.ant;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.taskdefs.compilers.DefaultCompilerAdapter;
+import org.apache.tools.ant.types.Commandline;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A compiler adapter running the javac of the current JVM through the javax.tools API with all class files captured in
+ * memory rather than being written to the destination directory, so that they can be instrumented before being
+ * written for the first and only time.
+ */
+class InMemoryCompilerAdapter extends DefaultCompilerAdapter {
+
+    private final Map<String, byte[]> classes = new LinkedHashMap<String, byte[]>();
+
+    public boolean execute() {
+        attributes.log("Using in-memory javac compiler", Project.MSG_VERBOSE);
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new BuildException("In-memory compilation requires running on a JDK", location);
+        }
+        Commandline cmd = setupModernJavacCommandlineSwitches(new Commandline());
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null);
+        try {
+            try {
+                Iterable<? extends JavaFileObject> units = fileManager.getJavaFileObjects(compileList);
+                JavaCompiler.CompilationTask task = compiler.getTask(null, new CapturingFileManager(fileManager), null,
+                        Arrays.asList(cmd.getArguments()), null, units);
+                return task.call();
+            }
+            finally {
+                fileManager.close();
+            }
+        }
+        catch (IOException e) {
+            throw new BuildException("Error running in-memory javac compiler", e, location);
+        }
+    }
+
+    /**
+     * @return the contents of the compiled class files keyed by the internal names of their classes, in the order they
+     *         were generated
+     */
+    Map<String, byte[]> getClasses() {
+        return classes;
+    }
+
+    private class CapturingFileManager extends ForwardingJavaFileManager<JavaFileManager> {
+        private CapturingFileManager(JavaFileManager fileManager) {
+            super(fileManager);
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind,
+                                                   FileObject sibling) throws IOException {
+            if (kind != JavaFileObject.Kind.CLASS) {
+                return super.getJavaFileForOutput(location, className, kind, sibling);
+            }
+            final String internalName = className.replace('.', '/');
+            return new SimpleJavaFileObject(URI.create("mem:///" + internalName + kind.extension), kind) {
+                @Override
+                public OutputStream openOutputStream() {
+                    return new ByteArrayOutputStream() {
+                        @Override
+                        public void close() {
+                            classes.put(internalName, toByteArray());
+                        }
+                    };
+                }
+            };
+        }
+    }
+
+}
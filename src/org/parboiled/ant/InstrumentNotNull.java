@@ -16,12 +16,25 @@
  */
 package org.parboiled.ant;
 
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.Path;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * This ant task is used to instrument compiled classes with the NotNullVerifyingInstrumenter
- * without compiling java sources.
+ * without compiling java sources. Apart from the class files in the destination directory it can instrument the
+ * classes in jar or zip archives given as nested archive elements.
  */
 public class InstrumentNotNull extends Javacn {
 
+    private final List<Archive> archives = new ArrayList<Archive>();
+    private boolean watch = false;
+
     /**
      * Cusomize behavior of {@link Javacn} disabiling compilation of java classes.
      *
@@ -33,4 +46,133 @@ public class InstrumentNotNull extends Javacn {
         return false;
     }
 
+    /**
+     * Adds a jar or zip archive whose classes are to be instrumented.
+     *
+     * @return the archive element
+     */
+    public Archive createArchive() {
+        Archive archive = new Archive();
+        archives.add(archive);
+        return archive;
+    }
+
+    /**
+     * If set to true the task does not terminate after instrumenting the destination directory but keeps watching
+     * it, instrumenting every class file created or modified (e.g. by an IDE or an incremental compiler) within
+     * milliseconds. The classpath index, the class hierarchy information and the instrumenter stay resident and warm.
+     * The task runs until the build is interrupted.
+     *
+     * @param watch true to keep watching the destination directory
+     */
+    public void setWatch(boolean watch) {
+        this.watch = watch;
+    }
+
+    @Override
+    public void execute() {
+        if (watch && getDestdir() == null) {
+            throw new BuildException("watch requires the destdir attribute to be set", getLocation());
+        }
+        for (Archive archive : archives) {
+            archive.validate();
+        }
+        if (archives.isEmpty() || getSrcdir() != null) {
+            super.execute();
+        } else {
+            // archives only, no source or destination directory to check and scan
+            compile();
+        }
+    }
+
+    @Override
+    protected void appendInstrumentedClasspath(Path cp) {
+        for (Archive archive : archives) {
+            cp.setLocation(archive.src.getAbsoluteFile());
+        }
+    }
+
+    @Override
+    protected int instrumentNotNull(ClassInstrumenter instrumenter) {
+        int instrumented = super.instrumentNotNull(instrumenter);
+        ArchiveInstrumenter archiveInstrumenter =
+                new ArchiveInstrumenter(this, instrumenter, getInstrumentationPool(), 4 * getThreads());
+        try {
+            for (Archive archive : archives) {
+                File dest = archive.dest != null ? archive.dest : archive.src;
+                log("Instrumenting " + archive.src + (dest != archive.src ? " to " + dest : ""), Project.MSG_VERBOSE);
+                try {
+                    instrumented += archiveInstrumenter.instrument(archive.src, dest);
+                }
+                catch (IOException e) {
+                    fireError("@NotNull instrumentation failed for " + archive.src + ": " + e.getMessage());
+                }
+            }
+            if (watch) {
+                log("Added @NotNull assertions to " + instrumented + " files", Project.MSG_INFO);
+                instrumented += watch(instrumenter);
+            }
+        }
+        finally {
+            releaseArchives(instrumenter);
+        }
+        return instrumented;
+    }
+
+    // the instrumented archives are on the shared classpath, which must not keep them open after the task
+    private void releaseArchives(ClassInstrumenter instrumenter) {
+        for (Archive archive : archives) {
+            try {
+                instrumenter.release(archive.src);
+            }
+            catch (IOException e) {
+                log("Failed to close " + archive.src + ": " + e.getMessage(), Project.MSG_WARN);
+            }
+        }
+    }
+
+    private int watch(ClassInstrumenter instrumenter) {
+        try {
+            new DirectoryWatcher(this, instrumenter, getInstrumentationPool()).watch(getDestdir().toPath());
+        }
+        catch (IOException e) {
+            fireError("Failed to watch " + getDestdir() + ": " + e.getMessage());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return 0;
+    }
+
+    /**
+     * A jar or zip archive to instrument.
+     */
+    public class Archive {
+        private File src;
+        private File dest;
+
+        /**
+         * @param src the archive to instrument
+         */
+        public void setSrc(File src) {
+            this.src = src;
+        }
+
+        /**
+         * @param dest the instrumented archive to write, if not set the source archive is replaced
+         */
+        public void setDest(File dest) {
+            this.dest = dest;
+        }
+
+        private void validate() {
+            if (src == null) {
+                throw new BuildException("The src attribute of archive must be set", getLocation());
+            }
+            if (!src.isFile()) {
+                throw new BuildException("Archive " + src + " does not exist", getLocation());
+            }
+        }
+    }
+
 }
@@ -0,0 +1,350 @@
+/*
+ * Copyright 2000-2008 JetBrains s.r.o.
+ * Modified in 2009 by Mathias Doenitz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.parboiled.ant;
+
+import org.objectweb.asm.ClassReader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects statistics about every class affected by instrumentation and writes them as CSV (one line per method) or,
+ * if the report file name ends with ".json", as JSON. Methods pushed over one of HotSpot's default inlining thresholds
+ * by the inserted checks are flagged. The JSON report additionally sums up the check sites produced and omitted by
+ * the instrumentation policy. Instances are thread-safe.
+ */
+class InstrumentationReport {
+
+    /**
+     * The default maximum bytecode size of methods the HotSpot JIT inlines (-XX:MaxInlineSize).
+     */
+    static final int MAX_INLINE_SIZE = 35;
+
+    /**
+     * The default maximum bytecode size of frequently executed methods the HotSpot JIT inlines (-XX:FreqInlineSize).
+     */
+    static final int FREQ_INLINE_SIZE = 325;
+
+    private final List<ClassRecord> records = Collections.synchronizedList(new ArrayList<ClassRecord>());
+    private String policy;
+    private int checks;
+    private int checksOutOfScope;
+    private int checksExcluded;
+
+    void add(ClassRecord record) {
+        records.add(record);
+    }
+
+    /**
+     * Sets the totals of the check sites produced and omitted by the instrumentation policy.
+     *
+     * @param policy           a description of the scope and the include and exclude patterns
+     * @param checks           the number of inserted checks
+     * @param checksOutOfScope the number of checks omitted since their methods lie outside of the scope
+     * @param checksExcluded   the number of checks omitted since their methods are not selected by the patterns
+     */
+    synchronized void setPolicy(String policy, int checks, int checksOutOfScope, int checksExcluded) {
+        this.policy = policy;
+        this.checks = checks;
+        this.checksOutOfScope = checksOutOfScope;
+        this.checksExcluded = checksExcluded;
+    }
+
+    /**
+     * @return the number of reported classes
+     */
+    int getClassCount() {
+        return records.size();
+    }
+
+    /**
+     * @return the number of methods pushed over one of the inlining thresholds by instrumentation
+     */
+    int getInliningThresholdViolations() {
+        int count = 0;
+        synchronized (records) {
+            for (ClassRecord record : records) {
+                for (MethodRecord method : record.methods) {
+                    if (method.exceedsMaxInlineSize() || method.exceedsFreqInlineSize()) {
+                        count++;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Writes the report, as JSON if the file name ends with ".json" and as CSV otherwise.
+     *
+     * @param file the file to write to
+     * @throws IOException if the file could not be written
+     */
+    void write(File file) throws IOException {
+        List<ClassRecord> sorted;
+        synchronized (records) {
+            sorted = new ArrayList<ClassRecord>(records);
+        }
+        Collections.sort(sorted, new Comparator<ClassRecord>() {
+            public int compare(ClassRecord a, ClassRecord b) {
+                return a.path.compareTo(b.path);
+            }
+        });
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            if (file.getName().endsWith(".json")) {
+                writeJson(sorted, writer, getPolicyJson());
+            } else {
+                writeCsv(sorted, writer);
+            }
+        }
+        finally {
+            writer.close();
+        }
+        if (writer.checkError()) {
+            throw new IOException("Could not write " + file);
+        }
+    }
+
+    private static void writeCsv(List<ClassRecord> records, PrintWriter writer) {
+        writer.println("class,path,classSizeBefore,classSizeAfter,constantPoolBefore,constantPoolAfter," +
+                "readMicros,transformMicros,writeMicros,method,checks,codeSizeBefore,codeSizeAfter," +
+                "exceedsMaxInlineSize,exceedsFreqInlineSize");
+        for (ClassRecord record : records) {
+            String classColumns = csv(record.name) + ',' + csv(record.path) + ',' + record.sizeBefore + ',' +
+                    record.sizeAfter + ',' + record.constantPoolBefore + ',' + record.constantPoolAfter + ',' +
+                    micros(record.readNanos) + ',' + micros(record.transformNanos) + ',' + micros(record.writeNanos);
+            for (MethodRecord method : record.methods) {
+                writer.println(classColumns + ',' + csv(method.name) + ',' + method.checks + ',' +
+                        method.codeSizeBefore + ',' + method.codeSizeAfter + ',' + method.exceedsMaxInlineSize() +
+                        ',' + method.exceedsFreqInlineSize());
+            }
+        }
+    }
+
+    private synchronized String getPolicyJson() {
+        if (policy == null) {
+            return null;
+        }
+        return "{\"policy\": " + json(policy) + ", \"checks\": " + checks + ", \"checksOutOfScope\": " +
+                checksOutOfScope + ", \"checksExcluded\": " + checksExcluded + "}";
+    }
+
+    private static void writeJson(List<ClassRecord> records, PrintWriter writer, String policy) {
+        writer.println("{");
+        writer.println("  \"maxInlineSize\": " + MAX_INLINE_SIZE + ",");
+        writer.println("  \"freqInlineSize\": " + FREQ_INLINE_SIZE + ",");
+        if (policy != null) {
+            writer.println("  \"checkSites\": " + policy + ",");
+        }
+        writer.println("  \"classes\": [");
+        for (int i = 0; i < records.size(); i++) {
+            ClassRecord record = records.get(i);
+            writer.println("    {");
+            writer.println("      \"class\": " + json(record.name) + ",");
+            writer.println("      \"path\": " + json(record.path) + ",");
+            writer.println("      \"classSizeBefore\": " + record.sizeBefore + ",");
+            writer.println("      \"classSizeAfter\": " + record.sizeAfter + ",");
+            writer.println("      \"constantPoolBefore\": " + record.constantPoolBefore + ",");
+            writer.println("      \"constantPoolAfter\": " + record.constantPoolAfter + ",");
+            writer.println("      \"readMicros\": " + micros(record.readNanos) + ",");
+            writer.println("      \"transformMicros\": " + micros(record.transformNanos) + ",");
+            writer.println("      \"writeMicros\": " + micros(record.writeNanos) + ",");
+            writer.println("      \"methods\": [");
+            for (int j = 0; j < record.methods.size(); j++) {
+                MethodRecord method = record.methods.get(j);
+                writer.println("        {\"method\": " + json(method.name) + ", \"checks\": " + method.checks +
+                        ", \"codeSizeBefore\": " + method.codeSizeBefore + ", \"codeSizeAfter\": " +
+                        method.codeSizeAfter + ", \"exceedsMaxInlineSize\": " + method.exceedsMaxInlineSize() +
+                        ", \"exceedsFreqInlineSize\": " + method.exceedsFreqInlineSize() + "}" +
+                        (j < record.methods.size() - 1 ? "," : ""));
+            }
+            writer.println("      ]");
+            writer.println("    }" + (i < records.size() - 1 ? "," : ""));
+        }
+        writer.println("  ]");
+        writer.println("}");
+    }
+
+    private static long micros(long nanos) {
+        return nanos / 1000;
+    }
+
+    private static String csv(String value) {
+        return value.indexOf(',') >= 0 || value.indexOf('"') >= 0 ? '"' + value.replace("\"", "\"\"") + '"' : value;
+    }
+
+    private static String json(String value) {
+        StringBuilder sb = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * Reads the bytecode sizes of all methods with code from the given class.
+     *
+     * @param reader the reader of the class
+     * @return the code sizes keyed by method name and descriptor
+     */
+    static Map<String, Integer> readCodeSizes(ClassReader reader) {
+        Map<String, Integer> sizes = new HashMap<String, Integer>();
+        char[] buf = new char[getMaxStringLength(reader)];
+        // skip access flags, this class and super class as well as the interfaces
+        int u = reader.header + 6;
+        u += 2 + 2 * reader.readUnsignedShort(u);
+        // skip the fields
+        int fieldCount = reader.readUnsignedShort(u);
+        u += 2;
+        for (int i = 0; i < fieldCount; i++) {
+            u = skipAttributes(reader, u + 6);
+        }
+        int methodCount = reader.readUnsignedShort(u);
+        u += 2;
+        for (int i = 0; i < methodCount; i++) {
+            String name = reader.readUTF8(u + 2, buf) + reader.readUTF8(u + 4, buf);
+            int attributeCount = reader.readUnsignedShort(u + 6);
+            u += 8;
+            for (int j = 0; j < attributeCount; j++) {
+                if ("Code".equals(reader.readUTF8(u, buf))) {
+                    // attribute name and length, max stack and max locals precede the code length
+                    sizes.put(name, reader.readInt(u + 10));
+                }
+                u += 6 + reader.readInt(u + 2);
+            }
+        }
+        return sizes;
+    }
+
+    private static int getMaxStringLength(ClassReader reader) {
+        int max = 0;
+        int itemCount = reader.readUnsignedShort(8);
+        for (int i = 1; i < itemCount; i++) {
+            int index = reader.getItem(i);
+            // the second slot of long and double constants has no item, 1 is the tag of UTF8 constants
+            if (index != 0 && reader.b[index - 1] == 1) {
+                max = Math.max(max, reader.readUnsignedShort(index));
+            }
+        }
+        return max;
+    }
+
+    private static int skipAttributes(ClassReader reader, int u) {
+        int attributeCount = reader.readUnsignedShort(u);
+        u += 2;
+        for (int i = 0; i < attributeCount; i++) {
+            u += 6 + reader.readInt(u + 2);
+        }
+        return u;
+    }
+
+    /**
+     * The statistics of a single class, filled in by the different stages processing it.
+     */
+    static class ClassRecord {
+        final String path;
+        final List<MethodRecord> methods = new ArrayList<MethodRecord>();
+        String name;
+        int sizeBefore;
+        int sizeAfter;
+        int constantPoolBefore;
+        int constantPoolAfter;
+        long readNanos;
+        long transformNanos;
+        long writeNanos;
+
+        ClassRecord(String path) {
+            this.path = path;
+        }
+
+        /**
+         * Records the result of the instrumentation of the class.
+         *
+         * @param before the reader of the original class
+         * @param length the length of the original class file
+         * @param after  the instrumented class file contents
+         * @param checks the number of inserted checks keyed by method name and descriptor
+         */
+        void recordTransformation(ClassReader before, int length, byte[] after, Map<String, Integer> checks) {
+            ClassReader afterReader = new ClassReader(after);
+            name = before.getClassName().replace('/', '.');
+            sizeBefore = length;
+            sizeAfter = after.length;
+            constantPoolBefore = before.readUnsignedShort(8);
+            constantPoolAfter = afterReader.readUnsignedShort(8);
+            Map<String, Integer> sizesBefore = readCodeSizes(before);
+            for (Map.Entry<String, Integer> entry : readCodeSizes(afterReader).entrySet()) {
+                Integer sizeBefore = sizesBefore.get(entry.getKey());
+                Integer methodChecks = checks.get(entry.getKey());
+                if (sizeBefore == null || !sizeBefore.equals(entry.getValue()) || methodChecks != null) {
+                    methods.add(new MethodRecord(entry.getKey(), methodChecks != null ? methodChecks : 0,
+                            sizeBefore != null ? sizeBefore : 0, entry.getValue()));
+                }
+            }
+            Collections.sort(methods, new Comparator<MethodRecord>() {
+                public int compare(MethodRecord a, MethodRecord b) {
+                    return a.name.compareTo(b.name);
+                }
+            });
+        }
+    }
+
+    static class MethodRecord {
+        final String name;
+        final int checks;
+        final int codeSizeBefore;
+        final int codeSizeAfter;
+
+        MethodRecord(String name, int checks, int codeSizeBefore, int codeSizeAfter) {
+            this.name = name;
+            this.checks = checks;
+            this.codeSizeBefore = codeSizeBefore;
+            this.codeSizeAfter = codeSizeAfter;
+        }
+
+        // methods without checks, i.e. the throw helper, are never on a hot path
+        boolean exceedsMaxInlineSize() {
+            return checks > 0 && codeSizeBefore <= MAX_INLINE_SIZE && codeSizeAfter > MAX_INLINE_SIZE;
+        }
+
+        boolean exceedsFreqInlineSize() {
+            return checks > 0 && codeSizeBefore <= FREQ_INLINE_SIZE && codeSizeAfter > FREQ_INLINE_SIZE;
+        }
+    }
+
+}
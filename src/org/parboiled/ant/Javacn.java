@@ -16,28 +16,320 @@
  */
 package org.parboiled.ant;
 
-import org.parboiled.compiler.notNullVerification.NotNullVerifyingInstrumenter;
+import org.parboiled.compiler.notNullVerification.CheckScope;
+import org.parboiled.compiler.notNullVerification.InstrumentationOptions;
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Project;
 import org.apache.tools.ant.taskdefs.Javac;
 import org.apache.tools.ant.types.Path;
-import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLClassLoader;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
-import java.util.StringTokenizer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class Javacn extends Javac {
 
+    private static final String COMPILE_FAILED = "Compile failed; see the compiler error output for details.";
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private boolean incremental = false;
+    private boolean inMemory = false;
+    private boolean inMemoryFailed = false;
+    private String errorProperty;
+    private File report;
+    private File cache;
+    private long cacheSize = 512;
+    private final List<Visitor> visitors = new ArrayList<Visitor>();
+    private boolean discoverVisitors = false;
+    private final InstrumentationOptions options = new InstrumentationOptions();
+    private final AtomicReference<BuildException> instrumentationFailure = new AtomicReference<BuildException>();
+    private ForkJoinPool pool;
+    private final ThreadLocal<byte[]> readBuffers = new ThreadLocal<byte[]>();
+
     public Javacn() {}
 
+    /**
+     * Sets the number of threads used for @NotNull instrumentation, defaults to the number of available processors.
+     *
+     * @param threads the number of worker threads, must be at least 1
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new BuildException("threads must be at least 1", getLocation());
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * @return the number of threads used for @NotNull instrumentation
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * If set to true only the class files produced from the sources compiled in this run (including their inner
+     * and anonymous classes) are instrumented rather than all class files in the destination directory.
+     * Note that classes javac compiles implicitly via the sourcepath or that stem from additional top-level classes
+     * in a source file (whose names do not match the source file name) are not picked up in this mode.
+     *
+     * @param incremental true to only instrument the classes compiled in this run
+     */
+    public void setIncremental(boolean incremental) {
+        logErrorIfNotCompiling("incremental");
+        this.incremental = incremental;
+    }
+
+    /**
+     * If set to true the sources are compiled with the javac of the current JVM (through the javax.tools API),
+     * capturing the class files in memory and writing them to the destination directory only once, after their
+     * instrumentation. This saves writing and reading back every class file and implies that only the classes compiled
+     * in this run are instrumented. The compiler has to be one of the JDK, fork and its settings are ignored.
+     *
+     * @param inMemory true to compile in memory
+     */
+    public void setInMemory(boolean inMemory) {
+        logErrorIfNotCompiling("inMemory");
+        this.inMemory = inMemory;
+    }
+
+    /**
+     * If set to true failed checks call a single synthetic helper method per class constructing the exception
+     * rather than constructing it inline, which keeps small methods within the JIT inlining thresholds.
+     *
+     * @param outlineThrows true to outline the exception construction
+     * @see InstrumentationOptions#setOutlineThrows(boolean)
+     */
+    public void setOutlineThrows(boolean outlineThrows) {
+        options.setOutlineThrows(outlineThrows);
+    }
+
+    /**
+     * If set to true the stack map frames of the instrumented classes are preserved rather than recomputed, with only
+     * the few frames the inserted checks need being added. This makes instrumentation considerably faster and
+     * independent of the classpath.
+     *
+     * @param preserveFrames true to preserve the existing stack map frames
+     * @see InstrumentationOptions#setPreserveFrames(boolean)
+     */
+    public void setPreserveFrames(boolean preserveFrames) {
+        options.setPreserveFrames(preserveFrames);
+    }
+
+    /**
+     * If set to true the checks of parameters of private methods are omitted if all call sites in the class provably
+     * pass non-null values, i.e. new objects, constants, "this" or @NotNull parameters of the calling method.
+     *
+     * @param elideParameterChecks true to omit provably redundant parameter checks
+     * @see InstrumentationOptions#setElideParameterChecks(boolean)
+     */
+    public void setElideParameterChecks(boolean elideParameterChecks) {
+        options.setElideParameterChecks(elideParameterChecks);
+    }
+
+    /**
+     * If set to true the return value checks of @NotNull methods are omitted at return instructions whose value is
+     * provably non-null, e.g. "this", new objects, constants or @NotNull parameters.
+     *
+     * @param elideReturnChecks true to omit provably redundant return value checks
+     * @see InstrumentationOptions#setElideReturnChecks(boolean)
+     */
+    public void setElideReturnChecks(boolean elideReturnChecks) {
+        options.setElideReturnChecks(elideReturnChecks);
+    }
+
+    /**
+     * If set to true the checks are only performed if assertions are enabled for the instrumented classes, so a single
+     * build can run with full enforcement in tests ("-ea") and without any check overhead in production.
+     *
+     * @param assertionGatedChecks true to perform the checks only if assertions are enabled
+     * @see InstrumentationOptions#setAssertionGatedChecks(boolean)
+     */
+    public void setAssertionGatedChecks(boolean assertionGatedChecks) {
+        options.setAssertionGatedChecks(assertionGatedChecks);
+    }
+
+    /**
+     * If set to true every check counts its executions per check site, see
+     * {@link org.parboiled.runtime.NotNullCheckCounters}. The javacn jar has to be on the runtime classpath then.
+     *
+     * @param countChecks true to count the executions of all checks
+     * @see InstrumentationOptions#setCountChecks(boolean)
+     */
+    public void setCountChecks(boolean countChecks) {
+        options.setCountChecks(countChecks);
+    }
+
+    /**
+     * If set to true the parameter checks of methods with several @NotNull parameters lead to a single shared failure
+     * block behind the original code instead of one inline exception construction each, keeping the method prologues
+     * compact.
+     *
+     * @param fuseParameterChecks true to share one failure block among all parameter checks of a method
+     * @see InstrumentationOptions#setFuseParameterChecks(boolean)
+     */
+    public void setFuseParameterChecks(boolean fuseParameterChecks) {
+        options.setFuseParameterChecks(fuseParameterChecks);
+    }
+
+    /**
+     * Restricts the checks to the methods of the given visibility: "public", "protected" (public and protected
+     * methods), "package" (all but private methods) or "all" (the default). Apart from "all" the scopes exclude
+     * synthetic and bridge methods. Limiting the checks to the API boundaries keeps internal call chains free of them.
+     *
+     * @param scope the visibility of the methods to instrument
+     * @see InstrumentationOptions#setScope(CheckScope)
+     */
+    public void setScope(String scope) {
+        try {
+            options.setScope(CheckScope.forName(scope));
+        }
+        catch (IllegalArgumentException e) {
+            throw new BuildException(e.getMessage(), getLocation());
+        }
+    }
+
+    /**
+     * Restricts the checks to the methods matching at least one of the given patterns. The patterns have the form
+     * {@code class[#method]} with the fully qualified class name, where '*' matches any part of a package, class or
+     * method name and '**' any sequence of packages, e.g. "com.company.api.**, **.*Service#find*".
+     *
+     * @param patterns a comma separated list of patterns
+     * @see InstrumentationOptions#addCheckInclude(String)
+     */
+    public void setCheckIncludes(String patterns) {
+        for (String pattern : splitPatterns(patterns)) {
+            try {
+                options.addCheckInclude(pattern);
+            }
+            catch (IllegalArgumentException e) {
+                throw new BuildException(e.getMessage(), getLocation());
+            }
+        }
+    }
+
+    /**
+     * Omits the checks of the methods matching any of the given patterns, even if they match an include pattern.
+     *
+     * @param patterns a comma separated list of patterns, see {@link #setCheckIncludes(String)}
+     * @see InstrumentationOptions#addCheckExclude(String)
+     */
+    public void setCheckExcludes(String patterns) {
+        for (String pattern : splitPatterns(patterns)) {
+            try {
+                options.addCheckExclude(pattern);
+            }
+            catch (IllegalArgumentException e) {
+                throw new BuildException(e.getMessage(), getLocation());
+            }
+        }
+    }
+
+    private static List<String> splitPatterns(String patterns) {
+        List<String> list = new ArrayList<String>();
+        for (String pattern : patterns.split(",")) {
+            if (pattern.trim().length() > 0) {
+                list.add(pattern.trim());
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Sets the file to write a report about every class affected by instrumentation to: the number of checks added to
+     * each method, the growth of bytecode and constant pool as well as the time spent reading, instrumenting and
+     * writing the class. Methods pushed over one of the default JIT inlining thresholds by the checks are flagged.
+     * The report is written as JSON if the file name ends with ".json" and as CSV otherwise.
+     *
+     * @param report the report file
+     */
+    public void setReport(File report) {
+        this.report = report;
+    }
+
+    /**
+     * Sets the directory of a cache of instrumentation results, which may be shared by several concurrently running
+     * builds (also on a network file system). Results are looked up by a hash of the original class file contents, the
+     * instrumentation options, the class writer flags and the tool version, so a hit is exactly what instrumentation
+     * would produce, provided the class hierarchy of the classpath stays the same (which frame computation depends
+     * on). Additional visitor factories are only identified by their class names, so the cache has to be cleared when
+     * their implementation changes. Classes served from the cache do not appear in the report.
+     *
+     * @param cache the cache directory, created on demand
+     */
+    public void setCache(File cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Sets the maximum size of the cache in megabytes, defaults to 512. After instrumentation the least recently used
+     * entries are evicted until the cache does not exceed this size.
+     *
+     * @param cacheSize the maximum cache size in megabytes
+     */
+    public void setCacheSize(long cacheSize) {
+        if (cacheSize < 0) {
+            throw new BuildException("cacheSize must not be negative", getLocation());
+        }
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * Adds an additional bytecode transformation, applied in the same pass as the @NotNull instrumentation.
+     * The transformations are chained in the order given, behind those found by {@link #setDiscoverVisitors(boolean)}.
+     *
+     * @return the visitor element
+     */
+    public Visitor createVisitor() {
+        Visitor visitor = new Visitor();
+        visitors.add(visitor);
+        return visitor;
+    }
+
+    /**
+     * If set to true the {@link ClassVisitorFactory} implementations registered as services on the classpath of the
+     * task definition are applied in the same pass as the @NotNull instrumentation.
+     *
+     * @param discoverVisitors true to apply all registered visitor factories
+     */
+    public void setDiscoverVisitors(boolean discoverVisitors) {
+        this.discoverVisitors = discoverVisitors;
+    }
+
+    /**
+     * Logs the given message. Synchronized since instrumentation logs from several worker threads concurrently.
+     *
+     * @param msg      the message to log
+     * @param msgLevel the message priority
+     */
+    @Override
+    public synchronized void log(String msg, int msgLevel) {
+        super.log(msg, msgLevel);
+    }
+
     /**
      * Returns true if actual compilation is to be done.
      *
@@ -118,34 +410,293 @@ public class Javacn extends Javac {
         super.setCompiler(compiler);
     }
 
+    @Override
+    public void setErrorProperty(String errorProperty) {
+        super.setErrorProperty(errorProperty);
+        this.errorProperty = errorProperty;
+    }
+
+    @Override
+    public boolean getTaskSuccess() {
+        return super.getTaskSuccess() && !inMemoryFailed;
+    }
+
     @Override
     protected void compile() {
+        Map<String, byte[]> compiledClasses = null;
         if (compiling()) {
             // compile only if required
-            super.compile();
+            if (inMemory) {
+                compiledClasses = compileInMemory();
+            } else {
+                super.compile();
+            }
         }
 
-        ClassLoader loader = buildClasspathClassLoader();
-        if (loader != null) {
-            if (isJdkVersion(5) || isJdkVersion(6)) {
-                int instrumented = instrumentNotNull(getDestdir(), loader);
+        if (isJdkVersion(5) || isJdkVersion(6)) {
+            ClassHierarchyResolver resolver = buildClassHierarchyResolver(compiledClasses);
+            pool = new ForkJoinPool(threads);
+            try {
+                InstrumentationReport instrumentationReport = report != null ? new InstrumentationReport() : null;
+                int flags = getAsmClassWriterFlags();
+                List<ClassVisitorFactory> factories = getVisitorFactories();
+                ClassFileCache classFileCache = cache != null ? new ClassFileCache(cache,
+                        ClassFileCache.getToolVersion() + ' ' + flags + ' ' + options + getNames(factories)) : null;
+                ClassInstrumenter instrumenter = new ClassInstrumenter(this, options, flags, resolver,
+                        instrumentationReport, classFileCache, factories);
+                int instrumented = compiledClasses != null ?
+                        writeCompiledClasses(compiledClasses, instrumenter) :
+                        instrumentNotNull(instrumenter);
                 log("Added @NotNull assertions to " + instrumented + " files", Project.MSG_INFO);
-            } else {
-                log("Skipped @NotNull instrumentation because target JDK is not 1.5 or 1.6", Project.MSG_INFO);
+                log("Skipped " + instrumenter.getSkippedByPrescan() +
+                        " files without @NotNull annotations or instrumented already", Project.MSG_INFO);
+                if (instrumenter.getElidedChecks() > 0) {
+                    log("Omitted " + instrumenter.getElidedChecks() + " provably redundant checks", Project.MSG_INFO);
+                }
+                if (instrumenter.getChecksOutOfScope() > 0 || instrumenter.getChecksExcluded() > 0) {
+                    log("Omitted " + instrumenter.getChecksOutOfScope() + " checks outside of scope " +
+                            options.getScope() + " and " + instrumenter.getChecksExcluded() +
+                            " checks excluded by pattern", Project.MSG_INFO);
+                }
+                if (classFileCache != null) {
+                    log("Took " + instrumenter.getCacheHits() + " files from the cache", Project.MSG_INFO);
+                    evict(classFileCache);
+                }
+                if (instrumentationReport != null) {
+                    instrumentationReport.setPolicy(options.getPolicy(), instrumenter.getChecks(),
+                            instrumenter.getChecksOutOfScope(), instrumenter.getChecksExcluded());
+                    writeReport(instrumentationReport);
+                }
+            }
+            finally {
+                pool.shutdown();
+                pool = null;
+                close(resolver);
+            }
+        } else {
+            if (compiledClasses != null) {
+                writeCompiledClasses(compiledClasses, null);
+            }
+            log("Skipped @NotNull instrumentation because target JDK is not 1.5 or 1.6", Project.MSG_INFO);
+        }
+    }
+
+    private List<ClassVisitorFactory> getVisitorFactories() {
+        List<ClassVisitorFactory> factories = new ArrayList<ClassVisitorFactory>();
+        ClassLoader loader = getClass().getClassLoader();
+        if (discoverVisitors) {
+            try {
+                for (ClassVisitorFactory factory : ServiceLoader.load(ClassVisitorFactory.class, loader)) {
+                    factories.add(factory);
+                }
             }
+            catch (ServiceConfigurationError e) {
+                throw new BuildException("Could not load visitor factories: " + e.getMessage(), e, getLocation());
+            }
+        }
+        for (Visitor visitor : visitors) {
+            factories.add(visitor.createFactory(loader));
+        }
+        for (ClassVisitorFactory factory : factories) {
+            log("Applying visitors of " + factory.getClass().getName(), Project.MSG_VERBOSE);
+        }
+        return factories;
+    }
+
+    // the factories are part of the cache salt by class name, so their versions are not (see setCache)
+    private static String getNames(List<ClassVisitorFactory> factories) {
+        StringBuilder names = new StringBuilder();
+        for (ClassVisitorFactory factory : factories) {
+            names.append(' ').append(factory.getClass().getName());
+        }
+        return names.toString();
+    }
+
+    private void evict(ClassFileCache classFileCache) {
+        try {
+            int evicted = classFileCache.evict(cacheSize * 1024 * 1024);
+            if (evicted > 0) {
+                log("Evicted " + evicted + " entries from the cache", Project.MSG_VERBOSE);
+            }
+        }
+        catch (IOException e) {
+            log("Could not evict entries from the cache " + cache + ": " + e.getMessage(), Project.MSG_WARN);
+        }
+    }
+
+    private void writeReport(InstrumentationReport instrumentationReport) {
+        try {
+            instrumentationReport.write(report);
+        }
+        catch (IOException e) {
+            fireError("Failed to write report " + report + ": " + e.getMessage());
+            return;
+        }
+        log("Wrote instrumentation report for " + instrumentationReport.getClassCount() + " classes to " + report,
+                Project.MSG_INFO);
+        int violations = instrumentationReport.getInliningThresholdViolations();
+        if (violations > 0) {
+            log(violations + " methods were pushed over a JIT inlining threshold (" +
+                    InstrumentationReport.MAX_INLINE_SIZE + " or " + InstrumentationReport.FREQ_INLINE_SIZE +
+                    " bytes) by the added checks, see " + report, Project.MSG_WARN);
         }
     }
 
     /**
-     * Create class loader based on classpath, bootclasspath, and sourcepath.
+     * Compiles the sources in the compile list with the in-memory compiler.
      *
-     * @return a URL classloader
+     * @return the compiled classes keyed by their internal names
      */
-    private ClassLoader buildClasspathClassLoader() {
-        StringBuilder classPathBuffer = new StringBuilder();
+    private Map<String, byte[]> compileInMemory() {
+        if (compileList.length == 0) {
+            return Collections.emptyMap();
+        }
+        if (getDestdir() == null) {
+            throw new BuildException("destdir must be set for in-memory compilation", getLocation());
+        }
+        if (!isJdkCompiler(getCompilerVersion())) {
+            throw new BuildException("In-memory compilation uses the javac of the running JDK, it does not support " +
+                    "the compiler " + getCompilerVersion(), getLocation());
+        }
+        if (isForkedJavac()) {
+            log("In-memory compilation runs within the build JVM, ignoring fork, executable and memory sizes",
+                    Project.MSG_WARN);
+        }
+        log("Compiling " + compileList.length + " source file" + (compileList.length == 1 ? "" : "s") + " to " +
+                getDestdir());
+        InMemoryCompilerAdapter adapter = new InMemoryCompilerAdapter();
+        adapter.setJavac(this);
+        if (!adapter.execute()) {
+            // as Javac does for its compiler adapters, also keeping it from setting the updated property afterwards
+            inMemoryFailed = true;
+            setUpdatedProperty(null);
+            if (errorProperty != null) {
+                getProject().setNewProperty(errorProperty, "true");
+            }
+            if (failOnError) {
+                throw new BuildException(COMPILE_FAILED, getLocation());
+            }
+            log(COMPILE_FAILED, Project.MSG_ERR);
+        }
+        return adapter.getClasses();
+    }
+
+    /**
+     * Writes the given classes compiled in memory to the destination directory, instrumenting them on the way.
+     *
+     * @param classes      the classes keyed by their internal names
+     * @param instrumenter the instrumenter to use or null, if the classes are not to be instrumented
+     * @return the amount of classes actually affected by instrumentation
+     */
+    private int writeCompiledClasses(Map<String, byte[]> classes, ClassInstrumenter instrumenter) {
+        if (instrumenter == null) {
+            for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+                writeCompiledClass(entry.getKey(), entry.getValue(), null);
+            }
+            return 0;
+        }
+        return instrumentNotNull(new WriteCompiledClassesTask(classes, instrumenter));
+    }
+
+    /**
+     * Writes a single class compiled in memory to the destination directory, instrumenting it on the way.
+     *
+     * @param name         the internal name of the class
+     * @param classBytes   the class file contents
+     * @param instrumenter the instrumenter to use or null, if the class is not to be instrumented
+     * @return true if the class was actually affected by instrumentation
+     */
+    private boolean writeCompiledClass(String name, byte[] classBytes, ClassInstrumenter instrumenter) {
+        File file = new File(getDestdir(), name + ".class");
+        String path = file.getPath();
+        byte[] instrumented = null;
+        InstrumentationReport.ClassRecord record = null;
+        if (instrumenter != null) {
+            record = instrumenter.createRecord(path);
+            try {
+                instrumented = instrumenter.instrument(classBytes, classBytes.length, path, record);
+            }
+            catch (Exception e) {
+                fireError("@NotNull instrumentation failed for " + path + ": " + e.toString());
+            }
+        }
+        try {
+            long start = System.nanoTime();
+            file.getParentFile().mkdirs();
+            if (!writeFile(file, instrumented != null ? instrumented : classBytes)) {
+                log("Keeping unchanged " + path, Project.MSG_VERBOSE);
+            }
+            if (record != null) {
+                record.writeNanos = System.nanoTime() - start;
+            }
+        }
+        catch (IOException e) {
+            fireError("Failed to write " + path + ": " + e.getMessage());
+        }
+        return instrumented != null;
+    }
+
+    /**
+     * Determines whether the given file exists with exactly the given contents, e.g. since it has been written by a
+     * previous build. Such files are not rewritten, which keeps their modification times and thereby the up-to-date
+     * checks of later build steps intact.
+     */
+    private static boolean hasContents(File file, byte[] bytes) throws IOException {
+        if (file.length() != bytes.length) {
+            return false;
+        }
+        try {
+            return Arrays.equals(Files.readAllBytes(file.toPath()), bytes);
+        }
+        catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes the given contents to a temporary file next to the given file first and then renames it atomically, so
+     * an interrupted or concurrently running build never leaves a truncated class file behind. A file already holding
+     * exactly the given contents is left as it is, see {@link #hasContents(File, byte[])}.
+     *
+     * @param file  the file to write
+     * @param bytes the contents
+     * @return false if the file was kept since it holds the given contents already
+     * @throws IOException if the file could not be written, the temporary file is deleted then
+     */
+    static boolean writeFile(File file, byte[] bytes) throws IOException {
+        if (hasContents(file, bytes)) {
+            return false;
+        }
+        File temp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+        try {
+            Files.write(temp.toPath(), bytes);
+            try {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            return true;
+        }
+        finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    /**
+     * Create class hierarchy resolver based on classpath, bootclasspath, and sourcepath.
+     *
+     * @param compiledClasses the classes compiled in memory and not yet written, null if not compiled in memory
+     * @return a class hierarchy resolver
+     */
+    private ClassHierarchyResolver buildClassHierarchyResolver(Map<String, byte[]> compiledClasses) {
         Path cp = new Path(getProject());
         appendPath(cp, getBootclasspath());
-        cp.setLocation(getDestdir().getAbsoluteFile());
+        if (getDestdir() != null) {
+            cp.setLocation(getDestdir().getAbsoluteFile());
+        }
+        appendInstrumentedClasspath(cp);
         appendPath(cp, getClasspath());
         appendPath(cp, getSourcepath());
         appendPath(cp, getSrcdir());
@@ -158,20 +709,19 @@ public class Javacn extends Javac {
         cp.addExtdirs(getExtdirs());
 
         String[] pathElements = cp.list();
-        for (String pathElement : pathElements) {
-            classPathBuffer.append(File.pathSeparator);
-            classPathBuffer.append(pathElement);
-        }
-
-        String classPath = classPathBuffer.toString();
-        log("classpath=" + classPath, Project.MSG_VERBOSE);
+        log("classpath=" + cp, Project.MSG_VERBOSE);
+        // the jars are shared with the other tasks of the build and closed when it finishes
+        return new ClassHierarchyResolver(pathElements,
+                compiledClasses != null ? compiledClasses : Collections.<String, byte[]>emptyMap(),
+                ClasspathCacheListener.forProject(getProject()));
+    }
 
+    private void close(ClassHierarchyResolver resolver) {
         try {
-            return createClassLoader(classPath);
+            resolver.close();
         }
-        catch (MalformedURLException e) {
-            fireError(e.getMessage());
-            return null;
+        catch (IOException e) {
+            log("Failed to close classpath: " + e.getMessage(), Project.MSG_WARN);
         }
     }
 
@@ -205,6 +755,9 @@ public class Javacn extends Javac {
      * @return the flags for class writer
      */
     private int getAsmClassWriterFlags() {
+        if (options.isPreserveFrames()) {
+            return 0;
+        }
         return isJdkVersion(6) ? ClassWriter.COMPUTE_FRAMES : ClassWriter.COMPUTE_MAXS;
     }
 
@@ -221,59 +774,236 @@ public class Javacn extends Javac {
     }
 
     /**
-     * Instrument classes with NotNull annotations
+     * Appends the locations of the classes to be instrumented, apart from the destination directory, to the classpath
+     * used for resolving the class hierarchy. Called by {@link #buildClassHierarchyResolver(Map)}.
+     *
+     * @param cp the path to append to
+     */
+    protected void appendInstrumentedClasspath(Path cp) {
+    }
+
+    /**
+     * Instrument all classes to be instrumented by this task, i.e. either the ones compiled in this run or all
+     * classes in the destination directory.
+     *
+     * @param instrumenter the instrumenter to use
+     * @return the amount of classes actually affected by instrumentation
+     */
+    protected int instrumentNotNull(ClassInstrumenter instrumenter) {
+        if (incremental && compiling()) {
+            return instrumentNotNull(new InstrumentFilesTask(getCompiledClassFiles(), instrumenter));
+        }
+        return getDestdir() != null ? instrumentDirectory(getDestdir(), instrumenter) : 0;
+    }
+
+    /**
+     * Instruments all class files in the given directory tree. The tree is enumerated lazily on the calling thread,
+     * which hands the class files to the worker threads while keeping at most {@code 4 * threads} of them in flight,
+     * so memory usage does not depend on the size of the tree.
      *
-     * @param dir    the directory with classes to instrument (the directory is processed recursively)
-     * @param loader the classloader to use
+     * @param dir          the root of the directory tree
+     * @param instrumenter the instrumenter to use
      * @return the amount of classes actually affected by instrumentation
      */
-    private int instrumentNotNull(File dir, ClassLoader loader) {
-        int instrumented = 0;
-        File[] files = dir.listFiles();
-        for (File file : files) {
-            String name = file.getName();
-            if (name.endsWith(".class")) {
-                String path = file.getPath();
-                log("Adding @NotNull assertions to " + path, Project.MSG_VERBOSE);
-                try {
-                    FileInputStream inputStream = new FileInputStream(file);
-                    try {
-                        ClassReader reader = new ClassReader(inputStream);
-                        ClassWriter writer = new AntClassWriter(getAsmClassWriterFlags(), loader);
-
-                        NotNullVerifyingInstrumenter instrumenter = new NotNullVerifyingInstrumenter(this, writer);
-                        reader.accept(instrumenter, 0);
-                        if (instrumenter.isModification()) {
-                            FileOutputStream fileOutputStream = new FileOutputStream(path);
-                            try {
-                                fileOutputStream.write(writer.toByteArray());
-                                instrumented++;
-                            }
-                            finally {
-                                fileOutputStream.close();
-                            }
-                        }
+    private int instrumentDirectory(File dir, ClassInstrumenter instrumenter) {
+        instrumentationFailure.set(null);
+        int window = 4 * threads;
+        Semaphore inFlight = new Semaphore(window);
+        AtomicInteger instrumented = new AtomicInteger();
+        try {
+            scanDirectory(dir, instrumenter, inFlight, instrumented);
+        }
+        finally {
+            inFlight.acquireUninterruptibly(window);
+        }
+        BuildException failure = instrumentationFailure.get();
+        if (failure != null) {
+            throw failure;
+        }
+        return instrumented.get();
+    }
+
+    private void scanDirectory(File dir, ClassInstrumenter instrumenter, Semaphore inFlight,
+                               AtomicInteger instrumented) {
+        try {
+            DirectoryStream<java.nio.file.Path> stream = Files.newDirectoryStream(dir.toPath());
+            try {
+                for (java.nio.file.Path path : stream) {
+                    if (instrumentationFailure.get() != null) {
+                        return;
                     }
-                    finally {
-                        inputStream.close();
+                    File file = path.toFile();
+                    if (file.getName().endsWith(".class")) {
+                        inFlight.acquireUninterruptibly();
+                        pool.execute(new InstrumentStreamedFileTask(file, instrumenter, inFlight, instrumented));
+                    } else if (file.isDirectory()) {
+                        scanDirectory(file, instrumenter, inFlight, instrumented);
                     }
                 }
-                catch (IOException e) {
-                    log("Failed to instrument @NotNull assertion for " + path + ": " + e.getMessage(),
-                            Project.MSG_WARN);
+            }
+            finally {
+                stream.close();
+            }
+        }
+        catch (IOException e) {
+            log("Failed to list " + dir + ": " + e.getMessage(), Project.MSG_WARN);
+        }
+    }
+
+    /**
+     * Runs the given instrumentation task on a fork-join pool with the configured number of threads
+     *
+     * @param task the task to run
+     * @return the amount of classes actually affected by instrumentation
+     */
+    protected int instrumentNotNull(ForkJoinTask<Integer> task) {
+        instrumentationFailure.set(null);
+        int instrumented = pool.invoke(task);
+        BuildException failure = instrumentationFailure.get();
+        if (failure != null) {
+            throw failure;
+        }
+        return instrumented;
+    }
+
+    /**
+     * @return the fork-join pool running the instrumentation, only available during instrumentation
+     */
+    protected ForkJoinPool getInstrumentationPool() {
+        return pool;
+    }
+
+    /**
+     * Determines the class files produced by compiling the sources in the current compile list, i.e. for a source
+     * file "a/b/Foo.java" the files "a/b/Foo.class" and "a/b/Foo$*.class" in the destination directory.
+     *
+     * @return the class files produced by the current compilation run
+     */
+    private List<File> getCompiledClassFiles() {
+        String[] srcDirs = getSrcdir().list();
+        List<File> classFiles = new ArrayList<File>();
+        for (File sourceFile : compileList) {
+            String sourcePath = sourceFile.getAbsolutePath();
+            for (String srcDir : srcDirs) {
+                String root = new File(srcDir).getAbsolutePath() + File.separatorChar;
+                if (sourcePath.startsWith(root)) {
+                    String relativePath = sourcePath.substring(root.length());
+                    File classDir = new File(getDestdir(), relativePath).getParentFile();
+                    String name = sourceFile.getName();
+                    name = name.substring(0, name.lastIndexOf('.'));
+                    addCompiledClassFiles(classDir, name, classFiles);
+                    break;
                 }
-                catch (Exception e) {
-                    fireError("@NotNull instrumentation failed for " + path + ": " + e.toString());
+            }
+        }
+        log(classFiles.size() + " class files produced by " + compileList.length + " compiled source files",
+                Project.MSG_VERBOSE);
+        return classFiles;
+    }
+
+    /**
+     * Adds the class file of the given top-level class as well as the ones of all its inner classes to the given list
+     *
+     * @param classDir   the directory containing the class files
+     * @param name       the simple name of the top-level class
+     * @param classFiles the list to add to
+     */
+    private void addCompiledClassFiles(File classDir, String name, List<File> classFiles) {
+        if (!classDir.isDirectory()) {
+            return;
+        }
+        String innerPrefix = name + '$';
+        try {
+            DirectoryStream<java.nio.file.Path> stream = Files.newDirectoryStream(classDir.toPath());
+            try {
+                for (java.nio.file.Path path : stream) {
+                    String fileName = path.getFileName().toString();
+                    if (fileName.endsWith(".class") &&
+                            (fileName.equals(name + ".class") || fileName.startsWith(innerPrefix))) {
+                        classFiles.add(path.toFile());
+                    }
                 }
-            } else if (file.isDirectory()) {
-                instrumented += instrumentNotNull(file, loader);
+            }
+            finally {
+                stream.close();
             }
         }
+        catch (IOException e) {
+            log("Failed to list " + classDir + ": " + e.getMessage(), Project.MSG_WARN);
+        }
+    }
 
-        return instrumented;
+    /**
+     * Instrument a single class file with NotNull annotations
+     *
+     * @param file         the class file to instrument
+     * @param instrumenter the instrumenter to use
+     * @return true if the class was actually affected by instrumentation
+     */
+    boolean instrumentClassFile(File file, ClassInstrumenter instrumenter) {
+        String path = file.getPath();
+        InstrumentationReport.ClassRecord record = instrumenter.createRecord(path);
+        try {
+            long start = System.nanoTime();
+            int length = (int) file.length();
+            byte[] buffer = getReadBuffer(length);
+            readFile(file, buffer, length);
+            if (record != null) {
+                record.readNanos = System.nanoTime() - start;
+            }
+            byte[] instrumented = instrumenter.instrument(buffer, length, path, record);
+            if (instrumented != null) {
+                start = System.nanoTime();
+                writeFile(file, instrumented);
+                if (record != null) {
+                    record.writeNanos = System.nanoTime() - start;
+                }
+                return true;
+            }
+        }
+        catch (IOException e) {
+            log("Failed to instrument @NotNull assertion for " + path + ": " + e.getMessage(),
+                    Project.MSG_WARN);
+        }
+        catch (Exception e) {
+            fireError("@NotNull instrumentation failed for " + path + ": " + e.toString());
+        }
+        return false;
     }
 
-    private void fireError(String message) {
+    /**
+     * Returns the read buffer of the current thread, which is reused for all class files read by the thread.
+     *
+     * @param size the minimum size of the buffer
+     * @return the buffer
+     */
+    private byte[] getReadBuffer(int size) {
+        byte[] buffer = readBuffers.get();
+        if (buffer == null || buffer.length < size) {
+            buffer = new byte[Math.max(size, READ_BUFFER_SIZE)];
+            readBuffers.set(buffer);
+        }
+        return buffer;
+    }
+
+    private static void readFile(File file, byte[] buffer, int length) throws IOException {
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            int count = 0;
+            while (count < length) {
+                int n = inputStream.read(buffer, count, length - count);
+                if (n == -1) {
+                    throw new IOException("Unexpected end of file");
+                }
+                count += n;
+            }
+        }
+        finally {
+            inputStream.close();
+        }
+    }
+
+    protected void fireError(String message) {
         if (failOnError) {
             throw new BuildException(message, getLocation());
         } else {
@@ -281,15 +1011,189 @@ public class Javacn extends Javac {
         }
     }
 
-    private static URLClassLoader createClassLoader(String classPath) throws MalformedURLException {
-        ArrayList<URL> urls = new ArrayList<URL>();
-        for (StringTokenizer tokenizer = new StringTokenizer(classPath, File.pathSeparator); tokenizer
-                .hasMoreTokens();) {
-            String s = tokenizer.nextToken();
-            urls.add(new File(s).toURL());
+    /**
+     * Instruments a single class file, recording the first build failure instead of propagating it through the
+     * fork-join pool (which would rewrap it) and skipping all work once such a failure has occurred.
+     *
+     * @return 1 if the class was actually affected by instrumentation, 0 otherwise
+     */
+    private int instrumentRecordingFailure(File file, ClassInstrumenter instrumenter) {
+        if (instrumentationFailure.get() != null) {
+            return 0;
+        }
+        try {
+            return instrumentClassFile(file, instrumenter) ? 1 : 0;
+        }
+        catch (BuildException e) {
+            instrumentationFailure.compareAndSet(null, e);
+            return 0;
+        }
+    }
+
+    /**
+     * Instruments a single class file, see {@link #instrumentRecordingFailure(File, ClassInstrumenter)}.
+     */
+    @SuppressWarnings("serial")
+    private class InstrumentFileTask extends RecursiveTask<Integer> {
+        private final File file;
+        private final ClassInstrumenter instrumenter;
+
+        private InstrumentFileTask(File file, ClassInstrumenter instrumenter) {
+            this.file = file;
+            this.instrumenter = instrumenter;
+        }
+
+        @Override
+        protected Integer compute() {
+            return instrumentRecordingFailure(file, instrumenter);
+        }
+    }
+
+    /**
+     * Instruments a single class file handed out by the directory scan and releases its slot in the in-flight window.
+     */
+    @SuppressWarnings("serial")
+    private class InstrumentStreamedFileTask extends RecursiveAction {
+        private final File file;
+        private final ClassInstrumenter instrumenter;
+        private final Semaphore inFlight;
+        private final AtomicInteger instrumented;
+
+        private InstrumentStreamedFileTask(File file, ClassInstrumenter instrumenter, Semaphore inFlight,
+                                           AtomicInteger instrumented) {
+            this.file = file;
+            this.instrumenter = instrumenter;
+            this.inFlight = inFlight;
+            this.instrumented = instrumented;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                instrumented.addAndGet(instrumentRecordingFailure(file, instrumenter));
+            }
+            finally {
+                inFlight.release();
+            }
+        }
+    }
+
+    /**
+     * Instruments a list of class files, forking one subtask per class file.
+     */
+    @SuppressWarnings("serial")
+    private class InstrumentFilesTask extends RecursiveTask<Integer> {
+        private final List<File> files;
+        private final ClassInstrumenter instrumenter;
+
+        private InstrumentFilesTask(List<File> files, ClassInstrumenter instrumenter) {
+            this.files = files;
+            this.instrumenter = instrumenter;
+        }
+
+        @Override
+        protected Integer compute() {
+            List<RecursiveTask<Integer>> tasks = new ArrayList<RecursiveTask<Integer>>();
+            for (File file : files) {
+                tasks.add(new InstrumentFileTask(file, instrumenter));
+            }
+            return sum(invokeAll(tasks));
+        }
+    }
+
+    /**
+     * Writes a single class compiled in memory,
+     * see {@link Javacn#writeCompiledClass(String, byte[], ClassInstrumenter)}.
+     */
+    @SuppressWarnings("serial")
+    private class WriteCompiledClassTask extends RecursiveTask<Integer> {
+        private final String name;
+        private final byte[] classBytes;
+        private final ClassInstrumenter instrumenter;
+
+        private WriteCompiledClassTask(String name, byte[] classBytes, ClassInstrumenter instrumenter) {
+            this.name = name;
+            this.classBytes = classBytes;
+            this.instrumenter = instrumenter;
+        }
+
+        @Override
+        protected Integer compute() {
+            if (instrumentationFailure.get() != null) {
+                return 0;
+            }
+            try {
+                return writeCompiledClass(name, classBytes, instrumenter) ? 1 : 0;
+            }
+            catch (BuildException e) {
+                instrumentationFailure.compareAndSet(null, e);
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Writes all classes compiled in memory, forking one subtask per class.
+     */
+    @SuppressWarnings("serial")
+    private class WriteCompiledClassesTask extends RecursiveTask<Integer> {
+        private final Map<String, byte[]> classes;
+        private final ClassInstrumenter instrumenter;
+
+        private WriteCompiledClassesTask(Map<String, byte[]> classes, ClassInstrumenter instrumenter) {
+            this.classes = classes;
+            this.instrumenter = instrumenter;
+        }
+
+        @Override
+        protected Integer compute() {
+            List<RecursiveTask<Integer>> tasks = new ArrayList<RecursiveTask<Integer>>();
+            for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+                tasks.add(new WriteCompiledClassTask(entry.getKey(), entry.getValue(), instrumenter));
+            }
+            return sum(invokeAll(tasks));
+        }
+    }
+
+    private static int sum(Collection<RecursiveTask<Integer>> tasks) {
+        int sum = 0;
+        for (RecursiveTask<Integer> task : tasks) {
+            sum += task.join();
+        }
+        return sum;
+    }
+
+    /**
+     * An additional bytecode transformation given by the class name of its {@link ClassVisitorFactory}, which must be
+     * loadable from the classpath of the task definition and have a public no-arg constructor.
+     */
+    public class Visitor {
+        private String classname;
+
+        /**
+         * @param classname the fully qualified name of the visitor factory class
+         */
+        public void setClassname(String classname) {
+            this.classname = classname;
+        }
+
+        private ClassVisitorFactory createFactory(ClassLoader loader) {
+            if (classname == null) {
+                throw new BuildException("The classname attribute of visitor must be set", getLocation());
+            }
+            try {
+                return Class.forName(classname, true, loader).asSubclass(ClassVisitorFactory.class)
+                        .getDeclaredConstructor().newInstance();
+            }
+            catch (InvocationTargetException e) {
+                throw new BuildException("Could not instantiate visitor factory " + classname + ": " + e.getCause(),
+                        e.getCause(), getLocation());
+            }
+            catch (Exception e) {
+                throw new BuildException("Could not instantiate visitor factory " + classname + ": " + e, e,
+                        getLocation());
+            }
         }
-        URL[] urlsArr = urls.toArray(new URL[urls.size()]);
-        return new URLClassLoader(urlsArr, null);
     }
 
 }
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2000-2008 JetBrains s.r.o.
+ * Modified in 2009 by Mathias Doenitz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.parboiled.compiler.notNullVerification;
+
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.Attribute;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Determines the methods of a class carrying @NotNull annotations on themselves or their parameters, without parsing
+ * any code. All other methods are left alone by the instrumentation, which allows passing them straight through to
+ * the class writer.
+ */
+class AnnotatedMethods implements ClassVisitor, MethodVisitor {
+
+    private final Set<String> methods = new HashSet<String>();
+    private String method;
+
+    /**
+     * Scans the given class.
+     *
+     * @param reader the reader of the class
+     * @return the name and descriptor of every method carrying a @NotNull annotation
+     */
+    static Set<String> scan(ClassReader reader) {
+        AnnotatedMethods scanner = new AnnotatedMethods();
+        reader.accept(scanner, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        return scanner.methods;
+    }
+
+    public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+        method = name + desc;
+        return this;
+    }
+
+    public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+        if (method != null && MyMethodAdapter.isNotNull(desc)) {
+            methods.add(method);
+        }
+        return null;
+    }
+
+    public AnnotationVisitor visitParameterAnnotation(int parameter, String desc, boolean visible) {
+        if (MyMethodAdapter.isNotNull(desc)) {
+            methods.add(method);
+        }
+        return null;
+    }
+
+    public void visit(int version, int access, String name, String signature, String superName,
+                      String[] interfaces) {
+    }
+
+    public void visitSource(String source, String debug) {
+    }
+
+    public void visitOuterClass(String owner, String name, String desc) {
+    }
+
+    public void visitAttribute(Attribute attr) {
+    }
+
+    public void visitInnerClass(String name, String outerName, String innerName, int access) {
+    }
+
+    public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+        return null;
+    }
+
+    public AnnotationVisitor visitAnnotationDefault() {
+        return null;
+    }
+
+    public void visitCode() {
+    }
+
+    public void visitFrame(int type, int nLocal, Object[] local, int nStack, Object[] stack) {
+    }
+
+    public void visitInsn(int opcode) {
+    }
+
+    public void visitIntInsn(int opcode, int operand) {
+    }
+
+    public void visitVarInsn(int opcode, int var) {
+    }
+
+    public void visitTypeInsn(int opcode, String type) {
+    }
+
+    public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+    }
+
+    public void visitMethodInsn(int opcode, String owner, String name, String desc) {
+    }
+
+    public void visitJumpInsn(int opcode, Label label) {
+    }
+
+    public void visitLabel(Label label) {
+    }
+
+    public void visitLdcInsn(Object cst) {
+    }
+
+    public void visitIincInsn(int var, int increment) {
+    }
+
+    public void visitTableSwitchInsn(int min, int max, Label dflt, Label[] labels) {
+    }
+
+    public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+    }
+
+    public void visitMultiANewArrayInsn(String desc, int dims) {
+    }
+
+    public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {
+    }
+
+    public void visitLocalVariable(String name, String desc, String signature, Label start, Label end, int index) {
+    }
+
+    public void visitLineNumber(int line, Label start) {
+    }
+
+    public void visitMaxs(int maxStack, int maxLocals) {
+    }
+
+    public void visitEnd() {
+    }
+
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2000-2008 JetBrains s.r.o.
+ * Modified in 2009 by Mathias Doenitz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.parboiled.compiler.notNullVerification;
+
+import org.objectweb.asm.Opcodes;
+
+import java.util.Locale;
+
+/**
+ * The methods to instrument by their visibility, see {@link InstrumentationOptions#setScope(CheckScope)}.
+ * Apart from {@link #ALL} the scopes exclude synthetic and bridge methods, which are never called from source code.
+ */
+public enum CheckScope {
+
+    /**
+     * Only public methods.
+     */
+    PUBLIC,
+
+    /**
+     * Public and protected methods.
+     */
+    PROTECTED,
+
+    /**
+     * All methods but private ones.
+     */
+    PACKAGE,
+
+    /**
+     * All methods, including synthetic ones.
+     */
+    ALL;
+
+    /**
+     * @param name the name of a scope, case insensitive
+     * @return the scope
+     * @throws IllegalArgumentException if there is no scope of the given name
+     */
+    public static CheckScope forName(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        }
+        catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown scope '" + name +
+                    "', expected public, protected, package or all");
+        }
+    }
+
+    /**
+     * @param access the access flags of a method
+     * @return true if the method lies within this scope
+     */
+    public boolean includes(int access) {
+        if (this == ALL) {
+            return true;
+        }
+        if ((access & (Opcodes.ACC_SYNTHETIC | Opcodes.ACC_BRIDGE)) != 0) {
+            return false;
+        }
+        switch (this) {
+            case PUBLIC:
+                return (access & Opcodes.ACC_PUBLIC) != 0;
+            case PROTECTED:
+                return (access & (Opcodes.ACC_PUBLIC | Opcodes.ACC_PROTECTED)) != 0;
+            default:
+                return (access & Opcodes.ACC_PRIVATE) == 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+
+}
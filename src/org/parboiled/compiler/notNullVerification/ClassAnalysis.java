@@ -0,0 +1,160 @@
+/*
+ * Copyright 2000-2008 JetBrains s.r.o.
+ * Modified in 2009 by Mathias Doenitz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.parboiled.compiler.notNullVerification;
+
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.Attribute;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The results of analyzing a class prior to its instrumentation, determining the checks that can be omitted since
+ * they provably never fail.
+ * A parameter check of a private method is redundant if the method is called from at least one other method of the
+ * class and every call site passes a value the {@link NullnessAnalyzer} proves to be non-null. Since private methods
+ * cannot be called from anywhere else (apart from reflection), such a check could only fail if one of the checks of
+ * the calling methods did. Hence only the @NotNull parameters of methods actually checked, i.e. neither out of scope
+ * nor excluded, count as non-null.
+ * Package-private methods are not considered, since their call sites are not confined to a single class file.
+ * A return value check is redundant if the returned value is provably non-null at the respective ARETURN instruction.
+ */
+class ClassAnalysis implements ClassVisitor {
+
+    private final Set<String> privateMethods = new HashSet<String>();
+    private final Set<String> failedMethods = new HashSet<String>();
+    private final Map<String, boolean[]> nonNullArguments = new HashMap<String, boolean[]>();
+    private final Set<String> calledFromOtherMethods = new HashSet<String>();
+    private final Map<String, BitSet> nonNullReturns = new HashMap<String, BitSet>();
+    private final InstrumentationOptions options;
+    private String className;
+
+    private ClassAnalysis(InstrumentationOptions options) {
+        this.options = options;
+    }
+
+    /**
+     * Analyzes the given class.
+     *
+     * @param reader  the reader of the class
+     * @param options the options the class is instrumented with
+     * @return the analysis results
+     */
+    static ClassAnalysis analyze(ClassReader reader, InstrumentationOptions options) {
+        ClassAnalysis analysis = new ClassAnalysis(options);
+        reader.accept(analysis, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        return analysis;
+    }
+
+    /**
+     * @param method the name and descriptor of a method of the class
+     * @param param  the index of a parameter of the method
+     * @return true if the parameter is never null so its check can be omitted
+     */
+    boolean isParameterProvenNonNull(String method, int param) {
+        if (!privateMethods.contains(method) || !calledFromOtherMethods.contains(method)) {
+            return false;
+        }
+        boolean[] nonNull = nonNullArguments.get(method);
+        return nonNull != null && nonNull[param];
+    }
+
+    /**
+     * @param method the name and descriptor of a method of the class
+     * @param index  the index of an ARETURN instruction among all ARETURN instructions of the method
+     * @return true if the value returned by the instruction is never null so its check can be omitted
+     */
+    boolean isReturnProvenNonNull(String method, int index) {
+        BitSet returns = nonNullReturns.get(method);
+        return returns != null && returns.get(index);
+    }
+
+    void addReturns(String method, BitSet nonNull) {
+        nonNullReturns.put(method, nonNull);
+    }
+
+    void addCallSite(String caller, String method, boolean[] nonNull) {
+        if (!caller.equals(method)) {
+            calledFromOtherMethods.add(method);
+        }
+        boolean[] previous = nonNullArguments.get(method);
+        if (previous != null) {
+            for (int i = 0; i < nonNull.length; i++) {
+                nonNull[i] &= previous[i];
+            }
+        }
+        nonNullArguments.put(method, nonNull);
+    }
+
+    /**
+     * Called for methods that could not be analyzed. Since their call sites are unknown no other method can be proven
+     * to only receive non-null values.
+     */
+    void giveUp(String method) {
+        failedMethods.add(method);
+    }
+
+    public void visit(int version, int access, String name, String signature, String superName,
+                      String[] interfaces) {
+        className = name;
+    }
+
+    public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+        if ((access & Opcodes.ACC_PRIVATE) != 0) {
+            privateMethods.add(name + desc);
+        }
+        boolean checked = NotNullVerifyingInstrumenter.getOmission(options, className, access, name) ==
+                NotNullVerifyingInstrumenter.CHECKED;
+        return new NullnessAnalyzer(this, className, access, name, desc, checked);
+    }
+
+    public void visitEnd() {
+        if (!failedMethods.isEmpty()) {
+            privateMethods.clear();
+        }
+    }
+
+    public void visitSource(String source, String debug) {
+    }
+
+    public void visitOuterClass(String owner, String name, String desc) {
+    }
+
+    public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+        return null;
+    }
+
+    public void visitAttribute(Attribute attr) {
+    }
+
+    public void visitInnerClass(String name, String outerName, String innerName, int access) {
+    }
+
+    public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+        return null;
+    }
+
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2000-2008 JetBrains s.r.o.
+ * Modified in 2009 by Mathias Doenitz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.parboiled.compiler.notNullVerification;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Options controlling the code emitted by the {@link NotNullVerifyingInstrumenter}.
+ */
+public class InstrumentationOptions {
+
+    private boolean outlineThrows = false;
+    private boolean preserveFrames = false;
+    private boolean elideParameterChecks = false;
+    private boolean elideReturnChecks = false;
+    private boolean assertionGatedChecks = false;
+    private boolean countChecks = false;
+    private boolean fuseParameterChecks = false;
+    private CheckScope scope = CheckScope.ALL;
+    private final List<MethodPattern> checkIncludes = new ArrayList<MethodPattern>();
+    private final List<MethodPattern> checkExcludes = new ArrayList<MethodPattern>();
+
+    public boolean isOutlineThrows() {
+        return outlineThrows;
+    }
+
+    /**
+     * If set to true the exceptions for failed checks are not constructed inline but by a single synthetic static
+     * helper method per class, so every check only costs a compare, a branch and a call to that helper.
+     * This keeps the bytecode of small methods below the JIT inlining thresholds.
+     *
+     * @param outlineThrows true to outline the exception construction into a per-class helper method
+     */
+    public void setOutlineThrows(boolean outlineThrows) {
+        this.outlineThrows = outlineThrows;
+    }
+
+    public boolean isPreserveFrames() {
+        return preserveFrames;
+    }
+
+    /**
+     * If set to true the existing stack map frames of the instrumented classes are kept and only the few frames
+     * required by the generated code are added, so the class writer neither has to recompute the frames nor the
+     * maximum stack sizes of all methods and never needs to resolve types from the classpath.
+     * Use {@code 0} as class writer flags in this mode.
+     *
+     * @param preserveFrames true to keep the original stack map frames
+     */
+    public void setPreserveFrames(boolean preserveFrames) {
+        this.preserveFrames = preserveFrames;
+    }
+
+    public boolean isElideParameterChecks() {
+        return elideParameterChecks;
+    }
+
+    /**
+     * If set to true the checks of parameters of private methods are omitted if all call sites within the class
+     * provably pass non-null values, e.g. newly created objects, constants, "this" or @NotNull parameters of the
+     * calling method. Requires calling {@link NotNullVerifyingInstrumenter#analyze(org.objectweb.asm.ClassReader)}
+     * before instrumentation.
+     *
+     * @param elideParameterChecks true to omit provably redundant parameter checks of private methods
+     */
+    public void setElideParameterChecks(boolean elideParameterChecks) {
+        this.elideParameterChecks = elideParameterChecks;
+    }
+
+    public boolean isElideReturnChecks() {
+        return elideReturnChecks;
+    }
+
+    /**
+     * If set to true the return value checks of @NotNull methods are omitted at all return instructions whose value is
+     * provably non-null, e.g. "this", a newly created object, a constant or a @NotNull parameter. Requires calling
+     * {@link NotNullVerifyingInstrumenter#analyze(org.objectweb.asm.ClassReader)} before instrumentation.
+     *
+     * @param elideReturnChecks true to omit provably redundant return value checks
+     */
+    public void setElideReturnChecks(boolean elideReturnChecks) {
+        this.elideReturnChecks = elideReturnChecks;
+    }
+
+    public boolean isAssertionGatedChecks() {
+        return assertionGatedChecks;
+    }
+
+    /**
+     * If set to true the checks are only performed if assertions are enabled for the instrumented class, e.g. with
+     * "-ea". Just like javac does for assert statements the checks are guarded by a static final
+     * {@code $assertionsDisabled} field initialized from {@link Class#desiredAssertionStatus()}, so the JIT removes
+     * them entirely when running with assertions disabled.
+     *
+     * @param assertionGatedChecks true to perform the checks only if assertions are enabled
+     */
+    public void setAssertionGatedChecks(boolean assertionGatedChecks) {
+        this.assertionGatedChecks = assertionGatedChecks;
+    }
+
+    public boolean isCountChecks() {
+        return countChecks;
+    }
+
+    /**
+     * If set to true every check counts its executions in a striped counter per check site, exposed at runtime by
+     * {@link org.parboiled.runtime.NotNullCheckCounters} through JMX and dumped at shutdown. This shows which checks
+     * lie on the hottest paths. Instrumented classes then depend on that class at runtime.
+     *
+     * @param countChecks true to count the executions of all checks
+     */
+    public void setCountChecks(boolean countChecks) {
+        this.countChecks = countChecks;
+    }
+
+    public boolean isFuseParameterChecks() {
+        return fuseParameterChecks;
+    }
+
+    /**
+     * If set to true the parameter checks of a method with several @NotNull parameters are fused into a compact
+     * sequence of one load and one branch per parameter at method entry, all leading to a single block behind the
+     * original code. Only that block determines the offending parameter and constructs the exception, with the same
+     * message as the individual checks.
+     *
+     * @param fuseParameterChecks true to share one failure block among all parameter checks of a method
+     */
+    public void setFuseParameterChecks(boolean fuseParameterChecks) {
+        this.fuseParameterChecks = fuseParameterChecks;
+    }
+
+    public CheckScope getScope() {
+        return scope;
+    }
+
+    /**
+     * Restricts the checks to the methods of the given visibility, e.g. to the public API of a library, keeping the
+     * internal call chains free of checks. Defaults to {@link CheckScope#ALL}.
+     *
+     * @param scope the visibility of the methods to instrument
+     */
+    public void setScope(CheckScope scope) {
+        this.scope = scope;
+    }
+
+    /**
+     * Restricts the checks to the methods matching the given pattern or any other include pattern.
+     * Patterns have the form {@code class[#method]} with the fully qualified class name in source form, where '*'
+     * matches any part of a package, class or method name and '**' any sequence of packages, e.g.
+     * {@code com.company.api.**} or {@code **.*Impl#get*}.
+     *
+     * @param pattern the pattern of the methods to instrument
+     * @throws IllegalArgumentException if the pattern is malformed
+     */
+    public void addCheckInclude(String pattern) {
+        checkIncludes.add(new MethodPattern(pattern));
+    }
+
+    /**
+     * Omits the checks of the methods matching the given pattern, even if they match an include pattern.
+     *
+     * @param pattern the pattern of the methods not to instrument, see {@link #addCheckInclude(String)}
+     * @throws IllegalArgumentException if the pattern is malformed
+     */
+    public void addCheckExclude(String pattern) {
+        checkExcludes.add(new MethodPattern(pattern));
+    }
+
+    /**
+     * @param className  the fully qualified name of a class in source form
+     * @param methodName the name of a method of the class
+     * @return true if the include and exclude patterns select the method for instrumentation
+     */
+    public boolean isSelected(String className, String methodName) {
+        return (checkIncludes.isEmpty() || matches(checkIncludes, className, methodName)) &&
+                !matches(checkExcludes, className, methodName);
+    }
+
+    private static boolean matches(List<MethodPattern> patterns, String className, String methodName) {
+        for (MethodPattern pattern : patterns) {
+            if (pattern.matches(className, methodName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return a description of the scope and the include and exclude patterns
+     */
+    public String getPolicy() {
+        return "scope=" + scope + ",checkIncludes=" + checkIncludes + ",checkExcludes=" + checkExcludes;
+    }
+
+    /**
+     * @return a description of all option values, suitable as part of a cache key
+     */
+    @Override
+    public String toString() {
+        return "outlineThrows=" + outlineThrows + ",preserveFrames=" + preserveFrames +
+                ",elideParameterChecks=" + elideParameterChecks +
+                ",elideReturnChecks=" + elideReturnChecks + ",assertionGatedChecks=" + assertionGatedChecks +
+                ",countChecks=" + countChecks + ",fuseParameterChecks=" + fuseParameterChecks + ',' + getPolicy();
+    }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2000-2008 JetBrains s.r.o.
+ * Modified in 2009 by Mathias Doenitz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.parboiled.compiler.notNullVerification;
+
+import java.util.regex.Pattern;
+
+/**
+ * A pattern selecting methods by the name of their class and optionally their own name, in the form
+ * {@code class[#method]} with the fully qualified class name in source form (nested classes separated by '$').
+ * In the class part '*' matches any part of a package or class name and '**' any sequence of packages, in the method
+ * part '*' matches any part of a name. Examples: {@code com.company.internal.**}, {@code **.*Impl#get*}.
+ */
+class MethodPattern {
+
+    private final String pattern;
+    private final Pattern classPattern;
+    private final Pattern methodPattern;
+
+    MethodPattern(String pattern) {
+        this.pattern = pattern;
+        int hash = pattern.indexOf('#');
+        if (hash == 0 || hash == pattern.length() - 1 || pattern.length() == 0) {
+            throw new IllegalArgumentException("Invalid method pattern '" + pattern + "'");
+        }
+        classPattern = compile(hash >= 0 ? pattern.substring(0, hash) : pattern, "[^.]*");
+        methodPattern = hash >= 0 ? compile(pattern.substring(hash + 1), ".*") : null;
+    }
+
+    private static Pattern compile(String glob, String star) {
+        StringBuilder regex = new StringBuilder();
+        int start = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            if (glob.charAt(i) == '*') {
+                regex.append(Pattern.quote(glob.substring(start, i)));
+                if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                    regex.append(".*");
+                    i++;
+                } else {
+                    regex.append(star);
+                }
+                start = i + 1;
+            }
+        }
+        regex.append(Pattern.quote(glob.substring(start)));
+        return Pattern.compile(regex.toString());
+    }
+
+    /**
+     * @param className  the fully qualified name of a class in source form
+     * @param methodName the name of a method of the class
+     * @return true if the pattern matches the method
+     */
+    boolean matches(String className, String methodName) {
+        return classPattern.matcher(className).matches() &&
+                (methodPattern == null || methodPattern.matcher(methodName).matches());
+    }
+
+    @Override
+    public String toString() {
+        return pattern;
+    }
+
+}
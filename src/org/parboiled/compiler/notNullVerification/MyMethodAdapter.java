@@ -21,6 +21,7 @@ import org.apache.tools.ant.Project;
 import org.objectweb.asm.*;
 
 import java.util.ArrayList;
+import java.util.List;
 
 class MyMethodAdapter extends MethodAdapter {
 
@@ -34,9 +35,21 @@ class MyMethodAdapter extends MethodAdapter {
     private final int access;
     private final int startParameter;
     private final String name;
+    private final String desc;
+    private final List<ThrowBlock> myThrowBlocks = new ArrayList<ThrowBlock>();
+    private int myReturnCount;
+    private Label myCheckedReturnLabel;
+    private boolean myInitializesStatics;
+    private boolean myCountsChecks;
+    private Label myFusedCheckLabel;
+    private final List<Integer> myFusedParams = new ArrayList<Integer>();
+    private final int omission;
 
+    /**
+     * @param omission {@link NotNullVerifyingInstrumenter#CHECKED} or the reason for omitting all checks of the method
+     */
     public MyMethodAdapter(NotNullVerifyingInstrumenter instrumenter, MethodVisitor v, Type[] args, Type returnType,
-                           int access, int startParameter, String name) {
+                           int access, int startParameter, String name, String desc, int omission) {
         super(v);
         this.instrumenter = instrumenter;
         this.args = args;
@@ -44,20 +57,28 @@ class MyMethodAdapter extends MethodAdapter {
         this.access = access;
         this.startParameter = startParameter;
         this.name = name;
+        this.desc = desc;
+        this.omission = omission;
         myNotNullParams = new ArrayList<Object>();
         myIsNotNull = false;
     }
 
+    /**
+     * Note that ASM already reports the parameter index as index into the method descriptor, i.e. including the
+     * synthetic parameters of enum and inner class constructors (for which javac omits the annotation entries).
+     */
     @Override
     public AnnotationVisitor visitParameterAnnotation(int parameter, String anno, boolean visible) {
         AnnotationVisitor av = mv.visitParameterAnnotation(parameter, anno, visible);
         if (isNotNull(anno)) {
-            if (isReferenceType(args[parameter])) {
+            if (isReferenceType(args[parameter]) && omission != NotNullVerifyingInstrumenter.CHECKED) {
+                instrumenter.omitCheck(omission);
+            } else if (isReferenceType(args[parameter])) {
                 myNotNullParams.add(parameter);
             } else {
-                instrumenter.antTask.log(toOrdinalString(parameter) + " parameter of method " + getFullMethodName() +
-                        " carries a @NotNull annotation but is not a reference type, ignoring annotation...",
-                        Project.MSG_WARN);
+                instrumenter.log(toOrdinalString(parameter - startParameter) + " parameter of method " +
+                        getFullMethodName() + " carries a @NotNull annotation but is not a reference type, " +
+                        "ignoring annotation...", Project.MSG_WARN);
             }
         }
         return av;
@@ -70,7 +91,7 @@ class MyMethodAdapter extends MethodAdapter {
             if (isReferenceType(returnType)) {
                 myIsNotNull = true;
             } else {
-                instrumenter.antTask.log("Method " + getFullMethodName() +
+                instrumenter.log("Method " + getFullMethodName() +
                         " carries a @NotNull annotation but does not return a reference type, ignoring annotation...",
                         Project.MSG_WARN);
             }
@@ -80,24 +101,78 @@ class MyMethodAdapter extends MethodAdapter {
 
     @Override
     public void visitCode() {
+        if (NotNullVerifyingInstrumenter.STATIC_INITIALIZER_NAME.equals(name) &&
+                instrumenter.needsStaticInitialization()) {
+            instrumenter.generateStaticInitialization(mv);
+            myInitializesStatics = true;
+        }
         if (myNotNullParams.size() > 0) {
             myStartGeneratedCodeLabel = new Label();
             mv.visitLabel(myStartGeneratedCodeLabel);
         }
+        Label gateSkip = null;
+        int checkedParams = 0;
+        for (Object myNotNullParam : myNotNullParams) {
+            if (!isParameterProvenNonNull((Integer) myNotNullParam)) {
+                checkedParams++;
+            }
+        }
+        if (instrumenter.options.isFuseParameterChecks() && checkedParams > 1) {
+            myFusedCheckLabel = new Label();
+        }
         for (Object myNotNullParam : myNotNullParams) {
-            int var = ((access & Opcodes.ACC_STATIC) == 0) ? 1 : 0;
             int param = (Integer) myNotNullParam;
-            for (int i = 0; i < param + startParameter; ++i) {
-                var += args[i].getSize();
+            if (isParameterProvenNonNull(param)) {
+                instrumenter.myElidedChecks++;
+                continue;
+            }
+            if (instrumenter.myIsAssertionGated && gateSkip == null) {
+                gateSkip = new Label();
+                instrumenter.generateAssertionGate(mv, true, gateSkip);
+            }
+            generateCount(toOrdinalString(param - startParameter) + " parameter");
+            mv.visitVarInsn(Opcodes.ALOAD, getParameterVar(param));
+            instrumenter.countCheck(name + desc);
+
+            if (myFusedCheckLabel != null) {
+                // all parameters share a single failure block, which determines the offending one
+                mv.visitJumpInsn(Opcodes.IFNULL, myFusedCheckLabel);
+                myFusedParams.add(param);
+                instrumenter.myIsModification = true;
+            } else if (instrumenter.options.isPreserveFrames()) {
+                Label throwLabel = new Label();
+                mv.visitJumpInsn(Opcodes.IFNULL, throwLabel);
+                myThrowBlocks.add(new ThrowBlock(throwLabel, "java/lang/IllegalArgumentException",
+                        param - startParameter));
+                instrumenter.myIsModification = true;
+            } else {
+                Label end = new Label();
+                mv.visitJumpInsn(Opcodes.IFNONNULL, end);
+
+                generateThrow("java/lang/IllegalArgumentException", param - startParameter, end);
             }
-            mv.visitVarInsn(Opcodes.ALOAD, var);
+        }
+        if (gateSkip != null) {
+            mv.visitLabel(gateSkip);
+            if (instrumenter.options.isPreserveFrames() && instrumenter.hasStackMapFrames()) {
+                // the state at method entry, the NOP keeps the frame from colliding with one of the original code
+                mv.visitFrame(Opcodes.F_SAME, 0, null, 0, null);
+                mv.visitInsn(Opcodes.NOP);
+            }
+        }
+    }
 
-            Label end = new Label();
-            mv.visitJumpInsn(Opcodes.IFNONNULL, end);
+    private boolean isParameterProvenNonNull(int param) {
+        return instrumenter.myAnalysis != null && instrumenter.options.isElideParameterChecks() &&
+                instrumenter.myAnalysis.isParameterProvenNonNull(name + desc, param);
+    }
 
-            generateThrow("java/lang/IllegalArgumentException", toOrdinalString(param) + " argument of method " +
-                    getFullMethodName() + "(...) corresponds to @NotNull parameter and must not be null", end);
+    private int getParameterVar(int param) {
+        int var = ((access & Opcodes.ACC_STATIC) == 0) ? 1 : 0;
+        for (int i = 0; i < param; ++i) {
+            var += args[i].getSize();
         }
+        return var;
     }
 
     private String toOrdinalString(int param) {
@@ -109,7 +184,7 @@ class MyMethodAdapter extends MethodAdapter {
             case 2:
                 return "3rd";
             default:
-                return param + "th";
+                return (param + 1) + "th";
         }
     }
 
@@ -125,41 +200,167 @@ class MyMethodAdapter extends MethodAdapter {
     @Override
     public void visitInsn(int opcode) {
         if (opcode == Opcodes.ARETURN && myIsNotNull) {
-            mv.visitInsn(Opcodes.DUP);
-            if (myThrowLabel == null) {
-                Label skipLabel = new Label();
-                mv.visitJumpInsn(Opcodes.IFNONNULL, skipLabel);
-                myThrowLabel = new Label();
-                mv.visitLabel(myThrowLabel);
-                generateThrow("java/lang/IllegalStateException",
-                        "@NotNull method " + getFullMethodName() + " must not return null", skipLabel);
+            if (omission != NotNullVerifyingInstrumenter.CHECKED) {
+                instrumenter.omitCheck(omission);
+            } else if (isReturnProvenNonNull(myReturnCount++)) {
+                instrumenter.myElidedChecks++;
+            } else if (!instrumenter.myIsAssertionGated) {
+                generateReturnCheck();
+            } else if (instrumenter.options.isPreserveFrames()) {
+                // jump to a checking copy of the return instruction, so the original frames stay valid
+                if (myCheckedReturnLabel == null) {
+                    myCheckedReturnLabel = new Label();
+                    instrumenter.myIsModification = true;
+                }
+                instrumenter.generateAssertionGate(mv, false, myCheckedReturnLabel);
+                instrumenter.countCheck(name + desc);
             } else {
-                mv.visitJumpInsn(Opcodes.IFNULL, myThrowLabel);
+                Label gateSkip = new Label();
+                instrumenter.generateAssertionGate(mv, true, gateSkip);
+                generateReturnCheck();
+                mv.visitLabel(gateSkip);
             }
         }
 
         mv.visitInsn(opcode);
     }
 
+    private void generateReturnCheck() {
+        generateCount("return value");
+        mv.visitInsn(Opcodes.DUP);
+        instrumenter.countCheck(name + desc);
+        if (instrumenter.options.isPreserveFrames()) {
+            if (myThrowLabel == null) {
+                myThrowLabel = new Label();
+                myThrowBlocks.add(new ThrowBlock(myThrowLabel, "java/lang/IllegalStateException", -1));
+                instrumenter.myIsModification = true;
+            }
+            mv.visitJumpInsn(Opcodes.IFNULL, myThrowLabel);
+        } else if (myThrowLabel == null) {
+            Label skipLabel = new Label();
+            mv.visitJumpInsn(Opcodes.IFNONNULL, skipLabel);
+            myThrowLabel = new Label();
+            mv.visitLabel(myThrowLabel);
+            generateThrow("java/lang/IllegalStateException", -1, skipLabel);
+        } else {
+            mv.visitJumpInsn(Opcodes.IFNULL, myThrowLabel);
+        }
+    }
+
+    private void generateCount(String site) {
+        if (instrumenter.myIsCountingChecks) {
+            instrumenter.generateCount(mv, name + desc + ' ' + site);
+            myCountsChecks = true;
+        }
+    }
+
+    /**
+     * @param index the index of the ARETURN instruction among all ARETURN instructions of the method
+     */
+    private boolean isReturnProvenNonNull(int index) {
+        return instrumenter.myAnalysis != null && instrumenter.options.isElideReturnChecks() &&
+                instrumenter.myAnalysis.isReturnProvenNonNull(name + desc, index);
+    }
+
     private String getFullMethodName() {
         return instrumenter.myClassName.replace('/', '.') + '.' + name;
     }
 
-    private void generateThrow(String exceptionClass, String descr, Label end) {
-        String exceptionParamClass = "(Ljava/lang/String;)V";
-        mv.visitTypeInsn(Opcodes.NEW, exceptionClass);
-        mv.visitInsn(Opcodes.DUP);
-        mv.visitLdcInsn(descr);
-        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, exceptionClass, NotNullVerifyingInstrumenter.CONSTRUCTOR_NAME,
-                exceptionParamClass);
-        mv.visitInsn(Opcodes.ATHROW);
+    /**
+     * Generates the throwing of the exception for a failed check, either inline or as a call to the class's
+     * throw helper method.
+     *
+     * @param exceptionClass the exception to throw
+     * @param param          the source level index of the violated parameter or -1 for the return value
+     * @param end            the label to place after the generated code
+     */
+    private void generateThrow(String exceptionClass, int param, Label end) {
+        generateThrowCode(exceptionClass, param);
         mv.visitLabel(end);
 
         instrumenter.myIsModification = true;
     }
 
+    private String getParameterMessage(int param) {
+        return toOrdinalString(param) + " argument of method " + getFullMethodName() +
+                "(...) corresponds to @NotNull parameter and must not be null";
+    }
+
+    private void generateThrowCode(String exceptionClass, int param) {
+        if (instrumenter.options.isOutlineThrows()) {
+            instrumenter.myThrowHelper.generateThrow(mv, name, param);
+        } else {
+            String descr = param == -1 ?
+                    "@NotNull method " + getFullMethodName() + " must not return null" :
+                    getParameterMessage(param);
+            String exceptionParamClass = "(Ljava/lang/String;)V";
+            mv.visitTypeInsn(Opcodes.NEW, exceptionClass);
+            mv.visitInsn(Opcodes.DUP);
+            mv.visitLdcInsn(descr);
+            mv.visitMethodInsn(Opcodes.INVOKESPECIAL, exceptionClass, NotNullVerifyingInstrumenter.CONSTRUCTOR_NAME,
+                    exceptionParamClass);
+            mv.visitInsn(Opcodes.ATHROW);
+        }
+    }
+
+    /**
+     * In frame preserving mode appends the blocks throwing the exceptions of failed checks behind the original code.
+     * The original stack map frames stay valid since no code requiring a frame is inserted in between, the blocks
+     * themselves get full frames declaring only what they need: the uninitialized this of a constructor for the
+     * parameter checks and the returned value for the return value check (assuming the return value is the only
+     * stack operand of ARETURN, as with all javac generated code). Neither the frames nor the maximum stack size
+     * need to be recomputed by the class writer. Assertion gated return value checks jump to a shared block
+     * checking the value and repeating the return.
+     */
     @Override
     public void visitMaxs(int maxStack, int maxLocals) {
+        if (myCheckedReturnLabel != null) {
+            mv.visitLabel(myCheckedReturnLabel);
+            if (instrumenter.hasStackMapFrames()) {
+                mv.visitFrame(Opcodes.F_FULL, 0, new Object[0], 1, new Object[] {returnType.getInternalName()});
+            }
+            generateCount("return value");
+            mv.visitInsn(Opcodes.DUP);
+            if (myThrowLabel == null) {
+                myThrowLabel = new Label();
+                myThrowBlocks.add(new ThrowBlock(myThrowLabel, "java/lang/IllegalStateException", -1));
+            }
+            mv.visitJumpInsn(Opcodes.IFNULL, myThrowLabel);
+            mv.visitInsn(Opcodes.ARETURN);
+        }
+        if (myInitializesStatics) {
+            maxStack = Math.max(maxStack, 2);
+        }
+        if (myCountsChecks) {
+            // the counter array and site index on top of whatever the check site has on the stack
+            maxStack += 2;
+        }
+        if (!myThrowBlocks.isEmpty()) {
+            boolean frames = instrumenter.hasStackMapFrames();
+            boolean constructor = NotNullVerifyingInstrumenter.CONSTRUCTOR_NAME.equals(name);
+            int throwStack = instrumenter.options.isOutlineThrows() ? 1 : 3;
+            for (ThrowBlock block : myThrowBlocks) {
+                mv.visitLabel(block.label);
+                if (block.param == -1) {
+                    if (frames) {
+                        mv.visitFrame(Opcodes.F_FULL, 0, new Object[0], 1, new Object[] {"java/lang/Object"});
+                    }
+                    // the DUP before ARETURN and the exception construction on top of the returned value
+                    maxStack = Math.max(maxStack + 1, 1 + throwStack);
+                } else {
+                    if (frames) {
+                        Object[] locals = constructor ? new Object[] {Opcodes.UNINITIALIZED_THIS} : new Object[0];
+                        mv.visitFrame(Opcodes.F_FULL, locals.length, locals, 0, new Object[0]);
+                    }
+                    maxStack = Math.max(maxStack, throwStack);
+                }
+                generateThrowCode(block.exceptionClass, block.param);
+            }
+        }
+        if (myFusedCheckLabel != null) {
+            generateFusedThrow();
+            maxStack = Math.max(maxStack, instrumenter.options.isOutlineThrows() ? 1 : 3);
+        }
         try {
             super.visitMaxs(maxStack, maxLocals);
         }
@@ -169,15 +370,116 @@ class MyMethodAdapter extends MethodAdapter {
         }
     }
 
+    /**
+     * Generates the block shared by all fused parameter checks, placed behind the original code. Since it is only
+     * entered if one of the parameters is null, it tests all but the last of them again in the order of the checks,
+     * selecting the message (or throw helper id) of the first null one, and throws the exception for it.
+     * In frame preserving mode its frames declare the parameters as locals, just as they are at method entry.
+     */
+    private void generateFusedThrow() {
+        boolean frames = instrumenter.options.isPreserveFrames() && instrumenter.hasStackMapFrames();
+        boolean outline = instrumenter.options.isOutlineThrows();
+        Label throwLabel = new Label();
+        Label next = myFusedCheckLabel;
+        for (int i = 0; i < myFusedParams.size(); i++) {
+            int param = myFusedParams.get(i);
+            mv.visitLabel(next);
+            if (frames) {
+                if (i == 0) {
+                    Object[] locals = getParameterFrameLocals();
+                    mv.visitFrame(Opcodes.F_FULL, locals.length, locals, 0, new Object[0]);
+                } else {
+                    mv.visitFrame(Opcodes.F_SAME, 0, null, 0, null);
+                }
+            }
+            if (i < myFusedParams.size() - 1) {
+                next = new Label();
+                mv.visitVarInsn(Opcodes.ALOAD, getParameterVar(param));
+                mv.visitJumpInsn(Opcodes.IFNONNULL, next);
+            }
+            if (outline) {
+                instrumenter.myThrowHelper.pushId(mv, name, param - startParameter);
+            } else {
+                mv.visitLdcInsn(getParameterMessage(param - startParameter));
+            }
+            if (i < myFusedParams.size() - 1) {
+                mv.visitJumpInsn(Opcodes.GOTO, throwLabel);
+            }
+        }
+        mv.visitLabel(throwLabel);
+        if (frames) {
+            mv.visitFrame(Opcodes.F_SAME1, 0, null, 1, new Object[] {outline ? Opcodes.INTEGER : "java/lang/String"});
+        }
+        if (outline) {
+            instrumenter.myThrowHelper.generateThrowOfId(mv);
+        } else {
+            String exceptionClass = "java/lang/IllegalArgumentException";
+            mv.visitTypeInsn(Opcodes.NEW, exceptionClass);
+            // exception, message, exception
+            mv.visitInsn(Opcodes.DUP_X1);
+            mv.visitInsn(Opcodes.SWAP);
+            mv.visitMethodInsn(Opcodes.INVOKESPECIAL, exceptionClass, NotNullVerifyingInstrumenter.CONSTRUCTOR_NAME,
+                    "(Ljava/lang/String;)V");
+            mv.visitInsn(Opcodes.ATHROW);
+        }
+    }
+
+    /**
+     * @return the types of the locals at method entry in the form expected by {@link MethodVisitor#visitFrame}
+     */
+    private Object[] getParameterFrameLocals() {
+        List<Object> locals = new ArrayList<Object>();
+        if ((access & Opcodes.ACC_STATIC) == 0) {
+            locals.add(NotNullVerifyingInstrumenter.CONSTRUCTOR_NAME.equals(name) ?
+                    Opcodes.UNINITIALIZED_THIS : instrumenter.myClassName);
+        }
+        for (Type arg : args) {
+            switch (arg.getSort()) {
+                case Type.FLOAT:
+                    locals.add(Opcodes.FLOAT);
+                    break;
+                case Type.LONG:
+                    locals.add(Opcodes.LONG);
+                    break;
+                case Type.DOUBLE:
+                    locals.add(Opcodes.DOUBLE);
+                    break;
+                case Type.ARRAY:
+                    locals.add(arg.getDescriptor());
+                    break;
+                case Type.OBJECT:
+                    locals.add(arg.getInternalName());
+                    break;
+                default:
+                    locals.add(Opcodes.INTEGER);
+            }
+        }
+        return locals.toArray();
+    }
+
     private static boolean isReferenceType(Type type) {
         return type.getSort() == Type.OBJECT || type.getSort() == Type.ARRAY;
     }
 
-    private static boolean isNotNull(String anno) {
-        return anno.endsWith("/NotNull;") ||
-                anno.endsWith("/NonNull;") ||
-                anno.endsWith("/Notnull;") ||
-                anno.endsWith("/Nonnull;");
+    static boolean isNotNull(String anno) {
+        for (String suffix : NotNullVerifyingInstrumenter.NOT_NULL_ANNOTATION_SUFFIXES) {
+            if (anno.endsWith(suffix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class ThrowBlock {
+        private final Label label;
+        private final String exceptionClass;
+        private final int param;
+
+        private ThrowBlock(Label label, String exceptionClass, int param) {
+            this.label = label;
+            this.exceptionClass = exceptionClass;
+            this.param = param;
+        }
     }
 
 }
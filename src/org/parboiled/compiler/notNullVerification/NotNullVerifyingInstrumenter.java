@@ -18,8 +18,14 @@
 package org.parboiled.compiler.notNullVerification;
 
 import org.objectweb.asm.*;
+import org.apache.tools.ant.Project;
 import org.apache.tools.ant.Task;
 
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
 /**
  * @author ven
  * @noinspection HardCodedStringLiteral
@@ -28,26 +34,195 @@ public class NotNullVerifyingInstrumenter extends ClassAdapter {
 
     static final String ENUM_CLASS_NAME = "java/lang/Enum";
     static final String CONSTRUCTOR_NAME = "<init>";
+    static final String[] NOT_NULL_ANNOTATION_SUFFIXES = {"/NotNull;", "/NonNull;", "/Notnull;", "/Nonnull;"};
+    static final String STATIC_INITIALIZER_NAME = "<clinit>";
+    static final String ASSERTIONS_DISABLED_FIELD = "$assertionsDisabled";
+    static final String INSTRUMENTED_ATTRIBUTE = "org.parboiled.NotNullInstrumented";
+    static final String CHECK_COUNTS_FIELD = "$$notNullCheckCounts";
+    static final String CHECK_SITES_FIELD = "$$notNullCheckSites";
+
+    // the reasons for omitting all checks of a method
+    static final int CHECKED = 0;
+    static final int OUT_OF_SCOPE = 1;
+    static final int EXCLUDED = 2;
+
+    private static final String CHECK_COUNTERS_CLASS = "org/parboiled/runtime/NotNullCheckCounters";
+    private static final String ATOMIC_LONG_ARRAY_DESC = "Ljava/util/concurrent/atomic/AtomicLongArray;";
+    // keeps the constant holding the site names below the limit of 65535 bytes
+    private static final int MAX_CHECK_SITES_LENGTH = 16 * 1024;
+
+    private static final int CONSTANT_UTF8 = 1;
 
     final Task antTask;
+    final InstrumentationOptions options;
+    ThrowHelper myThrowHelper;
+    final Map<String, Integer> myChecks = new HashMap<String, Integer>();
+    ClassAnalysis myAnalysis;
+    Set<String> myAnnotatedMethods;
+    int myElidedChecks;
+    int myChecksOutOfScope;
+    int myChecksExcluded;
     boolean myIsModification = false;
     boolean myIsNotStaticInner = false;
     String myClassName;
     String mySuperName;
+    int myVersion;
+    boolean myIsAssertionGated;
+    boolean myHasAssertionsDisabledField;
+    boolean myIsAssertionGateUsed;
+    boolean myIsInstrumented;
+    boolean myIsCountingChecks;
+    boolean myIsStaticInitializerInstrumented;
+    final Map<String, Integer> myCheckSites = new LinkedHashMap<String, Integer>();
 
     public NotNullVerifyingInstrumenter(Task antTask, ClassVisitor classVisitor) {
+        this(antTask, classVisitor, new InstrumentationOptions());
+    }
+
+    /**
+     * @param antTask      the task to log to, if null warnings go to stderr (e.g. when running as java agent)
+     * @param classVisitor the visitor to delegate to
+     * @param options      the options for the generated code
+     */
+    public NotNullVerifyingInstrumenter(Task antTask, ClassVisitor classVisitor, InstrumentationOptions options) {
         super(classVisitor);
         this.antTask = antTask;
+        this.options = options;
     }
 
     public boolean isModification() {
         return myIsModification;
     }
 
+    /**
+     * Analyzes the class about to be instrumented. Must be called before the class is visited.
+     * Methods without @NotNull annotations are then passed straight through to the next visitor, so that a class writer
+     * constructed with the same reader copies them verbatim instead of parsing and re-encoding them.
+     *
+     * @param reader the reader of the class
+     */
+    public void analyze(ClassReader reader) {
+        myAnnotatedMethods = AnnotatedMethods.scan(reader);
+        if (options.isElideParameterChecks() || options.isElideReturnChecks()) {
+            myAnalysis = ClassAnalysis.analyze(reader, options);
+        }
+    }
+
+    /**
+     * @return the number of checks omitted since they were proven to be redundant
+     */
+    public int getElidedChecks() {
+        return myElidedChecks;
+    }
+
+    /**
+     * @return the number of checks omitted since their methods lie outside of the configured visibility scope
+     */
+    public int getChecksOutOfScope() {
+        return myChecksOutOfScope;
+    }
+
+    /**
+     * @return the number of checks omitted since their methods are not selected by the include and exclude patterns
+     */
+    public int getChecksExcluded() {
+        return myChecksExcluded;
+    }
+
+    void omitCheck(int omission) {
+        if (omission == OUT_OF_SCOPE) {
+            myChecksOutOfScope++;
+        } else {
+            myChecksExcluded++;
+        }
+    }
+
+    /**
+     * @return the number of checks inserted into each method, keyed by method name and descriptor
+     */
+    public Map<String, Integer> getChecks() {
+        return myChecks;
+    }
+
+    void countCheck(String method) {
+        Integer count = myChecks.get(method);
+        myChecks.put(method, count != null ? count + 1 : 1);
+    }
+
+    /**
+     * Cheaply determines whether the given class might require instrumentation by scanning its constant pool for
+     * the descriptor of a @NotNull annotation, without parsing any fields or methods.
+     * Annotation descriptors only end up in the constant pool of classes actually using the annotation, so a negative
+     * result guarantees that instrumentation would not modify the class. Classes carrying the attribute marking them
+     * as instrumented already are not instrumented again either.
+     *
+     * @param reader the reader for the class to scan
+     * @return false if the class definitely does not use any @NotNull annotation
+     */
+    public static boolean mayRequireInstrumentation(ClassReader reader) {
+        byte[] b = reader.b;
+        boolean annotated = false;
+        int itemCount = reader.readUnsignedShort(8);
+        for (int i = 1; i < itemCount; i++) {
+            int index = reader.getItem(i);
+            // the second slot of long and double constants has no item
+            if (index != 0 && b[index - 1] == CONSTANT_UTF8) {
+                int start = index + 2;
+                int end = start + reader.readUnsignedShort(index);
+                if (end - start == INSTRUMENTED_ATTRIBUTE.length() && endsWith(b, start, end, INSTRUMENTED_ATTRIBUTE)) {
+                    return false;
+                }
+                if (!annotated) {
+                    for (String suffix : NOT_NULL_ANNOTATION_SUFFIXES) {
+                        if (endsWith(b, start, end, suffix)) {
+                            annotated = true;
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+        return annotated;
+    }
+
+    // the suffixes are pure ASCII, so comparing them against the raw modified UTF-8 bytes is exact
+    private static boolean endsWith(byte[] b, int start, int end, String suffix) {
+        int offset = end - suffix.length();
+        if (offset < start) {
+            return false;
+        }
+        for (int i = 0; i < suffix.length(); i++) {
+            if (b[offset + i] != suffix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
         super.visit(version, access, name, signature, superName, interfaces);
         myClassName = name;
         mySuperName = superName;
+        myVersion = version;
+        myThrowHelper = new ThrowHelper(name);
+        myIsAssertionGated = options.isAssertionGatedChecks() && (access & Opcodes.ACC_INTERFACE) == 0;
+        myIsCountingChecks = options.isCountChecks() && (access & Opcodes.ACC_INTERFACE) == 0;
+    }
+
+    /**
+     * Reuses the assertion status field javac generates for classes containing assert statements.
+     */
+    public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+        if (ASSERTIONS_DISABLED_FIELD.equals(name)) {
+            if ("Z".equals(desc) && (access & Opcodes.ACC_STATIC) != 0) {
+                myHasAssertionsDisabledField = true;
+            } else if (myIsAssertionGated) {
+                log("Class " + myClassName.replace('/', '.') + " declares an incompatible field " + name +
+                        ", not gating its checks on the assertion status...", Project.MSG_WARN);
+                myIsAssertionGated = false;
+            }
+        }
+        return super.visitField(access, name, desc, signature, value);
     }
 
     public void visitInnerClass(String name, String outerName, String innerName, int access) {
@@ -57,12 +232,174 @@ public class NotNullVerifyingInstrumenter extends ClassAdapter {
         }
     }
 
+    /**
+     * Class attributes are visited before all fields and methods, so a class instrumented already is recognized in
+     * time to leave its methods alone.
+     */
+    public void visitAttribute(Attribute attr) {
+        if (INSTRUMENTED_ATTRIBUTE.equals(attr.type)) {
+            myIsInstrumented = true;
+        }
+        super.visitAttribute(attr);
+    }
+
     public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+        if (myIsInstrumented || myAnnotatedMethods != null && !myAnnotatedMethods.contains(name + desc) &&
+                !(STATIC_INITIALIZER_NAME.equals(name) && needsStaticInitialization())) {
+            return cv.visitMethod(access, name, desc, signature, exceptions);
+        }
         Type[] args = Type.getArgumentTypes(desc);
         Type returnType = Type.getReturnType(desc);
         int startParameter = getStartParameterIndex(name);
         MethodVisitor v = cv.visitMethod(access, name, desc, signature, exceptions);
-        return new MyMethodAdapter(this, v, args, returnType, access, startParameter, name);
+        return new MyMethodAdapter(this, v, args, returnType, access, startParameter, name, desc,
+                getOmission(options, myClassName, access, name));
+    }
+
+    /**
+     * @param options   the instrumentation options
+     * @param className the internal name of the class
+     * @param access    the access flags of the method
+     * @param name      the name of the method
+     * @return {@link #CHECKED} or the reason for omitting all checks of the method
+     */
+    static int getOmission(InstrumentationOptions options, String className, int access, String name) {
+        if (!options.getScope().includes(access)) {
+            return OUT_OF_SCOPE;
+        }
+        if (!options.isSelected(className.replace('/', '.'), name)) {
+            return EXCLUDED;
+        }
+        return CHECKED;
+    }
+
+    public void visitEnd() {
+        if (myThrowHelper.isUsed()) {
+            myThrowHelper.generateMethod(cv, hasStackMapFrames());
+        }
+        boolean addAssertionsDisabled = needsAssertionsDisabledInitialization() &&
+                (myIsStaticInitializerInstrumented || myIsAssertionGateUsed);
+        boolean addCheckCounts = myIsCountingChecks && (myIsStaticInitializerInstrumented || !myCheckSites.isEmpty());
+        if (addAssertionsDisabled) {
+            super.visitField(Opcodes.ACC_STATIC | Opcodes.ACC_FINAL | Opcodes.ACC_SYNTHETIC, ASSERTIONS_DISABLED_FIELD,
+                    "Z", null, null);
+        }
+        if (addCheckCounts) {
+            int access = Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_FINAL | Opcodes.ACC_SYNTHETIC;
+            super.visitField(access, CHECK_COUNTS_FIELD, ATOMIC_LONG_ARRAY_DESC, null, null);
+            super.visitField(access, CHECK_SITES_FIELD, "Ljava/lang/String;", null, getCheckSites());
+        }
+        if (!myIsStaticInitializerInstrumented && (addAssertionsDisabled || addCheckCounts)) {
+            MethodVisitor mv = cv.visitMethod(Opcodes.ACC_STATIC, STATIC_INITIALIZER_NAME, "()V", null, null);
+            mv.visitCode();
+            generateStaticInitialization(mv);
+            mv.visitInsn(Opcodes.RETURN);
+            mv.visitMaxs(2, 0);
+            mv.visitEnd();
+        }
+        if (myIsModification) {
+            // marks the class as instrumented, so it is never instrumented twice (e.g. by a repeated build)
+            super.visitAttribute(new Attribute(INSTRUMENTED_ATTRIBUTE) {
+                @Override
+                protected ByteVector write(ClassWriter cw, byte[] code, int len, int maxStack, int maxLocals) {
+                    return new ByteVector();
+                }
+            });
+        }
+        super.visitEnd();
+    }
+
+    /**
+     * @return true if the static initializer about to be visited has to initialize the fields of the generated code
+     */
+    boolean needsStaticInitialization() {
+        return needsAssertionsDisabledInitialization() || myIsCountingChecks;
+    }
+
+    private boolean needsAssertionsDisabledInitialization() {
+        return myIsAssertionGated && !myHasAssertionsDisabledField;
+    }
+
+    /**
+     * Generates the initialization of the fields of the generated code, to be prepended to the static initializer.
+     * The code is branch-free, so it does not require any stack map frames, and requires two stack slots.
+     */
+    void generateStaticInitialization(MethodVisitor mv) {
+        if (needsAssertionsDisabledInitialization()) {
+            // the equivalent of javac's $assertionsDisabled = !X.class.desiredAssertionStatus()
+            mv.visitLdcInsn(Type.getObjectType(myClassName));
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/Class", "desiredAssertionStatus", "()Z");
+            mv.visitInsn(Opcodes.ICONST_1);
+            mv.visitInsn(Opcodes.IXOR);
+            mv.visitFieldInsn(Opcodes.PUTSTATIC, myClassName, ASSERTIONS_DISABLED_FIELD, "Z");
+        }
+        if (myIsCountingChecks) {
+            mv.visitLdcInsn(myClassName.replace('/', '.'));
+            mv.visitFieldInsn(Opcodes.GETSTATIC, myClassName, CHECK_SITES_FIELD, "Ljava/lang/String;");
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, CHECK_COUNTERS_CLASS, "register",
+                    "(Ljava/lang/String;Ljava/lang/String;)" + ATOMIC_LONG_ARRAY_DESC);
+            mv.visitFieldInsn(Opcodes.PUTSTATIC, myClassName, CHECK_COUNTS_FIELD, ATOMIC_LONG_ARRAY_DESC);
+        }
+        myIsStaticInitializerInstrumented = true;
+    }
+
+    /**
+     * Generates the counting of an execution of the given check site, requiring two stack slots.
+     *
+     * @param site the name of the check site, checks of the same parameter or return value share a site
+     */
+    void generateCount(MethodVisitor mv, String site) {
+        Integer index = myCheckSites.get(site);
+        if (index == null) {
+            index = myCheckSites.size();
+            myCheckSites.put(site, index);
+        }
+        mv.visitFieldInsn(Opcodes.GETSTATIC, myClassName, CHECK_COUNTS_FIELD, ATOMIC_LONG_ARRAY_DESC);
+        ThrowHelper.pushInt(mv, index);
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, CHECK_COUNTERS_CLASS, "count", "(" + ATOMIC_LONG_ARRAY_DESC + "I)V");
+    }
+
+    private String getCheckSites() {
+        StringBuilder sites = new StringBuilder();
+        for (String site : myCheckSites.keySet()) {
+            sites.append(sites.length() > 0 ? "\n" : "").append(site);
+        }
+        if (sites.length() <= MAX_CHECK_SITES_LENGTH) {
+            return sites.toString();
+        }
+        // degrade to the bare site indices for huge classes
+        sites.setLength(0);
+        for (int i = 0; i < myCheckSites.size(); i++) {
+            sites.append(i > 0 ? "\n" : "").append('#').append(i);
+        }
+        return sites.toString();
+    }
+
+    /**
+     * Generates a jump depending on the assertion status of the class.
+     *
+     * @param disabled true to jump if assertions are disabled, false to jump if they are enabled
+     * @param label    the jump target
+     */
+    void generateAssertionGate(MethodVisitor mv, boolean disabled, Label label) {
+        mv.visitFieldInsn(Opcodes.GETSTATIC, myClassName, ASSERTIONS_DISABLED_FIELD, "Z");
+        mv.visitJumpInsn(disabled ? Opcodes.IFNE : Opcodes.IFEQ, label);
+        myIsAssertionGateUsed = true;
+    }
+
+    /**
+     * @return true if the class file version requires stack map frames, i.e. for Java 6 and above
+     */
+    boolean hasStackMapFrames() {
+        return (myVersion & 0xFFFF) >= Opcodes.V1_6;
+    }
+
+    void log(String message, int level) {
+        if (antTask != null) {
+            antTask.log(message, level);
+        } else if (level <= Project.MSG_WARN) {
+            System.err.println("[javacn] " + message);
+        }
     }
 
     private int getStartParameterIndex(String name) {
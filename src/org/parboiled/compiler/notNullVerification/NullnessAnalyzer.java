@@ -0,0 +1,669 @@
+/*
+ * Copyright 2000-2008 JetBrains s.r.o.
+ * Modified in 2009 by Mathias Doenitz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.parboiled.compiler.notNullVerification;
+
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.Attribute;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A lightweight forward dataflow analysis tracking which reference values of a method are provably non-null:
+ * freshly created objects and arrays, string and class constants as well as the values of "this" and of @NotNull
+ * parameters (if the method is checked at all), as long as their local variable slot is never written to.
+ * The analysis visits the code in a single pass. States are merged at the targets of forward jumps, while at all other
+ * branch targets (loop heads, exception handlers) everything is conservatively assumed to be unknown. Backward jumps
+ * contradicting the state assumed at their target as well as subroutines make the analysis give up on the method.
+ * The call sites of methods of the same class as well as the returned values are reported to the
+ * {@link ClassAnalysis} at the end of the method.
+ */
+class NullnessAnalyzer implements MethodVisitor, Opcodes {
+
+    /**
+     * A value not known to be non-null.
+     */
+    static final int UNKNOWN = -1;
+
+    /**
+     * A value known to be non-null, all other (non-negative) values denote the value a local variable slot had on
+     * method entry.
+     */
+    static final int NOT_NULL = -2;
+
+    private final ClassAnalysis analysis;
+    private final boolean checked;
+    private final String className;
+    private final String method;
+    private final Type[] args;
+    private final int[] argSlots;
+    private final BitSet nonNullAtEntry = new BitSet();
+    private final BitSet stored = new BitSet();
+    private final Set<Label> handlers = new HashSet<Label>();
+    private final Map<Label, State> forwardStates = new HashMap<Label, State>();
+    private final Map<Label, State> assumedStates = new HashMap<Label, State>();
+    private final List<CallSite> callSites = new ArrayList<CallSite>();
+    private final List<Integer> returnValues = new ArrayList<Integer>();
+    private int[] stack = new int[16];
+    private int depth;
+    private int[] locals = new int[0];
+    private boolean reachable = true;
+    private boolean failed;
+
+    /**
+     * @param checked whether the parameter checks of the method are generated, otherwise its @NotNull parameters may
+     *                well be null
+     */
+    NullnessAnalyzer(ClassAnalysis analysis, String className, int access, String name, String desc,
+                     boolean checked) {
+        this.analysis = analysis;
+        this.checked = checked;
+        this.className = className;
+        this.method = name + desc;
+        args = Type.getArgumentTypes(desc);
+        argSlots = new int[args.length];
+        int slot = 0;
+        if ((access & ACC_STATIC) == 0) {
+            nonNullAtEntry.set(0);
+            slot = 1;
+        }
+        for (int i = 0; i < args.length; i++) {
+            argSlots[i] = slot;
+            slot += args[i].getSize();
+        }
+    }
+
+    public AnnotationVisitor visitParameterAnnotation(int parameter, String desc, boolean visible) {
+        int sort = args[parameter].getSort();
+        if (checked && MyMethodAdapter.isNotNull(desc) && (sort == Type.OBJECT || sort == Type.ARRAY)) {
+            nonNullAtEntry.set(argSlots[parameter]);
+        }
+        return null;
+    }
+
+    public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {
+        handlers.add(handler);
+    }
+
+    public void visitInsn(int opcode) {
+        switch (opcode) {
+            case NOP:
+                break;
+            case ACONST_NULL:
+            case ICONST_M1:
+            case ICONST_0:
+            case ICONST_1:
+            case ICONST_2:
+            case ICONST_3:
+            case ICONST_4:
+            case ICONST_5:
+            case FCONST_0:
+            case FCONST_1:
+            case FCONST_2:
+                push(UNKNOWN);
+                break;
+            case LCONST_0:
+            case LCONST_1:
+            case DCONST_0:
+            case DCONST_1:
+                push(UNKNOWN, 2);
+                break;
+            case IALOAD:
+            case FALOAD:
+            case AALOAD:
+            case BALOAD:
+            case CALOAD:
+            case SALOAD:
+                pop(2);
+                push(UNKNOWN);
+                break;
+            case LALOAD:
+            case DALOAD:
+                pop(2);
+                push(UNKNOWN, 2);
+                break;
+            case IASTORE:
+            case FASTORE:
+            case AASTORE:
+            case BASTORE:
+            case CASTORE:
+            case SASTORE:
+                pop(3);
+                break;
+            case LASTORE:
+            case DASTORE:
+                pop(4);
+                break;
+            case POP:
+            case MONITORENTER:
+            case MONITOREXIT:
+                pop(1);
+                break;
+            case POP2:
+                pop(2);
+                break;
+            case DUP: {
+                int v1 = pop();
+                push(v1);
+                push(v1);
+                break;
+            }
+            case DUP_X1: {
+                int v1 = pop();
+                int v2 = pop();
+                push(v1);
+                push(v2);
+                push(v1);
+                break;
+            }
+            case DUP_X2: {
+                int v1 = pop();
+                int v2 = pop();
+                int v3 = pop();
+                push(v1);
+                push(v3);
+                push(v2);
+                push(v1);
+                break;
+            }
+            case DUP2: {
+                int v1 = pop();
+                int v2 = pop();
+                push(v2);
+                push(v1);
+                push(v2);
+                push(v1);
+                break;
+            }
+            case DUP2_X1: {
+                int v1 = pop();
+                int v2 = pop();
+                int v3 = pop();
+                push(v2);
+                push(v1);
+                push(v3);
+                push(v2);
+                push(v1);
+                break;
+            }
+            case DUP2_X2: {
+                int v1 = pop();
+                int v2 = pop();
+                int v3 = pop();
+                int v4 = pop();
+                push(v2);
+                push(v1);
+                push(v4);
+                push(v3);
+                push(v2);
+                push(v1);
+                break;
+            }
+            case SWAP: {
+                int v1 = pop();
+                int v2 = pop();
+                push(v1);
+                push(v2);
+                break;
+            }
+            case ARRAYLENGTH:
+                pop(1);
+                push(UNKNOWN);
+                break;
+            case IRETURN:
+            case FRETURN:
+            case LRETURN:
+            case DRETURN:
+            case RETURN:
+            case ATHROW:
+                reachable = false;
+                break;
+            case ARETURN:
+                returnValues.add(pop());
+                reachable = false;
+                break;
+            default:
+                visitArithmeticInsn(opcode);
+        }
+    }
+
+    // the arithmetic, conversion and comparison instructions, with I, L, F, D being the usual type order
+    private void visitArithmeticInsn(int opcode) {
+        if (opcode >= IADD && opcode <= DREM) {
+            int size = (opcode - IADD) % 2 + 1;
+            pop(2 * size);
+            push(UNKNOWN, size);
+        } else if (opcode >= INEG && opcode <= DNEG) {
+            int size = (opcode - INEG) % 2 + 1;
+            pop(size);
+            push(UNKNOWN, size);
+        } else if (opcode >= ISHL && opcode <= LUSHR) {
+            int size = (opcode - ISHL) % 2 + 1;
+            pop(size + 1);
+            push(UNKNOWN, size);
+        } else if (opcode >= IAND && opcode <= LXOR) {
+            int size = (opcode - IAND) % 2 + 1;
+            pop(2 * size);
+            push(UNKNOWN, size);
+        } else if (opcode >= I2L && opcode <= I2S) {
+            switch (opcode) {
+                case I2L:
+                case I2D:
+                case F2L:
+                case F2D:
+                    pop(1);
+                    push(UNKNOWN, 2);
+                    break;
+                case L2I:
+                case L2F:
+                case D2I:
+                case D2F:
+                    pop(2);
+                    push(UNKNOWN);
+                    break;
+                case L2D:
+                case D2L:
+                    pop(2);
+                    push(UNKNOWN, 2);
+                    break;
+                default:
+                    pop(1);
+                    push(UNKNOWN);
+            }
+        } else if (opcode == LCMP || opcode == DCMPL || opcode == DCMPG) {
+            pop(4);
+            push(UNKNOWN);
+        } else if (opcode == FCMPL || opcode == FCMPG) {
+            pop(2);
+            push(UNKNOWN);
+        } else {
+            failed = true;
+        }
+    }
+
+    public void visitIntInsn(int opcode, int operand) {
+        if (opcode == NEWARRAY) {
+            pop(1);
+            push(NOT_NULL);
+        } else {
+            push(UNKNOWN);
+        }
+    }
+
+    public void visitVarInsn(int opcode, int var) {
+        switch (opcode) {
+            case ILOAD:
+            case FLOAD:
+                push(UNKNOWN);
+                break;
+            case LLOAD:
+            case DLOAD:
+                push(UNKNOWN, 2);
+                break;
+            case ALOAD:
+                push(getLocal(var));
+                break;
+            case ISTORE:
+            case FSTORE:
+                pop(1);
+                setLocal(var, UNKNOWN);
+                break;
+            case LSTORE:
+            case DSTORE:
+                pop(2);
+                setLocal(var, UNKNOWN);
+                setLocal(var + 1, UNKNOWN);
+                break;
+            case ASTORE:
+                setLocal(var, pop());
+                break;
+            default:
+                // RET, i.e. a subroutine
+                failed = true;
+        }
+    }
+
+    public void visitIincInsn(int var, int increment) {
+        setLocal(var, UNKNOWN);
+    }
+
+    public void visitTypeInsn(int opcode, String type) {
+        switch (opcode) {
+            case NEW:
+                push(NOT_NULL);
+                break;
+            case ANEWARRAY:
+                pop(1);
+                push(NOT_NULL);
+                break;
+            case INSTANCEOF:
+                pop(1);
+                push(UNKNOWN);
+                break;
+            default:
+                // CHECKCAST leaves the value unchanged
+        }
+    }
+
+    public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+        int size = Type.getType(desc).getSize();
+        switch (opcode) {
+            case GETSTATIC:
+                push(UNKNOWN, size);
+                break;
+            case PUTSTATIC:
+                pop(size);
+                break;
+            case GETFIELD:
+                pop(1);
+                push(UNKNOWN, size);
+                break;
+            default:
+                pop(size + 1);
+        }
+    }
+
+    public void visitMethodInsn(int opcode, String owner, String name, String desc) {
+        Type[] argumentTypes = Type.getArgumentTypes(desc);
+        int[] values = new int[argumentTypes.length];
+        for (int i = argumentTypes.length - 1; i >= 0; i--) {
+            pop(argumentTypes[i].getSize() - 1);
+            values[i] = pop();
+        }
+        if (opcode != INVOKESTATIC) {
+            pop(1);
+        }
+        if (opcode != INVOKEINTERFACE && owner.equals(className)) {
+            callSites.add(new CallSite(name + desc, values));
+        }
+        // note that ASM reports a size of 1 for void
+        Type returnType = Type.getReturnType(desc);
+        if (returnType.getSort() != Type.VOID) {
+            push(UNKNOWN, returnType.getSize());
+        }
+    }
+
+    public void visitJumpInsn(int opcode, Label label) {
+        switch (opcode) {
+            case GOTO:
+                jump(label);
+                reachable = false;
+                return;
+            case JSR:
+                failed = true;
+                return;
+            case IF_ICMPEQ:
+            case IF_ICMPNE:
+            case IF_ICMPLT:
+            case IF_ICMPGE:
+            case IF_ICMPGT:
+            case IF_ICMPLE:
+            case IF_ACMPEQ:
+            case IF_ACMPNE:
+                pop(2);
+                break;
+            default:
+                pop(1);
+        }
+        jump(label);
+    }
+
+    public void visitLdcInsn(Object cst) {
+        if (cst instanceof Long || cst instanceof Double) {
+            push(UNKNOWN, 2);
+        } else if (cst instanceof String || cst instanceof Type) {
+            push(NOT_NULL);
+        } else {
+            push(UNKNOWN);
+        }
+    }
+
+    public void visitTableSwitchInsn(int min, int max, Label dflt, Label[] labels) {
+        visitSwitch(dflt, labels);
+    }
+
+    public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+        visitSwitch(dflt, labels);
+    }
+
+    private void visitSwitch(Label dflt, Label[] labels) {
+        pop(1);
+        jump(dflt);
+        for (Label label : labels) {
+            jump(label);
+        }
+        reachable = false;
+    }
+
+    public void visitMultiANewArrayInsn(String desc, int dims) {
+        pop(dims);
+        push(NOT_NULL);
+    }
+
+    public void visitLabel(Label label) {
+        State state;
+        if (handlers.contains(label)) {
+            // the caught exception is never null
+            state = new State(new int[] {NOT_NULL}, new int[0]);
+        } else {
+            state = forwardStates.remove(label);
+            if (state == null) {
+                // no forward jumps to the label, so it is either a loop head or not a branch target at all
+                state = new State(new int[0], new int[0]);
+            } else if (reachable) {
+                state = state.merge(currentState());
+            }
+        }
+        assumedStates.put(label, state);
+        stack = state.stack.clone();
+        depth = stack.length;
+        if (stack.length < 16) {
+            int[] grown = new int[16];
+            System.arraycopy(stack, 0, grown, 0, depth);
+            stack = grown;
+        }
+        locals = state.locals.clone();
+        reachable = true;
+    }
+
+    private void jump(Label label) {
+        State state = currentState();
+        State assumed = assumedStates.get(label);
+        if (assumed != null) {
+            // a backward jump, which must not contradict what was assumed when visiting the label
+            if (!assumed.isCompatibleWith(state)) {
+                failed = true;
+            }
+        } else {
+            State forward = forwardStates.get(label);
+            forwardStates.put(label, forward != null ? forward.merge(state) : state);
+        }
+    }
+
+    public void visitEnd() {
+        if (failed) {
+            analysis.giveUp(method);
+            return;
+        }
+        for (CallSite callSite : callSites) {
+            boolean[] nonNull = new boolean[callSite.values.length];
+            for (int i = 0; i < nonNull.length; i++) {
+                nonNull[i] = isNonNull(callSite.values[i]);
+            }
+            analysis.addCallSite(method, callSite.method, nonNull);
+        }
+        BitSet nonNullReturns = new BitSet();
+        for (int i = 0; i < returnValues.size(); i++) {
+            if (isNonNull(returnValues.get(i))) {
+                nonNullReturns.set(i);
+            }
+        }
+        analysis.addReturns(method, nonNullReturns);
+    }
+
+    private boolean isNonNull(int value) {
+        return value == NOT_NULL || value >= 0 && nonNullAtEntry.get(value) && !stored.get(value);
+    }
+
+    private State currentState() {
+        int[] currentStack = new int[depth];
+        System.arraycopy(stack, 0, currentStack, 0, depth);
+        return new State(currentStack, locals.clone());
+    }
+
+    private int getLocal(int var) {
+        return var < locals.length ? locals[var] : var;
+    }
+
+    private void setLocal(int var, int value) {
+        stored.set(var);
+        if (var >= locals.length) {
+            int[] grown = new int[Math.max(var + 1, 2 * locals.length)];
+            for (int i = 0; i < grown.length; i++) {
+                grown[i] = i < locals.length ? locals[i] : i;
+            }
+            locals = grown;
+        }
+        locals[var] = value;
+    }
+
+    private void push(int value) {
+        if (depth == stack.length) {
+            int[] grown = new int[2 * stack.length];
+            System.arraycopy(stack, 0, grown, 0, depth);
+            stack = grown;
+        }
+        stack[depth++] = value;
+    }
+
+    private void push(int value, int size) {
+        for (int i = 0; i < size; i++) {
+            push(value);
+        }
+    }
+
+    // values below the known part of the stack (e.g. after a loop head) are unknown
+    private int pop() {
+        return depth > 0 ? stack[--depth] : UNKNOWN;
+    }
+
+    private void pop(int size) {
+        depth = Math.max(0, depth - size);
+    }
+
+    public AnnotationVisitor visitAnnotationDefault() {
+        return null;
+    }
+
+    public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+        return null;
+    }
+
+    public void visitAttribute(Attribute attr) {
+    }
+
+    public void visitCode() {
+    }
+
+    public void visitFrame(int type, int nLocal, Object[] local, int nStack, Object[] stack) {
+    }
+
+    public void visitLocalVariable(String name, String desc, String signature, Label start, Label end, int index) {
+    }
+
+    public void visitLineNumber(int line, Label start) {
+    }
+
+    public void visitMaxs(int maxStack, int maxLocals) {
+    }
+
+    /**
+     * The abstract values of the stack and the local variables at some instruction. Locals not explicitly contained
+     * still hold their value from method entry.
+     */
+    private static class State {
+        private final int[] stack;
+        private final int[] locals;
+
+        private State(int[] stack, int[] locals) {
+            this.stack = stack;
+            this.locals = locals;
+        }
+
+        private int getLocal(int var) {
+            return var < locals.length ? locals[var] : var;
+        }
+
+        private State merge(State other) {
+            int depth = Math.min(stack.length, other.stack.length);
+            int[] mergedStack = new int[depth];
+            for (int i = 1; i <= depth; i++) {
+                int value = stack[stack.length - i];
+                mergedStack[depth - i] = value == other.stack[other.stack.length - i] ? value : UNKNOWN;
+            }
+            int[] mergedLocals = new int[Math.max(locals.length, other.locals.length)];
+            for (int i = 0; i < mergedLocals.length; i++) {
+                int value = getLocal(i);
+                mergedLocals[i] = value == other.getLocal(i) ? value : UNKNOWN;
+            }
+            return new State(mergedStack, mergedLocals);
+        }
+
+        /**
+         * Determines whether this state, assumed for a label, also holds for the given state reaching the label.
+         * Locals assumed to hold their entry value need not be compared: if they differ the slot has been written to,
+         * which invalidates their entry value anyway.
+         */
+        private boolean isCompatibleWith(State other) {
+            for (int i = 1; i <= stack.length; i++) {
+                int value = stack[stack.length - i];
+                int otherValue = i <= other.stack.length ? other.stack[other.stack.length - i] : UNKNOWN;
+                if (value != UNKNOWN && value != otherValue) {
+                    return false;
+                }
+            }
+            for (int i = 0; i < locals.length; i++) {
+                int value = locals[i];
+                if (value != UNKNOWN && value != i && value != other.getLocal(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static class CallSite {
+        private final String method;
+        private final int[] values;
+
+        private CallSite(String method, int[] values) {
+            this.method = method;
+            this.values = values;
+        }
+    }
+
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2000-2008 JetBrains s.r.o.
+ * Modified in 2009 by Mathias Doenitz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.parboiled.compiler.notNullVerification;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generates the synthetic static method of a class that constructs the exceptions for all its failed checks.
+ * Every check site passes a compact id identifying the method name and the offending parameter (or the return value),
+ * from which the helper builds exactly the same message the inline exception construction would carry.
+ */
+class ThrowHelper {
+
+    static final String METHOD_NAME = "$$notNullViolation";
+    static final String METHOD_DESC = "(I)Ljava/lang/RuntimeException;";
+
+    private static final int RETURN_VALUE = 0xFF;
+    private static final String STRING_BUILDER = "java/lang/StringBuilder";
+    private static final String APPEND_STRING = "(Ljava/lang/String;)Ljava/lang/StringBuilder;";
+
+    private final String className;
+    private final List<String> methodNames = new ArrayList<String>();
+
+    ThrowHelper(String className) {
+        this.className = className;
+    }
+
+    /**
+     * Generates a call to the helper method and the throwing of the exception it returns.
+     *
+     * @param mv         the visitor of the method containing the check
+     * @param methodName the name of the method containing the check
+     * @param param      the index of the violated parameter or -1 for the return value
+     */
+    void generateThrow(MethodVisitor mv, String methodName, int param) {
+        pushId(mv, methodName, param);
+        generateThrowOfId(mv);
+    }
+
+    /**
+     * Generates the pushing of the id identifying a check site, for a later {@link #generateThrowOfId(MethodVisitor)}.
+     *
+     * @param mv         the visitor of the method containing the check
+     * @param methodName the name of the method containing the check
+     * @param param      the index of the violated parameter or -1 for the return value
+     */
+    void pushId(MethodVisitor mv, String methodName, int param) {
+        int methodIndex = methodNames.indexOf(methodName);
+        if (methodIndex == -1) {
+            methodIndex = methodNames.size();
+            methodNames.add(methodName);
+        }
+        pushInt(mv, methodIndex << 8 | (param == -1 ? RETURN_VALUE : param));
+    }
+
+    /**
+     * Generates a call to the helper method with the id on top of the stack and the throwing of the exception it
+     * returns.
+     *
+     * @param mv the visitor of the method containing the check
+     */
+    void generateThrowOfId(MethodVisitor mv) {
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, className, METHOD_NAME, METHOD_DESC);
+        mv.visitInsn(Opcodes.ATHROW);
+    }
+
+    /**
+     * @return true if at least one check site calls the helper method
+     */
+    boolean isUsed() {
+        return !methodNames.isEmpty();
+    }
+
+    /**
+     * Generates the helper method.
+     *
+     * @param cv     the visitor of the class to add the helper method to
+     * @param frames true if the stack map frames of the method have to be generated rather than computed by the
+     *               class writer
+     */
+    void generateMethod(ClassVisitor cv, boolean frames) {
+        String fullClassName = className.replace('/', '.') + '.';
+        MethodVisitor mv = cv.visitMethod(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC,
+                METHOD_NAME, METHOD_DESC, null, null);
+        mv.visitCode();
+
+        // local 1: the method name, selected by the upper bits of the id
+        Label nameSelected = new Label();
+        Label[] nameLabels = new Label[methodNames.size()];
+        for (int i = 0; i < nameLabels.length; i++) {
+            nameLabels[i] = new Label();
+        }
+        mv.visitVarInsn(Opcodes.ILOAD, 0);
+        pushInt(mv, 8);
+        mv.visitInsn(Opcodes.IUSHR);
+        mv.visitTableSwitchInsn(0, nameLabels.length - 1, nameLabels[0], nameLabels);
+        for (int i = 0; i < nameLabels.length; i++) {
+            mv.visitLabel(nameLabels[i]);
+            visitFrame(mv, frames, 1, 0);
+            mv.visitLdcInsn(methodNames.get(i));
+            mv.visitJumpInsn(Opcodes.GOTO, nameSelected);
+        }
+        mv.visitLabel(nameSelected);
+        visitFrame(mv, frames, 1, 1);
+        mv.visitVarInsn(Opcodes.ASTORE, 1);
+
+        // local 2: the parameter index, selected by the lower bits of the id
+        mv.visitVarInsn(Opcodes.ILOAD, 0);
+        pushInt(mv, 0xFF);
+        mv.visitInsn(Opcodes.IAND);
+        mv.visitVarInsn(Opcodes.ISTORE, 2);
+
+        Label argument = new Label();
+        mv.visitVarInsn(Opcodes.ILOAD, 2);
+        pushInt(mv, RETURN_VALUE);
+        mv.visitJumpInsn(Opcodes.IF_ICMPNE, argument);
+
+        // "@NotNull method " + className + '.' + name + " must not return null"
+        mv.visitTypeInsn(Opcodes.NEW, "java/lang/IllegalStateException");
+        mv.visitInsn(Opcodes.DUP);
+        mv.visitTypeInsn(Opcodes.NEW, STRING_BUILDER);
+        mv.visitInsn(Opcodes.DUP);
+        mv.visitLdcInsn("@NotNull method " + fullClassName);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, STRING_BUILDER, NotNullVerifyingInstrumenter.CONSTRUCTOR_NAME,
+                "(Ljava/lang/String;)V");
+        mv.visitVarInsn(Opcodes.ALOAD, 1);
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, STRING_BUILDER, "append", APPEND_STRING);
+        mv.visitLdcInsn(" must not return null");
+        generateToException(mv, "java/lang/IllegalStateException");
+
+        // ordinal(param) + " argument of method " + className + '.' + name +
+        // "(...) corresponds to @NotNull parameter and must not be null"
+        mv.visitLabel(argument);
+        visitFrame(mv, frames, 3, 0);
+        mv.visitTypeInsn(Opcodes.NEW, STRING_BUILDER);
+        mv.visitInsn(Opcodes.DUP);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, STRING_BUILDER, NotNullVerifyingInstrumenter.CONSTRUCTOR_NAME,
+                "()V");
+        mv.visitVarInsn(Opcodes.ASTORE, 3);
+        Label ordinalAppended = new Label();
+        Label defaultOrdinal = new Label();
+        Label[] ordinalLabels = new Label[] {new Label(), new Label(), new Label()};
+        String[] ordinals = new String[] {"1st", "2nd", "3rd"};
+        mv.visitVarInsn(Opcodes.ILOAD, 2);
+        mv.visitTableSwitchInsn(0, ordinalLabels.length - 1, defaultOrdinal, ordinalLabels);
+        for (int i = 0; i < ordinalLabels.length; i++) {
+            mv.visitLabel(ordinalLabels[i]);
+            visitFrame(mv, frames, 4, 0);
+            mv.visitVarInsn(Opcodes.ALOAD, 3);
+            mv.visitLdcInsn(ordinals[i]);
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, STRING_BUILDER, "append", APPEND_STRING);
+            mv.visitInsn(Opcodes.POP);
+            mv.visitJumpInsn(Opcodes.GOTO, ordinalAppended);
+        }
+        mv.visitLabel(defaultOrdinal);
+        visitFrame(mv, frames, 4, 0);
+        mv.visitVarInsn(Opcodes.ALOAD, 3);
+        mv.visitVarInsn(Opcodes.ILOAD, 2);
+        mv.visitInsn(Opcodes.ICONST_1);
+        mv.visitInsn(Opcodes.IADD);
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, STRING_BUILDER, "append", "(I)Ljava/lang/StringBuilder;");
+        mv.visitLdcInsn("th");
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, STRING_BUILDER, "append", APPEND_STRING);
+        mv.visitInsn(Opcodes.POP);
+        mv.visitLabel(ordinalAppended);
+        visitFrame(mv, frames, 4, 0);
+        mv.visitTypeInsn(Opcodes.NEW, "java/lang/IllegalArgumentException");
+        mv.visitInsn(Opcodes.DUP);
+        mv.visitVarInsn(Opcodes.ALOAD, 3);
+        mv.visitLdcInsn(" argument of method " + fullClassName);
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, STRING_BUILDER, "append", APPEND_STRING);
+        mv.visitVarInsn(Opcodes.ALOAD, 1);
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, STRING_BUILDER, "append", APPEND_STRING);
+        mv.visitLdcInsn("(...) corresponds to @NotNull parameter and must not be null");
+        generateToException(mv, "java/lang/IllegalArgumentException");
+
+        // the actual values, for class writers not computing them
+        mv.visitMaxs(5, 4);
+        mv.visitEnd();
+    }
+
+    /**
+     * Generates a full frame at a branch target of the helper method.
+     *
+     * @param locals the number of defined locals: id, method name, parameter index, message builder
+     * @param stack  the number of stack operands, i.e. the method name or none
+     */
+    private static void visitFrame(MethodVisitor mv, boolean frames, int locals, int stack) {
+        if (frames) {
+            Object[] localTypes = {Opcodes.INTEGER, "java/lang/String", Opcodes.INTEGER, STRING_BUILDER};
+            Object[] stackTypes = {"java/lang/String"};
+            mv.visitFrame(Opcodes.F_FULL, locals, localTypes, stack, stackTypes);
+        }
+    }
+
+    /**
+     * Appends the string on top of the stack to the StringBuilder below it and constructs and returns the exception
+     * (whose uninitialized instance lies below the builder) with the resulting message.
+     */
+    private static void generateToException(MethodVisitor mv, String exceptionClass) {
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, STRING_BUILDER, "append", APPEND_STRING);
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, STRING_BUILDER, "toString", "()Ljava/lang/String;");
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, exceptionClass, NotNullVerifyingInstrumenter.CONSTRUCTOR_NAME,
+                "(Ljava/lang/String;)V");
+        mv.visitInsn(Opcodes.ARETURN);
+    }
+
+    static void pushInt(MethodVisitor mv, int value) {
+        if (value >= -1 && value <= 5) {
+            mv.visitInsn(Opcodes.ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            mv.visitIntInsn(Opcodes.BIPUSH, value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            mv.visitIntInsn(Opcodes.SIPUSH, value);
+        } else {
+            mv.visitLdcInsn(value);
+        }
+    }
+
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2000-2008 JetBrains s.r.o.
+ * Modified in 2009 by Mathias Doenitz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.parboiled.runtime;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.ObjectName;
+
+/**
+ * Counts how often the checks of classes instrumented in "countChecks" mode execute, per check site (i.e. per
+ * method parameter or method return value). Every instrumented class registers its sites once and increments its own
+ * counter array, which is striped by thread with padding between the stripes, so concurrently counting threads
+ * hardly ever contend for the same cache line.
+ * <p/>
+ * The counts are exposed through JMX as "org.parboiled:type=NotNullCheckCounters" and dumped at shutdown, sorted
+ * by count, to the file given by the system property "javacn.checkCounts" or to stderr if it is not set.
+ * This class is referenced by instrumented code and must therefore be available at runtime.
+ */
+public final class NotNullCheckCounters implements NotNullCheckCountersMXBean {
+
+    private static final String OBJECT_NAME = "org.parboiled:type=NotNullCheckCounters";
+    private static final String DUMP_FILE_PROPERTY = "javacn.checkCounts";
+    private static final int STRIPES = stripes(Runtime.getRuntime().availableProcessors());
+    // 64 bytes between the stripes of a class, i.e. at least a cache line
+    private static final int PADDING = 8;
+
+    private static final NotNullCheckCounters INSTANCE = new NotNullCheckCounters();
+    private static final List<Registration> registrations = new CopyOnWriteArrayList<Registration>();
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+        }
+        catch (Exception e) {
+            // e.g. already registered by a copy of this class in another class loader, the dump still works
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread("NotNullCheckCounters dump") {
+            @Override
+            public void run() {
+                INSTANCE.dump();
+            }
+        });
+    }
+
+    private NotNullCheckCounters() {}
+
+    /**
+     * Registers the check sites of an instrumented class. Called once from the static initializer of the class.
+     *
+     * @param className the name of the class
+     * @param sites     the names of the check sites of the class, separated by newlines
+     * @return the counter array of the class
+     */
+    public static AtomicLongArray register(String className, String sites) {
+        String[] siteNames = sites.split("\n");
+        AtomicLongArray counts = new AtomicLongArray(STRIPES * (siteNames.length + PADDING));
+        registrations.add(new Registration(className, siteNames, counts));
+        return counts;
+    }
+
+    /**
+     * Counts an execution of the given check site.
+     *
+     * @param counts the counter array of the class
+     * @param site   the index of the check site within its class
+     */
+    public static void count(AtomicLongArray counts, int site) {
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        counts.getAndIncrement(stripe * (counts.length() / STRIPES) + site);
+    }
+
+    public Map<String, Long> getCounts() {
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, Long> entry : getSortedCounts()) {
+            counts.put(entry.getKey(), entry.getValue());
+        }
+        return counts;
+    }
+
+    public long getTotalCount() {
+        long total = 0;
+        for (Registration registration : registrations) {
+            for (int site = 0; site < registration.sites.length; site++) {
+                total += registration.getCount(site);
+            }
+        }
+        return total;
+    }
+
+    public void reset() {
+        for (Registration registration : registrations) {
+            for (int i = 0; i < registration.counts.length(); i++) {
+                registration.counts.set(i, 0);
+            }
+        }
+    }
+
+    private List<Map.Entry<String, Long>> getSortedCounts() {
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        for (Registration registration : registrations) {
+            for (int site = 0; site < registration.sites.length; site++) {
+                String key = registration.className + '.' + registration.sites[site];
+                Long count = counts.get(key);
+                // classes loaded by several class loaders share their sites
+                counts.put(key, (count != null ? count : 0) + registration.getCount(site));
+            }
+        }
+        List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>(counts.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+            public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+                return b.getValue().compareTo(a.getValue());
+            }
+        });
+        return entries;
+    }
+
+    private void dump() {
+        String file = System.getProperty(DUMP_FILE_PROPERTY);
+        try {
+            PrintWriter writer = file != null ?
+                    new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8")) :
+                    new PrintWriter(System.err);
+            try {
+                for (Map.Entry<String, Long> entry : getSortedCounts()) {
+                    writer.println(entry.getValue() + "\t" + entry.getKey());
+                }
+            }
+            finally {
+                if (file != null) {
+                    writer.close();
+                } else {
+                    writer.flush();
+                }
+            }
+        }
+        catch (IOException e) {
+            System.err.println("[javacn] Could not dump the @NotNull check counts to " + file + ": " + e);
+        }
+    }
+
+    private static int stripes(int processors) {
+        int stripes = 1;
+        while (stripes < processors && stripes < 64) {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+
+    private static class Registration {
+        private final String className;
+        private final String[] sites;
+        private final AtomicLongArray counts;
+
+        private Registration(String className, String[] sites, AtomicLongArray counts) {
+            this.className = className;
+            this.sites = sites;
+            this.counts = counts;
+        }
+
+        private long getCount(int site) {
+            long count = 0;
+            int stride = counts.length() / STRIPES;
+            for (int stripe = 0; stripe < STRIPES; stripe++) {
+                count += counts.get(stripe * stride + site);
+            }
+            return count;
+        }
+    }
+
+}
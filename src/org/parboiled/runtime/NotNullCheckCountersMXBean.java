@@ -0,0 +1,42 @@
+/*
+ * Copyright 2000-2008 JetBrains s.r.o.
+ * Modified in 2009 by Mathias Doenitz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.parboiled.runtime;
+
+import java.util.Map;
+
+/**
+ * The JMX view of the {@link NotNullCheckCounters}.
+ */
+public interface NotNullCheckCountersMXBean {
+
+    /**
+     * @return the execution counts of all check sites, keyed by class name, method name and descriptor and checked
+     *         parameter (or return value), in descending order of their counts
+     */
+    Map<String, Long> getCounts();
+
+    /**
+     * @return the total number of executed checks
+     */
+    long getTotalCount();
+
+    /**
+     * Resets all counts to zero.
+     */
+    void reset();
+
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2000-2008 JetBrains s.r.o.
+ * Modified in 2009 by Mathias Doenitz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.parboiled.agent;
+
+import org.parboiled.test.Assertions.Action;
+import org.parboiled.test.ClassFiles;
+import org.parboiled.test.Greeter;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+
+import static org.parboiled.test.Assertions.*;
+
+/**
+ * Checks that the java agent instruments the classes loaded after it has been installed. Has to run with the javacn
+ * jar as java agent and without ant on the classpath, e.g.
+ * <pre>-javaagent:javacn.jar=include=org.parboiled.test</pre>
+ */
+public class AgentTest {
+
+    public static void main(String[] args) throws Exception {
+        assertTrue(getThrown(new Action() {
+            public void run() throws Exception {
+                Class.forName("org.apache.tools.ant.Project");
+            }
+        }) instanceof ClassNotFoundException, "The agent must not depend on ant");
+
+        // loads the plain class file, the agent instruments it on the way
+        ClassLoader loader = new ClassFiles.IsolatingClassLoader(
+                Collections.singletonMap(Greeter.class.getName(), ClassFiles.readJava6(Greeter.class)));
+        final Method greet = loader.loadClass(Greeter.class.getName()).getMethod("greet", String.class);
+        assertPasses(new Action() {
+            public void run() throws Exception {
+                assertEquals("Hello agent", greet.invoke(null, "agent"), "result");
+            }
+        });
+        assertArgumentRejected("1st argument", new Action() {
+            public void run() throws Exception {
+                greet.invoke(null, (Object) null);
+            }
+        });
+        System.out.println("AgentTest passed");
+    }
+
+}
@@ -0,0 +1,429 @@
+/*
+ * Copyright 2000-2008 JetBrains s.r.o.
+ * Modified in 2009 by Mathias Doenitz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.parboiled.ant;
+
+import org.apache.tools.ant.Project;
+import org.objectweb.asm.ClassWriter;
+import org.parboiled.compiler.notNullVerification.InstrumentationOptions;
+import org.parboiled.test.Assertions.Action;
+import org.parboiled.test.ClassFiles;
+import org.parboiled.test.Greeter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static org.parboiled.test.Assertions.*;
+
+/**
+ * Checks the instrumentation of jar and zip archives, which are read and written without java.util.zip and compared
+ * with what java.util.zip makes of them.
+ */
+public class ArchiveInstrumenterTest {
+
+    private static final String GREETER = Greeter.class.getName().replace('.', '/') + ".class";
+    private static final String STORED_GREETER = "stored/" + GREETER;
+    private static final String TEXT = "data/größe.txt";
+    private static final String STORED_TEXT = "data/stored.txt";
+    private static final String DIRECTORY = "empty/";
+    private static final String COMMENT = "archive comment";
+
+    public static void main(String[] args) throws Exception {
+        File dir = Files.createTempDirectory("archives").toFile();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            ArchiveInstrumenter archiveInstrumenter = newArchiveInstrumenter(executor);
+            testRoundTrip(archiveInstrumenter, dir);
+            testInPlace(archiveInstrumenter, dir);
+            testUnchanged(archiveInstrumenter, dir);
+            testZip64(archiveInstrumenter, dir);
+            testSignedJar(archiveInstrumenter, dir);
+        }
+        finally {
+            executor.shutdown();
+            delete(dir);
+        }
+        System.out.println("ArchiveInstrumenterTest passed");
+    }
+
+    private static ArchiveInstrumenter newArchiveInstrumenter(ExecutorService executor) {
+        InstrumentNotNull task = new InstrumentNotNull();
+        task.setProject(new Project());
+        ClassInstrumenter instrumenter = new ClassInstrumenter(task, new InstrumentationOptions(),
+                ClassWriter.COMPUTE_MAXS, new ClassHierarchyResolver(new String[0]), null, null,
+                Collections.<ClassVisitorFactory>emptyList());
+        // a window smaller than the number of entries, so that entries are read ahead while others are written
+        return new ArchiveInstrumenter(task, instrumenter, executor, 2);
+    }
+
+    // deflated entries are written with data descriptors by java.util.zip
+    private static void testRoundTrip(ArchiveInstrumenter archiveInstrumenter, File dir) throws Exception {
+        File src = new File(dir, "src.zip");
+        File dest = new File(dir, "dest.zip");
+        Map<String, Integer> methods = writeArchive(src);
+        byte[] original = Files.readAllBytes(src.toPath());
+        assertEquals(2, archiveInstrumenter.instrument(src, dest), "instrumented classes");
+        assertTrue(Arrays.equals(original, Files.readAllBytes(src.toPath())), "The source archive must not change");
+        assertArchive(dest, methods);
+    }
+
+    private static void testInPlace(ArchiveInstrumenter archiveInstrumenter, File dir) throws Exception {
+        File archive = new File(dir, "in-place.zip");
+        Map<String, Integer> methods = writeArchive(archive);
+        assertEquals(2, archiveInstrumenter.instrument(archive, archive), "instrumented classes");
+        assertArchive(archive, methods);
+        assertNoTemporaryFiles(dir);
+    }
+
+    // archives are not rewritten if nothing changes, which keeps their modification times
+    private static void testUnchanged(ArchiveInstrumenter archiveInstrumenter, File dir) throws Exception {
+        File archive = new File(dir, "unchanged.zip");
+        writeArchive(archive);
+        assertEquals(2, archiveInstrumenter.instrument(archive, archive), "instrumented classes");
+        byte[] instrumented = Files.readAllBytes(archive.toPath());
+        long lastModified = setLastModified(archive, 60);
+        assertEquals(0, archiveInstrumenter.instrument(archive, archive), "classes instrumented again");
+        assertUnchanged(archive, instrumented, lastModified);
+
+        // a destination archive older than the source archive, but with the same contents
+        File dest = new File(dir, "unchanged-dest.zip");
+        Files.write(dest.toPath(), instrumented);
+        long destLastModified = setLastModified(dest, 120);
+        assertEquals(0, archiveInstrumenter.instrument(archive, dest), "classes instrumented to the same contents");
+        assertUnchanged(dest, instrumented, destLastModified);
+
+        // a destination archive newer than the source archive, whatever its contents
+        File plain = new File(dir, "plain.zip");
+        writeArchive(plain);
+        setLastModified(plain, 180);
+        assertEquals(0, archiveInstrumenter.instrument(plain, dest), "classes instrumented to an up-to-date archive");
+        assertUnchanged(dest, instrumented, destLastModified);
+
+        // a missing destination archive is a plain copy of a source archive without classes to instrument
+        File copy = new File(dir, "unchanged-copy.zip");
+        assertEquals(0, archiveInstrumenter.instrument(archive, copy), "classes instrumented to a new archive");
+        assertTrue(Arrays.equals(instrumented, Files.readAllBytes(copy.toPath())), "The copy must be exact");
+        assertNoTemporaryFiles(dir);
+    }
+
+    // sets the modification time to the given number of seconds ago, in whole seconds for all file systems
+    private static long setLastModified(File file, int secondsAgo) {
+        assertTrue(file.setLastModified((System.currentTimeMillis() / 1000 - secondsAgo) * 1000),
+                "Could not set the modification time of " + file);
+        return file.lastModified();
+    }
+
+    private static void assertUnchanged(File archive, byte[] contents, long lastModified) throws IOException {
+        assertTrue(Arrays.equals(contents, Files.readAllBytes(archive.toPath())), archive + " must not change");
+        assertEquals(lastModified, archive.lastModified(), "modification time of " + archive);
+    }
+
+    private static void testZip64(final ArchiveInstrumenter archiveInstrumenter, File dir) throws Exception {
+        final File archive = new File(dir, "zip64.zip");
+        final File dest = new File(dir, "zip64-dest.zip");
+        writeArchive(archive);
+        byte[] bytes = Files.readAllBytes(archive.toPath());
+        int end = bytes.length - 22 - COMMENT.length();
+        assertEquals(0x06054b50, readInt(bytes, end), "end of central directory signature");
+        int cdOffset = readInt(bytes, end + 16);
+
+        // the central directory itself beyond 4 GB
+        byte[] zip64 = bytes.clone();
+        writeInt(zip64, end + 16, 0xFFFFFFFF);
+        Files.write(archive.toPath(), zip64);
+        assertZip64Rejected(archiveInstrumenter, archive, dest);
+
+        // an entry beyond 4 GB
+        zip64 = bytes.clone();
+        writeInt(zip64, cdOffset + 20, 0xFFFFFFFF);
+        Files.write(archive.toPath(), zip64);
+        assertZip64Rejected(archiveInstrumenter, archive, dest);
+        assertTrue(!dest.exists(), "No archive must be written");
+        assertNoTemporaryFiles(dir);
+    }
+
+    private static void assertZip64Rejected(final ArchiveInstrumenter archiveInstrumenter, final File archive,
+                                            final File dest) {
+        Throwable thrown = getThrown(new Action() {
+            public void run() throws Exception {
+                archiveInstrumenter.instrument(archive, dest);
+            }
+        });
+        assertTrue(thrown instanceof IOException, "Expected an IOException but got " + thrown);
+        assertEquals("ZIP64 archives are not supported", thrown.getMessage(), "message");
+    }
+
+    // the jar is signed for real, so any class left with the signature fails to load from it
+    private static void testSignedJar(ArchiveInstrumenter archiveInstrumenter, File dir) throws Exception {
+        File jar = new File(dir, "signed.jar");
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().putValue("Created-By", "javacn test");
+        manifest.getEntries().put(STORED_TEXT, new Attributes());
+        manifest.getEntries().get(STORED_TEXT).putValue("X-Custom", "kept");
+        ByteArrayOutputStream manifestBytes = new ByteArrayOutputStream();
+        manifest.write(manifestBytes);
+        ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(jar));
+        try {
+            addEntry(zip, JarFile.MANIFEST_NAME, manifestBytes.toByteArray(), ZipEntry.DEFLATED);
+            addEntry(zip, GREETER, ClassFiles.readJava6(Greeter.class), ZipEntry.DEFLATED);
+            addEntry(zip, STORED_TEXT, getContents(STORED_TEXT), ZipEntry.STORED);
+            // not a signature file, since it is not located directly in META-INF
+            addEntry(zip, "META-INF/sub/NOT.SF", getContents(STORED_TEXT), ZipEntry.DEFLATED);
+        }
+        finally {
+            zip.close();
+        }
+        sign(jar, dir);
+        assertTrue(getNames(jar).contains("META-INF/TEST.SF"), "The jar must be signed");
+
+        assertEquals(1, archiveInstrumenter.instrument(jar, jar), "instrumented classes");
+        JarFile jarFile = new JarFile(jar, true);
+        try {
+            Manifest unsigned = jarFile.getManifest();
+            assertEquals("javacn test", unsigned.getMainAttributes().getValue("Created-By"), "main attribute");
+            assertEquals(Collections.singleton(STORED_TEXT), unsigned.getEntries().keySet(), "manifest sections");
+            assertEquals(1, unsigned.getAttributes(STORED_TEXT).size(), "attributes of " + STORED_TEXT);
+            assertEquals("kept", unsigned.getAttributes(STORED_TEXT).getValue("X-Custom"), "X-Custom");
+            for (Enumeration<JarEntry> entries = jarFile.entries(); entries.hasMoreElements(); ) {
+                JarEntry entry = entries.nextElement();
+                byte[] contents = read(jarFile.getInputStream(entry));
+                assertTrue(entry.getCodeSigners() == null, "Entry " + entry.getName() + " must not be signed");
+                if (entry.getName().equals(GREETER)) {
+                    assertInstrumented(contents);
+                }
+            }
+        }
+        finally {
+            jarFile.close();
+        }
+        // jarsigner moves the META-INF entries to the front
+        assertEquals(Arrays.asList(JarFile.MANIFEST_NAME, "META-INF/sub/NOT.SF", GREETER, STORED_TEXT),
+                getNames(jar), "entries");
+    }
+
+    private static void sign(File jar, File dir) throws Exception {
+        String keystore = new File(dir, "keystore.p12").getPath();
+        run(getTool("keytool"), "-genkeypair", "-alias", "test", "-dname", "CN=javacn test", "-keyalg", "RSA",
+                "-validity", "1", "-storetype", "pkcs12", "-keystore", keystore, "-storepass", "secret",
+                "-keypass", "secret");
+        run(getTool("jarsigner"), "-keystore", keystore, "-storepass", "secret", "-sigfile", "TEST", jar.getPath(),
+                "test");
+    }
+
+    // the tools are located in the bin directory of the JDK, which is the parent of java.home on Java 8
+    private static String getTool(String name) {
+        File javaHome = new File(System.getProperty("java.home"));
+        File tool = new File(javaHome, "bin/" + name);
+        return tool.exists() ? tool.getPath() : new File(javaHome.getParentFile(), "bin/" + name).getPath();
+    }
+
+    private static void run(String... command) throws Exception {
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String output = new String(read(process.getInputStream()), StandardCharsets.UTF_8);
+        assertEquals(0, process.waitFor(), Arrays.asList(command) + " failed with " + output + "; exit code");
+    }
+
+    /**
+     * Writes an archive with class and other entries, stored and deflated ones, with a UTF-8 name and a comment.
+     *
+     * @return the compression methods of the entries keyed by their names, in the order of the archive
+     */
+    private static Map<String, Integer> writeArchive(File file) throws IOException {
+        Map<String, Integer> methods = new LinkedHashMap<String, Integer>();
+        methods.put(DIRECTORY, ZipEntry.STORED);
+        methods.put(GREETER, ZipEntry.DEFLATED);
+        methods.put(TEXT, ZipEntry.DEFLATED);
+        methods.put(STORED_GREETER, ZipEntry.STORED);
+        methods.put(STORED_TEXT, ZipEntry.STORED);
+        ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file));
+        try {
+            for (Map.Entry<String, Integer> entry : methods.entrySet()) {
+                addEntry(zip, entry.getKey(), getContents(entry.getKey()), entry.getValue());
+            }
+            zip.setComment(COMMENT);
+        }
+        finally {
+            zip.close();
+        }
+        return methods;
+    }
+
+    private static void addEntry(ZipOutputStream zip, String name, byte[] contents, int method) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(method);
+        if (method == ZipEntry.STORED) {
+            CRC32 crc = new CRC32();
+            crc.update(contents);
+            entry.setCrc(crc.getValue());
+            entry.setSize(contents.length);
+            entry.setCompressedSize(contents.length);
+        }
+        zip.putNextEntry(entry);
+        zip.write(contents);
+        zip.closeEntry();
+    }
+
+    private static byte[] getContents(String name) throws IOException {
+        if (name.endsWith(".class")) {
+            return ClassFiles.readJava6(Greeter.class);
+        }
+        if (name.endsWith("/")) {
+            return new byte[0];
+        }
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            text.append("line ").append(i).append(" of ").append(name).append('\n');
+        }
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Asserts that the given archive has the entries of {@link #writeArchive(File)} with the classes instrumented,
+     * both according to its central directory and to its local headers.
+     */
+    private static void assertArchive(File archive, Map<String, Integer> methods) throws IOException {
+        List<String> names = new ArrayList<String>();
+        ZipFile zipFile = new ZipFile(archive);
+        try {
+            assertEquals(COMMENT, zipFile.getComment(), "comment");
+            for (Enumeration<? extends ZipEntry> entries = zipFile.entries(); entries.hasMoreElements(); ) {
+                ZipEntry entry = entries.nextElement();
+                names.add(entry.getName());
+                assertEquals(methods.get(entry.getName()), entry.getMethod(), "method of " + entry.getName());
+                assertEntry(entry.getName(), read(zipFile.getInputStream(entry)));
+            }
+        }
+        finally {
+            zipFile.close();
+        }
+        assertEquals(new ArrayList<String>(methods.keySet()), names, "entries in the central directory");
+
+        names.clear();
+        ZipInputStream zip = new ZipInputStream(Files.newInputStream(archive.toPath()));
+        try {
+            for (ZipEntry entry; (entry = zip.getNextEntry()) != null; ) {
+                names.add(entry.getName());
+                assertEntry(entry.getName(), read(zip));
+            }
+        }
+        finally {
+            zip.close();
+        }
+        assertEquals(new ArrayList<String>(methods.keySet()), names, "entries in the local headers");
+    }
+
+    private static void assertEntry(String name, byte[] contents) throws IOException {
+        if (name.endsWith(".class")) {
+            assertInstrumented(contents);
+        } else {
+            assertTrue(Arrays.equals(getContents(name), contents), "Contents of " + name + " changed");
+        }
+    }
+
+    private static void assertInstrumented(byte[] classBytes) {
+        try {
+            ClassLoader loader = new ClassFiles.IsolatingClassLoader(
+                    Collections.singletonMap(Greeter.class.getName(), classBytes));
+            final Method greet = loader.loadClass(Greeter.class.getName()).getMethod("greet", String.class);
+            assertArgumentRejected("1st argument", new Action() {
+                public void run() throws Exception {
+                    greet.invoke(null, (Object) null);
+                }
+            });
+        }
+        catch (ReflectiveOperationException e) {
+            throw new AssertionError("Could not load the instrumented class: " + e, e);
+        }
+    }
+
+    private static void assertNoTemporaryFiles(File dir) {
+        for (String name : dir.list()) {
+            assertTrue(!name.endsWith(".tmp"), "Temporary file " + name + " left behind");
+        }
+    }
+
+    private static List<String> getNames(File archive) throws IOException {
+        List<String> names = new ArrayList<String>();
+        ZipFile zipFile = new ZipFile(archive);
+        try {
+            for (Enumeration<? extends ZipEntry> entries = zipFile.entries(); entries.hasMoreElements(); ) {
+                names.add(entries.nextElement().getName());
+            }
+        }
+        finally {
+            zipFile.close();
+        }
+        return names;
+    }
+
+    // reads the stream to its end, leaving it open since the stream of a zip entry belongs to the archive
+    private static byte[] read(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int n; (n = inputStream.read(buffer)) > 0; ) {
+            bytes.write(buffer, 0, n);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static int readInt(byte[] b, int offset) {
+        return (b[offset] & 0xFF) | (b[offset + 1] & 0xFF) << 8 | (b[offset + 2] & 0xFF) << 16 |
+                (b[offset + 3] & 0xFF) << 24;
+    }
+
+    private static void writeInt(byte[] b, int offset, int value) {
+        for (int i = 0; i < 4; i++) {
+            b[offset + i] = (byte) (value >>> 8 * i);
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+}
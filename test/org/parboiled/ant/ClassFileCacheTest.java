@@ -0,0 +1,165 @@
+/*
+ * Copyright 2000-2008 JetBrains s.r.o.
+ * Modified in 2009 by Mathias Doenitz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.parboiled.ant;
+
+import org.apache.tools.ant.Project;
+import org.objectweb.asm.ClassAdapter;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.parboiled.compiler.notNullVerification.InstrumentationOptions;
+import org.parboiled.test.ClassFiles;
+import org.parboiled.test.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.parboiled.test.Assertions.*;
+
+/**
+ * Checks that cached instrumentation results are only used with the options and the class hierarchy they were
+ * computed with.
+ */
+public class ClassFileCacheTest {
+
+    private static final String OBJECT = "java/lang/Object";
+
+    public static class Base {
+    }
+
+    public static class First extends Base {
+    }
+
+    public static class Second extends Base {
+    }
+
+    // the frames of create merge First and Second into their common superclass
+    public static class Module {
+        public static Base create(@NotNull String name, boolean first) {
+            Base base = first ? new First() : new Second();
+            return base;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        File dir = Files.createTempDirectory("cache").toFile();
+        try {
+            testHit(dir);
+            testHierarchyChange(dir);
+            testSaltChange(dir);
+        }
+        finally {
+            delete(dir);
+        }
+        System.out.println("ClassFileCacheTest passed");
+    }
+
+    private static void testHit(File dir) throws Exception {
+        ClassFileCache cache = new ClassFileCache(dir, "salt");
+        ClassInstrumenter first = newInstrumenter(getClasses(getName(Base.class)), cache);
+        byte[] instrumented = instrument(first);
+        assertEquals(0, first.getCacheHits(), "cache hits of the first instrumentation");
+
+        ClassInstrumenter second = newInstrumenter(getClasses(getName(Base.class)), cache);
+        assertTrue(Arrays.equals(instrumented, instrument(second)), "The cached result must be returned");
+        assertEquals(1, second.getCacheHits(), "cache hits of the second instrumentation");
+    }
+
+    // First and Second are no longer subclasses of Base, so the merged frames differ
+    private static void testHierarchyChange(File dir) throws Exception {
+        ClassFileCache cache = new ClassFileCache(dir, "salt");
+        byte[] expected = instrument(newInstrumenter(getClasses(OBJECT), null));
+        byte[] previous = instrument(newInstrumenter(getClasses(getName(Base.class)), null));
+        assertTrue(!Arrays.equals(expected, previous), "The frames must depend on the class hierarchy");
+
+        ClassInstrumenter changed = newInstrumenter(getClasses(OBJECT), cache);
+        assertTrue(Arrays.equals(expected, instrument(changed)), "The class must be instrumented again");
+        assertEquals(0, changed.getCacheHits(), "cache hits after the change of the class hierarchy");
+
+        // the entry now holds the result for the changed hierarchy
+        ClassInstrumenter again = newInstrumenter(getClasses(OBJECT), cache);
+        assertTrue(Arrays.equals(expected, instrument(again)), "The cached result must be returned");
+        assertEquals(1, again.getCacheHits(), "cache hits of the repeated instrumentation");
+    }
+
+    private static void testSaltChange(File dir) throws Exception {
+        ClassFileCache cache = new ClassFileCache(dir, "other salt");
+        ClassInstrumenter instrumenter = newInstrumenter(getClasses(OBJECT), cache);
+        instrument(instrumenter);
+        assertEquals(0, instrumenter.getCacheHits(), "cache hits with a different salt");
+    }
+
+    private static ClassInstrumenter newInstrumenter(Map<String, byte[]> classes, ClassFileCache cache) {
+        InstrumentNotNull task = new InstrumentNotNull();
+        task.setProject(new Project());
+        return new ClassInstrumenter(task, new InstrumentationOptions(), ClassWriter.COMPUTE_FRAMES,
+                new ClassHierarchyResolver(new String[0], classes), null, cache,
+                Collections.<ClassVisitorFactory>emptyList());
+    }
+
+    private static byte[] instrument(ClassInstrumenter instrumenter) throws IOException {
+        byte[] instrumented = instrumenter.instrument(ClassFiles.readJava6(Module.class), getName(Module.class));
+        assertTrue(instrumented != null, "Module must be instrumented");
+        return instrumented;
+    }
+
+    /**
+     * @param superName the internal name of the superclass to give First and Second
+     * @return the class files of the hierarchy, keyed by internal name
+     */
+    private static Map<String, byte[]> getClasses(String superName) throws IOException {
+        Map<String, byte[]> classes = new HashMap<String, byte[]>();
+        classes.put(getName(Base.class), ClassFiles.readJava6(Base.class));
+        for (Class<?> type : new Class<?>[] {First.class, Second.class}) {
+            classes.put(getName(type), withSuperName(ClassFiles.readJava6(type), superName));
+        }
+        return classes;
+    }
+
+    // only the header matters to the resolver, the constructor still calls the one of Base
+    private static byte[] withSuperName(byte[] classBytes, final String superName) {
+        ClassWriter writer = new ClassWriter(0);
+        new ClassReader(classBytes).accept(new ClassAdapter(writer) {
+            @Override
+            public void visit(int version, int access, String name, String signature, String originalSuperName,
+                              String[] interfaces) {
+                super.visit(version, access, name, signature, superName, interfaces);
+            }
+        }, 0);
+        return writer.toByteArray();
+    }
+
+    private static String getName(Class<?> type) {
+        return type.getName().replace('.', '/');
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+}
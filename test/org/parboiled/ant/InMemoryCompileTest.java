@@ -0,0 +1,155 @@
+/*
+ * Copyright 2000-2008 JetBrains s.r.o.
+ * Modified in 2009 by Mathias Doenitz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.parboiled.ant;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.Path;
+import org.parboiled.test.Assertions.Action;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.parboiled.test.Assertions.*;
+
+/**
+ * Checks the compilation of sources in memory by the javacn task, whose class files are written instrumented right
+ * away, as well as the properties it sets and the compiler settings it rejects.
+ */
+public class InMemoryCompileTest {
+
+    private static final String SOURCE = "" +
+            "package tiny;\n" +
+            "public class Tiny {\n" +
+            "    public static int length(@NotNull String s) {\n" +
+            "        return s.length();\n" +
+            "    }\n" +
+            "}\n";
+
+    private static final String ANNOTATION = "" +
+            "package tiny;\n" +
+            "public @interface NotNull {}\n";
+
+    private static final String BROKEN = "" +
+            "package tiny;\n" +
+            "public class Broken extends Missing {}\n";
+
+    public static void main(String[] args) throws Exception {
+        File dir = Files.createTempDirectory("inmemory").toFile();
+        try {
+            testCompile(dir);
+            testFailure(dir);
+            testCompilerRejected(dir);
+        }
+        finally {
+            delete(dir);
+        }
+        System.out.println("InMemoryCompileTest passed");
+    }
+
+    private static void testCompile(File dir) throws Exception {
+        File src = new File(dir, "compile/src");
+        File classes = new File(dir, "compile/classes");
+        write(new File(src, "tiny/Tiny.java"), SOURCE);
+        write(new File(src, "tiny/NotNull.java"), ANNOTATION);
+        Javacn task = newTask(src, classes);
+        task.setUpdatedProperty("updated");
+        task.execute();
+
+        assertEquals("true", task.getProject().getProperty("updated"), "updated property");
+        assertTrue(task.getTaskSuccess(), "The compilation must succeed");
+        URLClassLoader loader = new URLClassLoader(new URL[] {classes.toURI().toURL()});
+        try {
+            final Method length = loader.loadClass("tiny.Tiny").getMethod("length", String.class);
+            assertEquals(3, length.invoke(null, "abc"), "result");
+            assertArgumentRejected("1st argument", new Action() {
+                public void run() throws Exception {
+                    length.invoke(null, (Object) null);
+                }
+            });
+        }
+        finally {
+            loader.close();
+        }
+    }
+
+    private static void testFailure(File dir) throws Exception {
+        File src = new File(dir, "failure/src");
+        File classes = new File(dir, "failure/classes");
+        write(new File(src, "tiny/Broken.java"), BROKEN);
+        Javacn task = newTask(src, classes);
+        task.setFailonerror(false);
+        task.setErrorProperty("failed");
+        task.setUpdatedProperty("updated");
+        task.execute();
+
+        assertEquals("true", task.getProject().getProperty("failed"), "error property");
+        assertEquals(null, task.getProject().getProperty("updated"), "updated property");
+        assertTrue(!task.getTaskSuccess(), "The compilation must fail");
+    }
+
+    private static void testCompilerRejected(File dir) throws Exception {
+        File src = new File(dir, "compile/src");
+        final Javacn task = newTask(src, new File(dir, "rejected/classes"));
+        task.setCompiler("jikes");
+        Throwable thrown = getThrown(new Action() {
+            public void run() throws Exception {
+                task.execute();
+            }
+        });
+        assertTrue(thrown instanceof BuildException, "Expected a rejected compiler: " + thrown);
+    }
+
+    // the target selects the instrumentation, which only applies to Java 5 and 6 class files, but the running javac
+    // may not support it anymore, so it is only implied by the compiler
+    private static Javacn newTask(File src, File classes) {
+        Project project = new Project();
+        project.init();
+        Javacn task = new Javacn();
+        task.setProject(project);
+        task.setTaskName("javacn");
+        task.setSrcdir(new Path(project, src.getPath()));
+        task.setDestdir(classes);
+        task.setIncludeantruntime(false);
+        task.setCompiler("javac1.6");
+        task.setInMemory(true);
+        classes.mkdirs();
+        return task;
+    }
+
+    private static void write(File file, String contents) throws IOException {
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2000-2008 JetBrains s.r.o.
+ * Modified in 2009 by Mathias Doenitz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.parboiled.ant;
+
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.Path;
+import org.objectweb.asm.ClassReader;
+import org.parboiled.compiler.notNullVerification.NotNullVerifyingInstrumenter;
+import org.parboiled.test.ClassFiles;
+import org.parboiled.test.Greeter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.parboiled.test.Assertions.*;
+
+/**
+ * Checks that the incremental mode of the javacn task instruments exactly the class files compiled in the run,
+ * including those of inner and anonymous classes, and leaves all other class files in the destination directory alone.
+ */
+public class IncrementalTest {
+
+    private static final String OUTER = "" +
+            "package a;\n" +
+            "public class Outer {\n" +
+            "    public class Inner {\n" +
+            "        public void set(@NotNull String value) {\n" +
+            "        }\n" +
+            "    }\n" +
+            "    public Runnable task(@NotNull final String name) {\n" +
+            "        return new Runnable() {\n" +
+            "            public void run() {\n" +
+            "                print(name);\n" +
+            "            }\n" +
+            "            private void print(@NotNull String text) {\n" +
+            "            }\n" +
+            "        };\n" +
+            "    }\n" +
+            "}\n";
+
+    private static final String OTHER = "" +
+            "package a;\n" +
+            "public class Other {\n" +
+            "    public static void use(@NotNull String value) {\n" +
+            "    }\n" +
+            "}\n";
+
+    private static final String ANNOTATION = "" +
+            "package a;\n" +
+            "public @interface NotNull {}\n";
+
+    private static final String[] OUTER_CLASSES = {"a/Outer.class", "a/Outer$Inner.class", "a/Outer$1.class"};
+    private static final String OTHER_CLASS = "a/Other.class";
+    // compiled by some earlier build, without a source in the source directory
+    private static final String FOREIGN_CLASS = Greeter.class.getName().replace('.', '/') + ".class";
+
+    public static void main(String[] args) throws Exception {
+        File dir = Files.createTempDirectory("incremental").toFile();
+        try {
+            File src = new File(dir, "src");
+            File classes = new File(dir, "classes");
+            write(new File(src, "a/Outer.java"), OUTER);
+            write(new File(src, "a/Other.java"), OTHER);
+            write(new File(src, "a/NotNull.java"), ANNOTATION);
+            byte[] foreign = ClassFiles.readJava6(Greeter.class);
+            write(new File(classes, FOREIGN_CLASS), foreign);
+
+            testFullBuild(src, classes, foreign);
+            testChangedSource(src, classes, foreign);
+            testUpToDate(src, classes);
+        }
+        finally {
+            delete(dir);
+        }
+        System.out.println("IncrementalTest passed");
+    }
+
+    private static void testFullBuild(File src, File classes, byte[] foreign) throws IOException {
+        build(src, classes);
+        for (String name : OUTER_CLASSES) {
+            assertInstrumented(new File(classes, name));
+        }
+        assertInstrumented(new File(classes, OTHER_CLASS));
+        assertTrue(Arrays.equals(foreign, Files.readAllBytes(new File(classes, FOREIGN_CLASS).toPath())),
+                "Class files not compiled in the run must not be instrumented");
+    }
+
+    // only Outer is recompiled, its class files are written by javac again and need to be instrumented again
+    private static void testChangedSource(File src, File classes, byte[] foreign) throws IOException {
+        setAllLastModified(src, 20);
+        setAllLastModified(classes, 10);
+        long otherModified = new File(classes, OTHER_CLASS).lastModified();
+        write(new File(src, "a/Outer.java"), OUTER.replace("String name", "String newName")
+                .replace("print(name)", "print(newName)"));
+        build(src, classes);
+        for (String name : OUTER_CLASSES) {
+            assertInstrumented(new File(classes, name));
+            assertTrue(new File(classes, name).lastModified() > otherModified, name + " must have been rewritten");
+        }
+        assertEquals(otherModified, new File(classes, OTHER_CLASS).lastModified(), "modification time of Other");
+        assertTrue(Arrays.equals(foreign, Files.readAllBytes(new File(classes, FOREIGN_CLASS).toPath())),
+                "Class files not compiled in the run must not be instrumented");
+    }
+
+    private static void testUpToDate(File src, File classes) throws IOException {
+        setAllLastModified(src, 20);
+        setAllLastModified(classes, 10);
+        long modified = new File(classes, OTHER_CLASS).lastModified();
+        build(src, classes);
+        for (String name : OUTER_CLASSES) {
+            assertEquals(modified, new File(classes, name).lastModified(), "modification time of " + name);
+        }
+        assertEquals(modified, new File(classes, OTHER_CLASS).lastModified(), "modification time of Other");
+    }
+
+    // the target selects the instrumentation, which only applies to Java 5 and 6 class files, but the running javac
+    // may not support it anymore, so it is only implied by the compiler
+    private static void build(File src, File classes) {
+        Project project = new Project();
+        project.init();
+        Javacn task = new Javacn();
+        task.setProject(project);
+        task.setTaskName("javacn");
+        task.setSrcdir(new Path(project, src.getPath()));
+        task.setDestdir(classes);
+        task.setIncludeantruntime(false);
+        task.setCompiler("javac1.6");
+        task.setIncremental(true);
+        classes.mkdirs();
+        task.execute();
+    }
+
+    private static void assertInstrumented(File classFile) throws IOException {
+        ClassReader reader = new ClassReader(Files.readAllBytes(classFile.toPath()));
+        // annotated classes no longer require instrumentation only if they are instrumented already
+        assertTrue(!NotNullVerifyingInstrumenter.mayRequireInstrumentation(reader),
+                classFile + " must be instrumented");
+    }
+
+    private static void setAllLastModified(File file, int secondsAgo) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                setAllLastModified(child, secondsAgo);
+            }
+        } else {
+            file.setLastModified((System.currentTimeMillis() / 1000 - secondsAgo) * 1000);
+        }
+    }
+
+    private static void write(File file, String contents) throws IOException {
+        write(file, contents.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void write(File file, byte[] contents) throws IOException {
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), contents);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+}
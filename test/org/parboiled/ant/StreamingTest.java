@@ -0,0 +1,182 @@
+/*
+ * Copyright 2000-2008 JetBrains s.r.o.
+ * Modified in 2009 by Mathias Doenitz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.parboiled.ant;
+
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.Path;
+import org.objectweb.asm.ClassAdapter;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import org.parboiled.compiler.notNullVerification.InstrumentationOptions;
+import org.parboiled.test.ClassFiles;
+import org.parboiled.test.Greeter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.parboiled.test.Assertions.*;
+
+/**
+ * Checks the streaming instrumentation of the destination directory: the number of class files handed to the worker
+ * threads at a time is bounded however large the tree is, and reusing the read buffer of a worker thread for class
+ * files of different sizes does not change the instrumentation result.
+ */
+public class StreamingTest {
+
+    private static final int DIRECTORIES = 5;
+    private static final int FILES_PER_DIRECTORY = 10;
+    // larger than the initial read buffer, so the buffer grows and is then reused for the smaller class files
+    private static final int BIG_CLASS_FIELDS = 5000;
+    // the in-flight window of the directory scan, four class files per thread
+    private static final int WINDOW = 4;
+
+    /**
+     * Blocks the first class until the directory scan has filled the in-flight window, recording the number of class
+     * files queued meanwhile.
+     */
+    public static class BlockingFactory implements ClassVisitorFactory {
+        static volatile Javacn task;
+        static final AtomicInteger queued = new AtomicInteger(-1);
+
+        public ClassVisitor createVisitor(ClassVisitor next) {
+            if (queued.compareAndSet(-1, 0)) {
+                try {
+                    long deadline = System.currentTimeMillis() + 5000;
+                    while (getQueued() < WINDOW - 1 && System.currentTimeMillis() < deadline) {
+                        Thread.sleep(10);
+                    }
+                    // give an unbounded scan the time to queue more
+                    Thread.sleep(200);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                queued.set(getQueued());
+            }
+            return next;
+        }
+
+        public boolean isModification(ClassVisitor visitor) {
+            return false;
+        }
+
+        private static int getQueued() {
+            return task.getInstrumentationPool().getQueuedSubmissionCount();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        File dir = Files.createTempDirectory("streaming").toFile();
+        try {
+            byte[] small = ClassFiles.readJava6(Greeter.class);
+            byte[] big = withFields(small, BIG_CLASS_FIELDS);
+            assertTrue(big.length > 64 * 1024, "The big class must exceed the initial read buffer");
+            File classes = new File(dir, "classes");
+            for (int i = 0; i < DIRECTORIES; i++) {
+                for (int j = 0; j < FILES_PER_DIRECTORY; j++) {
+                    write(getClassFile(classes, i, j), j % 3 == 0 ? big : small);
+                }
+            }
+
+            instrument(dir, classes);
+
+            assertEquals(WINDOW - 1, BlockingFactory.queued.get(), "class files queued behind the blocked one");
+            byte[] expectedSmall = instrument(small);
+            byte[] expectedBig = instrument(big);
+            for (int i = 0; i < DIRECTORIES; i++) {
+                for (int j = 0; j < FILES_PER_DIRECTORY; j++) {
+                    File file = getClassFile(classes, i, j);
+                    assertTrue(Arrays.equals(j % 3 == 0 ? expectedBig : expectedSmall,
+                            Files.readAllBytes(file.toPath())), "Unexpected instrumentation of " + file);
+                }
+            }
+        }
+        finally {
+            delete(dir);
+        }
+        System.out.println("StreamingTest passed");
+    }
+
+    // a single worker thread, so it reads all class files into the same buffer
+    private static void instrument(File dir, File classes) {
+        Project project = new Project();
+        project.init();
+        InstrumentNotNull task = new InstrumentNotNull();
+        task.setProject(project);
+        task.setTaskName("instrumentnotnull");
+        File src = new File(dir, "src");
+        src.mkdirs();
+        task.setSrcdir(new Path(project, src.getPath()));
+        task.setDestdir(classes);
+        task.setIncludeantruntime(false);
+        task.setTarget("1.6");
+        task.setThreads(1);
+        task.createVisitor().setClassname(BlockingFactory.class.getName());
+        BlockingFactory.task = task;
+        task.execute();
+    }
+
+    private static byte[] instrument(byte[] classBytes) {
+        InstrumentNotNull task = new InstrumentNotNull();
+        task.setProject(new Project());
+        ClassInstrumenter instrumenter = new ClassInstrumenter(task, new InstrumentationOptions(),
+                ClassWriter.COMPUTE_FRAMES, new ClassHierarchyResolver(new String[0]), null, null,
+                Collections.<ClassVisitorFactory>emptyList());
+        return instrumenter.instrument(classBytes, "expected");
+    }
+
+    private static byte[] withFields(byte[] classBytes, final int fields) {
+        ClassWriter writer = new ClassWriter(0);
+        new ClassReader(classBytes).accept(new ClassAdapter(writer) {
+            @Override
+            public void visitEnd() {
+                for (int i = 0; i < fields; i++) {
+                    cv.visitField(Opcodes.ACC_PUBLIC, "field" + i, "I", null, null).visitEnd();
+                }
+                super.visitEnd();
+            }
+        }, 0);
+        return writer.toByteArray();
+    }
+
+    private static File getClassFile(File classes, int directory, int file) {
+        return new File(classes, "d" + directory + "/C" + file + ".class");
+    }
+
+    private static void write(File file, byte[] contents) throws IOException {
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), contents);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+}
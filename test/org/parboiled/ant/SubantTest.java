@@ -0,0 +1,250 @@
+/*
+ * Copyright 2000-2008 JetBrains s.r.o.
+ * Modified in 2009 by Mathias Doenitz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.parboiled.ant;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildListener;
+import org.apache.tools.ant.DefaultLogger;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.ProjectHelper;
+import org.parboiled.test.ClassFiles;
+import org.parboiled.test.NotNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import static org.parboiled.test.Assertions.*;
+
+/**
+ * Checks the sharing and closing of the classpath cache in a multi-module build, in which a main project calls the
+ * builds of its modules through subant and every module instruments its classes against the same library jar.
+ */
+public class SubantTest {
+
+    private static final String[] MODULES = {"a", "b"};
+
+    private static final String MAIN_BUILD = "" +
+            "<project name='main'>\n" +
+            "    <taskdef name='instrumentnotnull' classname='" + InstrumentNotNull.class.getName() + "'/>\n" +
+            "    <target name='modules'>\n" +
+            "        <subant target='instrument'><fileset dir='.' includes='*/build.xml'/></subant>\n" +
+            "    </target>\n" +
+            "    <target name='instrument'>\n" +
+            "        <mkdir dir='src'/>\n" +
+            "        <instrumentnotnull destdir='classes' srcdir='src' target='1.6' includeantruntime='false'>\n" +
+            "            <classpath location='lib.jar'/>\n" +
+            "        </instrumentnotnull>\n" +
+            "    </target>\n" +
+            "    <target name='shared' depends='instrument, modules'/>\n" +
+            "</project>\n";
+
+    private static final String MODULE_BUILD = "" +
+            "<project name='module'>\n" +
+            "    <target name='instrument'>\n" +
+            "        <mkdir dir='src'/>\n" +
+            "        <instrumentnotnull destdir='classes' srcdir='src' target='1.6' includeantruntime='false'>\n" +
+            "            <classpath location='../lib.jar'/>\n" +
+            "        </instrumentnotnull>\n" +
+            "    </target>\n" +
+            "</project>\n";
+
+    public static class Base {
+    }
+
+    public static class First extends Base {
+    }
+
+    public static class Second extends Base {
+    }
+
+    // the frames of create merge First and Second, whose common superclass is looked up in the library jar
+    public static class Module {
+        public static Base create(@NotNull String name, boolean first) {
+            Base base = first ? new First() : new Second();
+            return base;
+        }
+    }
+
+    // records the cache of the project of every instrumentnotnull task, the number of jars open at its end and the
+    // index of the library jar
+    private static class Recorder implements BuildListener {
+        final List<ClasspathCache> caches = new ArrayList<ClasspathCache>();
+        final List<Integer> openJars = new ArrayList<Integer>();
+        final List<Set<String>> indexes = new ArrayList<Set<String>>();
+        private final File library;
+
+        private Recorder(File library) {
+            this.library = ClasspathCache.normalize(library);
+        }
+
+        public void taskFinished(BuildEvent event) {
+            if ("instrumentnotnull".equals(event.getTask().getTaskName())) {
+                ClasspathCache cache = ClasspathCacheListener.forProject(event.getProject());
+                caches.add(cache);
+                openJars.add(cache.getOpenJars());
+                try {
+                    indexes.add(cache.getJar(library).classFiles);
+                }
+                catch (IOException e) {
+                    throw new AssertionError("Could not open " + library + ": " + e);
+                }
+            }
+        }
+
+        public void buildStarted(BuildEvent event) {
+        }
+
+        public void buildFinished(BuildEvent event) {
+        }
+
+        public void targetStarted(BuildEvent event) {
+        }
+
+        public void targetFinished(BuildEvent event) {
+        }
+
+        public void taskStarted(BuildEvent event) {
+        }
+
+        public void messageLogged(BuildEvent event) {
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        File dir = Files.createTempDirectory("subant").toFile();
+        try {
+            testModuleCaches(dir);
+            testSharedCache(dir);
+        }
+        finally {
+            delete(dir);
+        }
+        System.out.println("SubantTest passed");
+    }
+
+    // without a cache of the main project every module has one of its own, closed at the end of the module build,
+    // the later modules reuse the index of the library jar built by the first one though
+    private static void testModuleCaches(File dir) throws Exception {
+        setUp(dir);
+        Recorder recorder = new Recorder(new File(dir, "lib.jar"));
+        Project project = newProject(dir, recorder);
+        project.executeTarget("modules");
+
+        assertEquals(MODULES.length, recorder.caches.size(), "instrumented modules");
+        assertTrue(recorder.caches.get(0) != recorder.caches.get(1), "Sibling modules must not share their caches");
+        for (int i = 0; i < MODULES.length; i++) {
+            assertEquals(1, recorder.openJars.get(i), "open jars at the end of the task");
+            assertEquals(0, recorder.caches.get(i).getOpenJars(), "open jars at the end of the module build");
+            assertTrue(recorder.indexes.get(i) == recorder.indexes.get(0), "The modules must share the index");
+        }
+        project.fireBuildFinished(null);
+    }
+
+    // the cache of the main project is shared with the modules and stays open until the main project finishes
+    private static void testSharedCache(File dir) throws Exception {
+        setUp(dir);
+        Recorder recorder = new Recorder(new File(dir, "lib.jar"));
+        Project project = newProject(dir, recorder);
+        project.executeTarget("shared");
+
+        assertEquals(MODULES.length + 1, recorder.caches.size(), "instrumented projects");
+        ClasspathCache cache = recorder.caches.get(0);
+        for (int i = 0; i < recorder.caches.size(); i++) {
+            assertTrue(recorder.caches.get(i) == cache, "The modules must share the cache of the main project");
+            assertEquals(1, recorder.openJars.get(i), "open jars at the end of the task");
+        }
+        assertEquals(1, cache.getOpenJars(), "open jars at the end of the module builds");
+        project.fireBuildFinished(null);
+        assertEquals(0, cache.getOpenJars(), "open jars at the end of the build");
+    }
+
+    private static Project newProject(File dir, Recorder recorder) {
+        Project project = new Project();
+        project.init();
+        DefaultLogger logger = new DefaultLogger();
+        logger.setOutputPrintStream(System.out);
+        logger.setErrorPrintStream(System.err);
+        logger.setMessageOutputLevel(Project.MSG_WARN);
+        project.addBuildListener(logger);
+        project.addBuildListener(recorder);
+        project.fireBuildStarted();
+        ProjectHelper.configureProject(project, new File(dir, "build.xml"));
+        return project;
+    }
+
+    // writes the build files, the library jar and the plain class files of all projects
+    private static void setUp(File dir) throws IOException {
+        delete(dir);
+        write(new File(dir, "build.xml"), MAIN_BUILD.getBytes(StandardCharsets.UTF_8));
+        writeModuleClass(dir);
+        for (String module : MODULES) {
+            write(new File(dir, module + "/build.xml"), MODULE_BUILD.getBytes(StandardCharsets.UTF_8));
+            writeModuleClass(new File(dir, module));
+        }
+        JarOutputStream jar = new JarOutputStream(new FileOutputStream(new File(dir, "lib.jar")));
+        try {
+            for (Class<?> type : new Class<?>[] {Base.class, First.class, Second.class}) {
+                jar.putNextEntry(new JarEntry(getClassFileName(type)));
+                jar.write(ClassFiles.readJava6(type));
+                jar.closeEntry();
+            }
+        }
+        finally {
+            jar.close();
+        }
+    }
+
+    private static void writeModuleClass(File dir) throws IOException {
+        write(new File(dir, "classes/" + getClassFileName(Module.class)), ClassFiles.readJava6(Module.class));
+    }
+
+    private static String getClassFileName(Class<?> type) {
+        return type.getName().replace('.', '/') + ".class";
+    }
+
+    private static void write(File file, byte[] contents) throws IOException {
+        file.getParentFile().mkdirs();
+        OutputStream outputStream = new FileOutputStream(file);
+        try {
+            outputStream.write(contents);
+        }
+        finally {
+            outputStream.close();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2000-2008 JetBrains s.r.o.
+ * Modified in 2009 by Mathias Doenitz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.parboiled.ant;
+
+import org.parboiled.test.Assertions.Action;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.parboiled.test.Assertions.*;
+
+/**
+ * Checks that class files are written through temporary files, which never outlive the write, and that files already
+ * holding the contents to write are not rewritten.
+ */
+public class WriteFileTest {
+
+    private static final byte[] CONTENTS = "first contents".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] CHANGED = "other contents".getBytes(StandardCharsets.UTF_8);
+
+    public static void main(String[] args) throws Exception {
+        File dir = Files.createTempDirectory("write").toFile();
+        try {
+            testWrite(dir);
+            testFailure(dir);
+        }
+        finally {
+            delete(dir);
+        }
+        System.out.println("WriteFileTest passed");
+    }
+
+    private static void testWrite(File dir) throws IOException {
+        File file = new File(dir, "Written.class");
+        assertTrue(Javacn.writeFile(file, CONTENTS), "A new file must be written");
+        assertContents(CONTENTS, file);
+        assertNoTempFiles(dir);
+
+        long lastModified = (System.currentTimeMillis() / 1000 - 60) * 1000;
+        file.setLastModified(lastModified);
+        assertTrue(!Javacn.writeFile(file, CONTENTS.clone()), "A file with the same contents must be kept");
+        assertEquals(lastModified, file.lastModified(), "modification time of the kept file");
+
+        // of the same length, so only the contents tell them apart
+        assertTrue(Javacn.writeFile(file, CHANGED), "A file with different contents must be written");
+        assertContents(CHANGED, file);
+        assertNoTempFiles(dir);
+    }
+
+    // a non-empty directory cannot be replaced by the temporary file
+    private static void testFailure(File dir) throws IOException {
+        File failing = new File(dir, "failing");
+        final File file = new File(failing, "Blocked.class");
+        assertTrue(new File(file, "child").mkdirs(), "Could not create " + file);
+        Throwable thrown = getThrown(new Action() {
+            public void run() throws Exception {
+                Javacn.writeFile(file, CONTENTS);
+            }
+        });
+        assertTrue(thrown instanceof IOException, "Expected a failed write: " + thrown);
+        assertTrue(file.isDirectory(), "The blocking directory must be left alone");
+        assertNoTempFiles(failing);
+    }
+
+    private static void assertContents(byte[] expected, File file) throws IOException {
+        assertTrue(Arrays.equals(expected, Files.readAllBytes(file.toPath())), "Unexpected contents of " + file);
+    }
+
+    private static void assertNoTempFiles(File dir) {
+        for (String name : dir.list()) {
+            assertTrue(!name.endsWith(".tmp"), "Temporary file left behind: " + name);
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2000-2008 JetBrains s.r.o.
+ * Modified in 2009 by Mathias Doenitz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.parboiled.compiler.notNullVerification;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.parboiled.test.Assertions.Action;
+import org.parboiled.test.ClassFiles;
+import org.parboiled.test.NotNull;
+
+import java.lang.reflect.Method;
+
+import static org.parboiled.test.Assertions.*;
+
+/**
+ * Checks that the checks of private methods are only omitted if all callers check their arguments themselves, i.e.
+ * not if some callers are excluded by the method patterns.
+ */
+public class ElisionScopeTest {
+
+    public static class Service {
+        public static String find(@NotNull String key) {
+            return lookup(key);
+        }
+
+        protected static String get(@NotNull String key) {
+            return lookup(key);
+        }
+
+        public static String checked(@NotNull String key) {
+            return lookup(key);
+        }
+
+        private static String lookup(@NotNull String key) {
+            return "helper got " + key;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        testExcludedCaller();
+        testCallerNotIncluded();
+        testScope();
+        testElidedChecks();
+        System.out.println("ElisionScopeTest passed");
+    }
+
+    private static void testExcludedCaller() throws Exception {
+        InstrumentationOptions options = new InstrumentationOptions();
+        options.setElideParameterChecks(true);
+        options.addCheckExclude(Service.class.getName() + "#find");
+        ClassLoader loader = ClassFiles.loadInstrumented(options, Service.class);
+        assertLookupRejected(loader, "find");
+        assertCallerRejected(loader, "checked");
+    }
+
+    private static void testCallerNotIncluded() throws Exception {
+        InstrumentationOptions options = new InstrumentationOptions();
+        options.setElideParameterChecks(true);
+        options.addCheckInclude(Service.class.getName() + "#checked");
+        options.addCheckInclude(Service.class.getName() + "#lookup");
+        ClassLoader loader = ClassFiles.loadInstrumented(options, Service.class);
+        assertLookupRejected(loader, "find");
+        assertCallerRejected(loader, "checked");
+    }
+
+    // private methods are only in scope if all methods are, so the scope never leaves unchecked callers of checked
+    // private methods behind
+    private static void testScope() throws Exception {
+        InstrumentationOptions options = new InstrumentationOptions();
+        options.setElideParameterChecks(true);
+        options.setScope(CheckScope.PUBLIC);
+        ClassLoader loader = ClassFiles.loadInstrumented(options, Service.class);
+        assertCallerRejected(loader, "find");
+        final Method get = loader.loadClass(Service.class.getName()).getDeclaredMethod("get", String.class);
+        get.setAccessible(true);
+        assertPasses(new Action() {
+            public void run() throws Exception {
+                assertEquals("helper got null", get.invoke(null, (Object) null), "result of unchecked methods");
+            }
+        });
+    }
+
+    private static void testElidedChecks() throws Exception {
+        InstrumentationOptions options = new InstrumentationOptions();
+        options.setElideParameterChecks(true);
+        assertEquals(1, getElidedChecks(options), "checks elided with all callers checked");
+        options.addCheckExclude(Service.class.getName() + "#find");
+        assertEquals(0, getElidedChecks(options), "checks elided with an excluded caller");
+    }
+
+    // the check of an unchecked caller is not there, so the one of the helper has to catch the null
+    private static void assertLookupRejected(ClassLoader loader, String caller) throws Exception {
+        final Method method = loader.loadClass(Service.class.getName()).getDeclaredMethod(caller, String.class);
+        method.setAccessible(true);
+        IllegalArgumentException e = assertArgumentRejected("1st argument", new Action() {
+            public void run() throws Exception {
+                method.invoke(null, (Object) null);
+            }
+        });
+        assertTrue(e.getMessage().contains(".lookup("), "Unexpected message: " + e.getMessage());
+    }
+
+    private static void assertCallerRejected(ClassLoader loader, String caller) throws Exception {
+        final Method method = loader.loadClass(Service.class.getName()).getDeclaredMethod(caller, String.class);
+        method.setAccessible(true);
+        IllegalArgumentException e = assertArgumentRejected("1st argument", new Action() {
+            public void run() throws Exception {
+                method.invoke(null, (Object) null);
+            }
+        });
+        assertTrue(e.getMessage().contains('.' + caller + '('), "Unexpected message: " + e.getMessage());
+    }
+
+    private static int getElidedChecks(InstrumentationOptions options) throws Exception {
+        ClassReader reader = new ClassReader(ClassFiles.readJava6(Service.class));
+        NotNullVerifyingInstrumenter instrumenter =
+                new NotNullVerifyingInstrumenter(null, new ClassWriter(reader, ClassWriter.COMPUTE_MAXS), options);
+        instrumenter.analyze(reader);
+        reader.accept(instrumenter, 0);
+        return instrumenter.getElidedChecks();
+    }
+
+}
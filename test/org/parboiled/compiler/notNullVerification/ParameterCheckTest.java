@@ -0,0 +1,187 @@
+/*
+ * Copyright 2000-2008 JetBrains s.r.o.
+ * Modified in 2009 by Mathias Doenitz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.parboiled.compiler.notNullVerification;
+
+import org.parboiled.test.Assertions.Action;
+import org.parboiled.test.ClassFiles;
+import org.parboiled.test.NotNull;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+
+import static org.parboiled.test.Assertions.*;
+
+/**
+ * Checks that the parameter checks test the right locals and name the right parameters, also for constructors with
+ * synthetic parameters (enums and non-static inner classes) and parameters taking two local variable slots. The
+ * frames added in preserveFrames mode, including those of the throw blocks appended behind the original code, are
+ * checked by running with -Xverify:all.
+ */
+public class ParameterCheckTest {
+
+    public static class Outer {
+        public class Inner {
+            public Inner(@NotNull String first, @NotNull String second) {
+            }
+        }
+
+        public static void join(long a, @NotNull String b, double c, @NotNull String d) {
+        }
+    }
+
+    public enum Color {
+        RED("red");
+
+        Color(@NotNull String name) {
+        }
+    }
+
+    public enum Broken {
+        NONE(null);
+
+        Broken(@NotNull String name) {
+        }
+    }
+
+    // branches, so the original code has frames of its own
+    public static class Lookup {
+        @NotNull
+        public static String find(@NotNull String key, @NotNull String fallback, boolean present) {
+            String value = present ? key : null;
+            if (value == null && !fallback.isEmpty()) {
+                return fallback;
+            }
+            return value;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (InstrumentationOptions options : getOptionVariants()) {
+            ClassLoader loader = ClassFiles.loadInstrumented(options, Outer.class, Outer.Inner.class, Color.class,
+                    Broken.class, Lookup.class);
+            testInnerClassConstructor(loader);
+            testSlots(loader);
+            testEnumConstructor(loader);
+            testReturnValue(loader);
+        }
+        System.out.println("ParameterCheckTest passed");
+    }
+
+    private static void testInnerClassConstructor(ClassLoader loader) throws Exception {
+        Class<?> outerClass = loader.loadClass(Outer.class.getName());
+        final Object outer = outerClass.getConstructor().newInstance();
+        final Constructor<?> constructor = loader.loadClass(Outer.Inner.class.getName())
+                .getConstructor(outerClass, String.class, String.class);
+        assertPasses(new Action() {
+            public void run() throws Exception {
+                constructor.newInstance(outer, "a", "b");
+            }
+        });
+        assertArgumentRejected("1st argument", new Action() {
+            public void run() throws Exception {
+                constructor.newInstance(outer, null, "b");
+            }
+        });
+        assertArgumentRejected("2nd argument", new Action() {
+            public void run() throws Exception {
+                constructor.newInstance(outer, "a", null);
+            }
+        });
+    }
+
+    private static void testSlots(ClassLoader loader) throws Exception {
+        final Method join = loader.loadClass(Outer.class.getName())
+                .getMethod("join", long.class, String.class, double.class, String.class);
+        assertPasses(new Action() {
+            public void run() throws Exception {
+                join.invoke(null, 1L, "b", 2.0, "d");
+            }
+        });
+        assertArgumentRejected("2nd argument", new Action() {
+            public void run() throws Exception {
+                join.invoke(null, 1L, null, 2.0, "d");
+            }
+        });
+        assertArgumentRejected("4th argument", new Action() {
+            public void run() throws Exception {
+                join.invoke(null, 1L, "b", 2.0, null);
+            }
+        });
+    }
+
+    private static void testEnumConstructor(final ClassLoader loader) throws Exception {
+        assertPasses(new Action() {
+            public void run() throws Exception {
+                Class<?> color = loader.loadClass(Color.class.getName());
+                assertEquals(1, color.getEnumConstants().length, "enum constants");
+            }
+        });
+        // the constructor is only called by the static initializer
+        Throwable thrown = getThrown(new Action() {
+            public void run() throws Exception {
+                Class.forName(Broken.class.getName(), true, loader);
+            }
+        });
+        assertTrue(thrown instanceof ExceptionInInitializerError, "Expected a failed initialization: " + thrown);
+        assertArgumentRejected("1st argument", thrown.getCause());
+    }
+
+    private static void testReturnValue(ClassLoader loader) throws Exception {
+        final Method find = loader.loadClass(Lookup.class.getName())
+                .getMethod("find", String.class, String.class, boolean.class);
+        assertPasses(new Action() {
+            public void run() throws Exception {
+                assertEquals("a", find.invoke(null, "a", "", true), "result");
+                assertEquals("b", find.invoke(null, "a", "b", false), "result");
+            }
+        });
+        assertArgumentRejected("2nd argument", new Action() {
+            public void run() throws Exception {
+                find.invoke(null, "a", null, true);
+            }
+        });
+        Throwable thrown = getThrown(new Action() {
+            public void run() throws Exception {
+                find.invoke(null, "a", "", false);
+            }
+        });
+        assertTrue(thrown instanceof IllegalStateException, "Expected a rejected return value: " + thrown);
+    }
+
+    private static InstrumentationOptions[] getOptionVariants() {
+        InstrumentationOptions outlined = new InstrumentationOptions();
+        outlined.setOutlineThrows(true);
+        InstrumentationOptions fused = new InstrumentationOptions();
+        fused.setFuseParameterChecks(true);
+        InstrumentationOptions preserved = new InstrumentationOptions();
+        preserved.setPreserveFrames(true);
+        InstrumentationOptions preservedOutlined = new InstrumentationOptions();
+        preservedOutlined.setPreserveFrames(true);
+        preservedOutlined.setOutlineThrows(true);
+        InstrumentationOptions preservedFused = new InstrumentationOptions();
+        preservedFused.setPreserveFrames(true);
+        preservedFused.setFuseParameterChecks(true);
+        InstrumentationOptions preservedFusedOutlined = new InstrumentationOptions();
+        preservedFusedOutlined.setPreserveFrames(true);
+        preservedFusedOutlined.setFuseParameterChecks(true);
+        preservedFusedOutlined.setOutlineThrows(true);
+        return new InstrumentationOptions[] {new InstrumentationOptions(), outlined, fused, preserved,
+                preservedOutlined, preservedFused, preservedFusedOutlined};
+    }
+
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2000-2008 JetBrains s.r.o.
+ * Modified in 2009 by Mathias Doenitz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.parboiled.test;
+
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * The assertions of the tests, which are plain programs failing with an {@link AssertionError}.
+ */
+public class Assertions {
+
+    /**
+     * Code expected to fail.
+     */
+    public interface Action {
+        void run() throws Exception;
+    }
+
+    private Assertions() {
+    }
+
+    public static void assertTrue(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    public static void assertEquals(Object expected, Object actual, String message) {
+        if (expected == null ? actual != null : !expected.equals(actual)) {
+            throw new AssertionError(message + ": expected <" + expected + "> but was <" + actual + '>');
+        }
+    }
+
+    /**
+     * Runs the given action and asserts that it fails with an IllegalArgumentException of a failed @NotNull check.
+     *
+     * @param messageStart the expected start of the exception message, e.g. "2nd argument"
+     * @param action       the action
+     * @return the exception thrown
+     */
+    public static IllegalArgumentException assertArgumentRejected(String messageStart, Action action) {
+        return assertArgumentRejected(messageStart, getThrown(action));
+    }
+
+    /**
+     * Asserts that the given exception is an IllegalArgumentException of a failed @NotNull check.
+     *
+     * @param messageStart the expected start of the exception message, e.g. "2nd argument"
+     * @param thrown       the exception, may be null
+     * @return the exception
+     */
+    public static IllegalArgumentException assertArgumentRejected(String messageStart, Throwable thrown) {
+        if (!(thrown instanceof IllegalArgumentException)) {
+            throw new AssertionError("Expected an IllegalArgumentException starting with \"" + messageStart +
+                    "\" but got " + thrown, thrown);
+        }
+        assertTrue(String.valueOf(thrown.getMessage()).startsWith(messageStart),
+                "Unexpected message: " + thrown.getMessage());
+        return (IllegalArgumentException) thrown;
+    }
+
+    /**
+     * Runs the given action and asserts that it does not fail.
+     *
+     * @param action the action
+     */
+    public static void assertPasses(Action action) {
+        Throwable thrown = getThrown(action);
+        if (thrown != null) {
+            throw new AssertionError("Unexpected " + thrown, thrown);
+        }
+    }
+
+    /**
+     * @param action the action to run
+     * @return the exception thrown by the action (unwrapped if thrown by a reflectively invoked method) or null
+     */
+    public static Throwable getThrown(Action action) {
+        try {
+            action.run();
+            return null;
+        }
+        catch (InvocationTargetException e) {
+            return e.getCause();
+        }
+        catch (Throwable e) {
+            return e;
+        }
+    }
+
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2000-2008 JetBrains s.r.o.
+ * Modified in 2009 by Mathias Doenitz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.parboiled.test;
+
+import org.objectweb.asm.ClassAdapter;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.parboiled.compiler.notNullVerification.InstrumentationOptions;
+import org.parboiled.compiler.notNullVerification.NotNullVerifyingInstrumenter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Provides the class files of test subjects in the form the instrumentation applies to and loads them in isolation.
+ */
+public class ClassFiles {
+
+    private static final int JAVA_6 = 50;
+
+    private ClassFiles() {
+    }
+
+    /**
+     * Reads the class file of the given class from the test classpath as it was compiled, i.e. as a Java 8 class file
+     * with stack map frames.
+     *
+     * @param type the class
+     * @return the class file contents
+     * @throws IOException if the class file could not be read
+     */
+    public static byte[] read(Class<?> type) throws IOException {
+        InputStream inputStream = type.getResourceAsStream('/' + type.getName().replace('.', '/') + ".class");
+        if (inputStream == null) {
+            throw new IOException("Class file of " + type.getName() + " not found");
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[8192];
+            for (int n; (n = inputStream.read(buffer)) > 0;) {
+                bytes.write(buffer, 0, n);
+            }
+        }
+        finally {
+            inputStream.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads the class file of the given class from the test classpath and turns it into a Java 6 class file, i.e.
+     * the form produced by a javac targeting Java 6, which current compilers no longer support.
+     *
+     * @param type the class
+     * @return the class file contents with version 50 and without stack map frames
+     * @throws IOException if the class file could not be read
+     */
+    public static byte[] readJava6(Class<?> type) throws IOException {
+        ClassWriter writer = new ClassWriter(0);
+        new ClassReader(read(type)).accept(new ClassAdapter(writer) {
+            @Override
+            public void visit(int version, int access, String name, String signature, String superName,
+                              String[] interfaces) {
+                super.visit(JAVA_6, access, name, signature, superName, interfaces);
+            }
+        }, ClassReader.SKIP_FRAMES);
+        return writer.toByteArray();
+    }
+
+    /**
+     * Instruments the given class file the way the ant tasks do, apart from the frame computation which Java 6 class
+     * files do not need. In preserveFrames mode the class writer computes nothing at all, so the frames of the
+     * generated code must be correct by themselves.
+     *
+     * @param classBytes the class file contents
+     * @param options    the instrumentation options
+     * @return the instrumented class file contents or the given ones if the class was not affected
+     */
+    public static byte[] instrument(byte[] classBytes, InstrumentationOptions options) {
+        ClassReader reader = new ClassReader(classBytes);
+        ClassWriter writer = new ClassWriter(reader, options.isPreserveFrames() ? 0 : ClassWriter.COMPUTE_MAXS);
+        NotNullVerifyingInstrumenter instrumenter = new NotNullVerifyingInstrumenter(null, writer, options);
+        instrumenter.analyze(reader);
+        reader.accept(instrumenter, 0);
+        return instrumenter.isModification() ? writer.toByteArray() : classBytes;
+    }
+
+    /**
+     * Loads the given classes instrumented with the given options, in a class loader of their own so that they do not
+     * clash with their originals on the test classpath. In preserveFrames mode the classes keep their version and
+     * frames, so that the verifier checks the frames of the generated code rather than falling back to type
+     * inference as it does for Java 6 class files, otherwise they are turned into Java 6 class files.
+     *
+     * @param options the instrumentation options
+     * @param types   the classes to load, including all inner classes they use
+     * @return the class loader defining the instrumented classes
+     * @throws IOException if a class file could not be read
+     */
+    public static ClassLoader loadInstrumented(InstrumentationOptions options, Class<?>... types) throws IOException {
+        Map<String, byte[]> classes = new HashMap<String, byte[]>();
+        for (Class<?> type : types) {
+            byte[] classBytes = options.isPreserveFrames() ? read(type) : readJava6(type);
+            classes.put(type.getName(), instrument(classBytes, options));
+        }
+        return new IsolatingClassLoader(classes);
+    }
+
+    /**
+     * A class loader defining the given classes itself rather than delegating them to its parent.
+     */
+    public static class IsolatingClassLoader extends ClassLoader {
+        private final Map<String, byte[]> classes;
+
+        /**
+         * @param classes the class file contents keyed by class name
+         */
+        public IsolatingClassLoader(Map<String, byte[]> classes) {
+            super(ClassFiles.class.getClassLoader());
+            this.classes = classes;
+        }
+
+        @Override
+        protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            byte[] bytes = classes.get(name);
+            if (bytes == null) {
+                return super.loadClass(name, resolve);
+            }
+            Class<?> type = findLoadedClass(name);
+            if (type == null) {
+                type = defineClass(name, bytes, 0, bytes.length);
+            }
+            if (resolve) {
+                resolveClass(type);
+            }
+            return type;
+        }
+    }
+
+}